@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+import cubyz.multiplayer.server.BlockUpdateQueue;
+import cubyz.world.ChunkData;
+
+/**
+ * Measures the bandwidth of the block updates in a liquid flood.<br>
+ * Four 9×9 water sources spill onto uneven terrain and spread with the same rules as {@code MetaChunk.liquidUpdate}, every third update.
+ * The players stand at different distances to the flood, some of them far outside of the render distance.<br>
+ * Compares sending every update to every player with 16 bytes per update, which is what the server did before,
+ * to the {@link BlockUpdateQueue}, which sends one message per update and player, coalesced, grouped by chunk and filtered by render distance.<br>
+ * Compile and run from the repository root, with the dependencies on the class path:<br>
+ * javac -d out -cp "src:<dependencies>" scripts/blockUpdateBenchmark/BlockUpdateBenchmark.java<br>
+ * java -cp "out:<dependencies>" BlockUpdateBenchmark [players] [render distance in chunks] [seconds]
+ */
+public class BlockUpdateBenchmark {
+	private static final int UPDATES_PER_SEC = 20;
+	private static final int CHUNK_SIZE = 32;
+	private static final int WIDTH = 512, HEIGHT = 96;
+	private static final int AIR = 0, GROUND = 1, WATER = 2;
+	/** Protocol id and length byte of each message. */
+	private static final int OLD_MESSAGE_SIZE = 2 + 16;
+
+	private static final byte[] world = new byte[WIDTH*HEIGHT*WIDTH];
+	private static ArrayList<int[]> updating = new ArrayList<>();
+
+	private static int getIndex(int x, int y, int z) {
+		return (x*HEIGHT + y)*WIDTH + z;
+	}
+
+	private static int getBlock(int x, int y, int z) {
+		if(x < 0 || x >= WIDTH || y < 0 || y >= HEIGHT || z < 0 || z >= WIDTH) return GROUND;
+		return world[getIndex(x, y, z)];
+	}
+
+	private static void generateTerrain(Random rand) {
+		double[] phases = new double[4];
+		for(int i = 0; i < phases.length; i++) {
+			phases[i] = rand.nextDouble()*Math.PI*2;
+		}
+		for(int x = 0; x < WIDTH; x++) {
+			for(int z = 0; z < WIDTH; z++) {
+				double height = 24 + 8*Math.sin(x/23.0 + phases[0])*Math.cos(z/31.0 + phases[1]) + 4*Math.sin(x/7.0 + phases[2] + z/11.0) + 3*Math.cos(z/5.0 + phases[3]);
+				for(int y = 0; y < height; y++) {
+					world[getIndex(x, y, z)] = GROUND;
+				}
+			}
+		}
+	}
+
+	private static void placeWater(int x, int y, int z, ArrayList<int[]> changes) {
+		world[getIndex(x, y, z)] = WATER;
+		updating.add(new int[] {x, y, z});
+		changes.add(new int[] {x, y, z});
+	}
+
+	/**
+	 * Same rules as {@code MetaChunk.liquidUpdate}: Water spreads downwards, and sideways if the block below it isn't air or water.
+	 */
+	private static ArrayList<int[]> liquidUpdate() {
+		ArrayList<int[]> changes = new ArrayList<>();
+		ArrayList<int[]> current = updating;
+		updating = new ArrayList<>();
+		int[][] directions = {{0, -1, 0}, {1, 0, 0}, {-1, 0, 0}, {0, 0, 1}, {0, 0, -1}};
+		for(int[] pos : current) {
+			int below = getBlock(pos[0], pos[1] - 1, pos[2]);
+			for(int[] dir : directions) {
+				int x = pos[0] + dir[0], y = pos[1] + dir[1], z = pos[2] + dir[2];
+				if(getBlock(x, y, z) != AIR) continue;
+				if(dir[1] == -1 || (below != AIR && below != WATER)) {
+					placeWater(x, y, z, changes);
+				}
+			}
+		}
+		return changes;
+	}
+
+	private static boolean isInRenderDistance(double[] player, int renderDistance, ChunkData ch) {
+		double minDistSquare = ch.getMinDistanceSquared(player[0], player[1], player[2]);
+		double targetRenderDistance = renderDistance*CHUNK_SIZE + CHUNK_SIZE*Math.sqrt(3);
+		return minDistSquare <= targetRenderDistance*targetRenderDistance;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while(value > 0x7f) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static void main(String[] args) {
+		int players = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int renderDistance = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+		Random rand = new Random(42);
+		generateTerrain(rand);
+		// The players are spread between the flood and the border of the world:
+		double[][] playerPositions = new double[players][];
+		for(int i = 0; i < players; i++) {
+			double distance = (WIDTH/2)*i/(double)Math.max(1, players - 1);
+			double angle = rand.nextDouble()*Math.PI*2;
+			playerPositions[i] = new double[] {WIDTH/2 + distance*Math.cos(angle), 48, WIDTH/2 + distance*Math.sin(angle)};
+		}
+
+		BlockUpdateQueue queue = new BlockUpdateQueue();
+		long updates = 0;
+		long coalesced = 0;
+		long oldBytes = 0;
+		long newBytes = 0;
+		long newMessages = 0;
+		long encodeTime = 0;
+		int ticks = seconds*UPDATES_PER_SEC;
+		for(int tick = 0; tick < ticks; tick++) {
+			ArrayList<int[]> changes = new ArrayList<>();
+			// The sources keep releasing water during the first half:
+			if(tick < ticks/2) {
+				for(int i = 0; i < 4; i++) {
+					for(int dx = -4; dx <= 4; dx++) {
+						for(int dz = -4; dz <= 4; dz++) {
+							int x = WIDTH/2 + (i%2)*80 - 40 + dx, z = WIDTH/2 + (i/2)*80 - 40 + dz;
+							if(getBlock(x, 80, z) == AIR) placeWater(x, 80, z, changes);
+						}
+					}
+				}
+			}
+			if(tick % 3 == 0) {
+				changes.addAll(liquidUpdate());
+			}
+			updates += changes.size();
+			oldBytes += (long)changes.size()*OLD_MESSAGE_SIZE*players;
+
+			long start = System.nanoTime();
+			for(int[] pos : changes) {
+				queue.add(pos[0], pos[1], pos[2], WATER);
+			}
+			ArrayList<BlockUpdateQueue.ChunkUpdates> chunkUpdates = queue.takeAll();
+			byte[][] encoded = new byte[chunkUpdates.size()][];
+			for(int i = 0; i < encoded.length; i++) {
+				encoded[i] = chunkUpdates.get(i).encode();
+				coalesced -= chunkUpdates.get(i).size();
+			}
+			encodeTime += System.nanoTime() - start;
+			coalesced += changes.size();
+			for(double[] player : playerPositions) {
+				int length = 0;
+				for(int i = 0; i < encoded.length; i++) {
+					if(isInRenderDistance(player, renderDistance, chunkUpdates.get(i).chunk)) {
+						length += encoded[i].length;
+					}
+				}
+				if(length == 0) continue;
+				newBytes += 1 + varIntSize(length) + length;
+				newMessages++;
+			}
+		}
+		System.out.printf("%d players, render distance %d, %d s, %d block updates (%d coalesced)%n", players, renderDistance, seconds, updates, coalesced);
+		System.out.printf("one message per block update: %.1f KiB/s total, %.1f KiB/s per player, %d messages%n", oldBytes/1024.0/seconds, oldBytes/1024.0/seconds/players, updates*players);
+		System.out.printf("batched:                      %.1f KiB/s total, %.1f KiB/s per player, %d messages%n", newBytes/1024.0/seconds, newBytes/1024.0/seconds/players, newMessages);
+		System.out.printf("%.2f bytes per block update and player, encoding takes %.1f µs per server update%n", newBytes/(double)Math.max(1, updates*players), encodeTime/1000.0/ticks);
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import cubyz.multiplayer.EntitySnapshot;
+
+/**
+ * Measures the bandwidth of the entity positions per player for growing world populations.<br>
+ * Entities walk around randomly, most item entities lie on the ground and a few of them are falling.
+ * Each player only gets the entities within the entity distance, relative to the last snapshot it acknowledged.
+ * Snapshots and acknowledgements get lost randomly and the acknowledgements arrive a few updates later.
+ * Every snapshot gets decoded again and compared to the state on the server.<br>
+ * The server used to send 100 bytes per entity and 50 bytes per item entity to every player in every update.<br>
+ * Compile and run from the repository root:<br>
+ * javac -d out -cp src scripts/entitySnapshotBenchmark/EntitySnapshotBenchmark.java<br>
+ * java -cp out EntitySnapshotBenchmark [players] [entity distance in chunks] [loss rate]
+ */
+public class EntitySnapshotBenchmark {
+	private static final int UPDATES_PER_SEC = 20;
+	private static final int TICKS = 20*UPDATES_PER_SEC;
+	private static final int WORLD_SIZE = 4096;
+	private static final int ACK_DELAY = 3;
+	private static final int OLD_ENTITY_SIZE = 100;
+	private static final int OLD_ITEM_SIZE = 50;
+
+	private static final class Player {
+		private double x, y, z;
+		private int nextId;
+		private int lastAcked = -1;
+		private final int[] pendingAcks = new int[ACK_DELAY];
+		private final EntitySnapshot.History sent = new EntitySnapshot.History();
+		private final EntitySnapshot.History received = new EntitySnapshot.History();
+	}
+
+	private static double[] entityPos, entityVel, entityRot;
+	private static double[] itemPos, itemVel;
+
+	private static long[] getOrigin(int fields, Player player) {
+		long[] origin = new long[fields];
+		origin[0] = EntitySnapshot.quantizePosition((int)Math.floor(player.x) & ~31);
+		origin[1] = EntitySnapshot.quantizePosition((int)Math.floor(player.y) & ~31);
+		origin[2] = EntitySnapshot.quantizePosition((int)Math.floor(player.z) & ~31);
+		return origin;
+	}
+
+	private static boolean isNear(Player player, double[] pos, int i, double maxDistSquare) {
+		double dx = pos[3*i] - player.x, dy = pos[3*i + 1] - player.y, dz = pos[3*i + 2] - player.z;
+		return dx*dx + dy*dy + dz*dz <= maxDistSquare;
+	}
+
+	private static EntitySnapshot createSnapshot(Player player, int id, double maxDistSquare) {
+		int entities = entityPos.length/3, items = itemPos.length/3;
+		int[] entityKeys = new int[entities];
+		long[] entityStates = new long[entities*EntitySnapshot.ENTITY_FIELDS];
+		int entityCount = 0;
+		for(int i = 0; i < entities; i++) {
+			if(!isNear(player, entityPos, i, maxDistSquare)) continue;
+			entityKeys[entityCount] = i;
+			for(int k = 0; k < 3; k++) {
+				entityStates[entityCount*EntitySnapshot.ENTITY_FIELDS + k] = EntitySnapshot.quantizePosition(entityPos[3*i + k]);
+				entityStates[entityCount*EntitySnapshot.ENTITY_FIELDS + 3 + k] = EntitySnapshot.quantizeRotation(entityRot[3*i + k]);
+				entityStates[entityCount*EntitySnapshot.ENTITY_FIELDS + 6 + k] = EntitySnapshot.quantizeVelocity(entityVel[3*i + k]);
+			}
+			entityCount++;
+		}
+		int[] itemKeys = new int[items];
+		long[] itemStates = new long[items*EntitySnapshot.ITEM_FIELDS];
+		int itemCount = 0;
+		for(int i = 0; i < items; i++) {
+			if(!isNear(player, itemPos, i, maxDistSquare)) continue;
+			itemKeys[itemCount] = i;
+			for(int k = 0; k < 3; k++) {
+				itemStates[itemCount*EntitySnapshot.ITEM_FIELDS + k] = EntitySnapshot.quantizePosition(itemPos[3*i + k]);
+				itemStates[itemCount*EntitySnapshot.ITEM_FIELDS + 3 + k] = EntitySnapshot.quantizeVelocity(itemVel[3*i + k]);
+			}
+			itemCount++;
+		}
+		EntitySnapshot.Section entitySection = new EntitySnapshot.Section(Arrays.copyOf(entityKeys, entityCount), Arrays.copyOf(entityStates, entityCount*EntitySnapshot.ENTITY_FIELDS), entityCount);
+		EntitySnapshot.Section itemSection = new EntitySnapshot.Section(Arrays.copyOf(itemKeys, itemCount), Arrays.copyOf(itemStates, itemCount*EntitySnapshot.ITEM_FIELDS), itemCount);
+		return new EntitySnapshot(id, entitySection, itemSection);
+	}
+
+	private static boolean equals(EntitySnapshot.Section a, EntitySnapshot.Section b, int fields) {
+		return a.count == b.count && Arrays.equals(a.keys, 0, a.count, b.keys, 0, b.count) && Arrays.equals(a.states, 0, a.count*fields, b.states, 0, b.count*fields);
+	}
+
+	private static void simulate(Random rand, float deltaTime) {
+		for(int i = 0; i < entityPos.length/3; i++) {
+			if(rand.nextInt(40) == 0) { // Change the direction every 2 s on average.
+				double angle = rand.nextDouble()*Math.PI*2;
+				entityVel[3*i] = 4*Math.cos(angle);
+				entityVel[3*i + 2] = 4*Math.sin(angle);
+				entityRot[3*i + 1] = angle;
+			}
+			entityPos[3*i] += entityVel[3*i]*deltaTime;
+			entityPos[3*i + 2] += entityVel[3*i + 2]*deltaTime;
+		}
+		for(int i = 0; i < itemPos.length/3; i++) {
+			if(itemVel[3*i + 1] == 0 && rand.nextInt(2000) == 0) {
+				itemVel[3*i + 1] = 5; // Something knocked it up.
+			}
+			if(itemVel[3*i + 1] != 0) {
+				itemVel[3*i + 1] -= 9.81*deltaTime;
+				itemPos[3*i + 1] += itemVel[3*i + 1]*deltaTime;
+				if(itemPos[3*i + 1] <= 64) {
+					itemPos[3*i + 1] = 64;
+					itemVel[3*i + 1] = 0;
+				}
+			}
+		}
+	}
+
+	private static void run(int players, int entities, int items, int entityDistance, double lossRate) {
+		Random rand = new Random(42);
+		entityPos = new double[3*entities];
+		entityVel = new double[3*entities];
+		entityRot = new double[3*entities];
+		itemPos = new double[3*items];
+		itemVel = new double[3*items];
+		for(int i = 0; i < entities; i++) {
+			entityPos[3*i] = rand.nextDouble()*WORLD_SIZE;
+			entityPos[3*i + 1] = 64;
+			entityPos[3*i + 2] = rand.nextDouble()*WORLD_SIZE;
+		}
+		for(int i = 0; i < items; i++) {
+			itemPos[3*i] = rand.nextDouble()*WORLD_SIZE;
+			itemPos[3*i + 1] = 64;
+			itemPos[3*i + 2] = rand.nextDouble()*WORLD_SIZE;
+		}
+		Player[] playerList = new Player[players];
+		for(int i = 0; i < players; i++) {
+			playerList[i] = new Player();
+			playerList[i].x = rand.nextDouble()*WORLD_SIZE;
+			playerList[i].y = 65;
+			playerList[i].z = rand.nextDouble()*WORLD_SIZE;
+			Arrays.fill(playerList[i].pendingAcks, -1);
+		}
+		double maxDistSquare = Math.pow(entityDistance*32, 2);
+		long bytes = 0;
+		long nearby = 0;
+		long fullSnapshots = 0;
+		for(int tick = 0; tick < TICKS; tick++) {
+			simulate(rand, 1.0f/UPDATES_PER_SEC);
+			for(Player player : playerList) {
+				player.x += 0.2; // Walking at 4 m/s.
+				// Acknowledgements arrive with a delay:
+				int ack = player.pendingAcks[tick % ACK_DELAY];
+				player.pendingAcks[tick % ACK_DELAY] = -1;
+				if(ack != -1 && (player.lastAcked == -1 || (short)(ack - player.lastAcked) > 0)) {
+					player.lastAcked = ack;
+				}
+				int id = player.nextId;
+				player.nextId = id + 1 & 0xffff;
+				EntitySnapshot baseline = null;
+				if(player.lastAcked != -1 && (id - player.lastAcked & 0xffff) < EntitySnapshot.HISTORY_SIZE) {
+					baseline = player.sent.get(player.lastAcked);
+				}
+				if(baseline == null) fullSnapshots++;
+				EntitySnapshot snapshot = createSnapshot(player, id, maxDistSquare);
+				player.sent.put(snapshot);
+				nearby += snapshot.entities.count + snapshot.items.count;
+				EntitySnapshot.Writer out = new EntitySnapshot.Writer(64);
+				snapshot.entities.writeDelta(out, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.entities, EntitySnapshot.ENTITY_FIELDS, getOrigin(EntitySnapshot.ENTITY_FIELDS, player));
+				snapshot.items.writeDelta(out, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.items, EntitySnapshot.ITEM_FIELDS, getOrigin(EntitySnapshot.ITEM_FIELDS, player));
+				byte[] data = out.toArray();
+				bytes += 2 + 18 + data.length; // Protocol id and header.
+				if(rand.nextDouble() < lossRate) continue;
+				// The client side:
+				EntitySnapshot clientBaseline = baseline == null ? null : player.received.get(baseline.id);
+				if(baseline != null && clientBaseline == null) throw new IllegalStateException("The client is missing the baseline.");
+				EntitySnapshot.Reader in = new EntitySnapshot.Reader(data, 0, data.length);
+				EntitySnapshot.Section decodedEntities = EntitySnapshot.Section.readDelta(in, clientBaseline == null ? EntitySnapshot.Section.EMPTY : clientBaseline.entities, EntitySnapshot.ENTITY_FIELDS, getOrigin(EntitySnapshot.ENTITY_FIELDS, player));
+				EntitySnapshot.Section decodedItems = EntitySnapshot.Section.readDelta(in, clientBaseline == null ? EntitySnapshot.Section.EMPTY : clientBaseline.items, EntitySnapshot.ITEM_FIELDS, getOrigin(EntitySnapshot.ITEM_FIELDS, player));
+				if(!equals(decodedEntities, snapshot.entities, EntitySnapshot.ENTITY_FIELDS) || !equals(decodedItems, snapshot.items, EntitySnapshot.ITEM_FIELDS)) {
+					throw new IllegalStateException("The decoded snapshot differs from the sent one.");
+				}
+				player.received.put(new EntitySnapshot(id, decodedEntities, decodedItems));
+				if(rand.nextDouble() >= lossRate) {
+					player.pendingAcks[(tick + ACK_DELAY - 1) % ACK_DELAY] = id;
+				}
+			}
+		}
+		double seconds = TICKS/(double)UPDATES_PER_SEC;
+		double oldPerPlayer = (2 + 3 + (long)entities*OLD_ENTITY_SIZE + 2 + 3 + (long)items*OLD_ITEM_SIZE)*(double)UPDATES_PER_SEC;
+		System.out.printf("%6d entities %6d items: %6.1f nearby, %8.2f KiB/s per player (before: %9.1f KiB/s), %.1f%% without baseline%n",
+				entities, items, nearby/(double)TICKS/players, bytes/1024.0/seconds/players, oldPerPlayer/1024, 100.0*fullSnapshots/TICKS/players);
+	}
+
+	public static void main(String[] args) {
+		int players = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int entityDistance = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		double lossRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		System.out.printf("%d players, entity distance %d, %.0f%% loss%n", players, entityDistance, lossRate*100);
+		for(int population = 256; population <= 65536; population *= 4) {
+			run(players, population/4, population, entityDistance, lossRate);
+		}
+	}
+}
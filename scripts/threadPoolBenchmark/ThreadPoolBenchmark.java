@@ -0,0 +1,159 @@
+import java.util.Random;
+
+import cubyz.utils.ThreadPool;
+import cubyz.utils.metrics.Histogram;
+import cubyz.utils.metrics.Metrics;
+
+/**
+ * Measures the scheduling overhead of the ThreadPool with many queued chunk tasks and many moving players.<br>
+ * The producer keeps the queue filled with groups of neighboring chunk tasks around the players, while the players walk around and trigger priority updates whenever they enter another chunk.
+ * For comparison it also measures how long refreshing the priority of every single task would take, which is what the thread pool did before the tasks were bucketed.<br>
+ * Compile and run from the repository root, with the dependencies on the class path:<br>
+ * javac -d out -cp "src:<dependencies>" scripts/threadPoolBenchmark/ThreadPoolBenchmark.java<br>
+ * java -cp "out:<dependencies>" ThreadPoolBenchmark [queued tasks] [players] [seconds]
+ */
+public class ThreadPoolBenchmark {
+	private static final int CHUNK_SIZE = 32;
+	private static final int[] VOXEL_SIZES = {1, 2, 4, 8, 16};
+
+	private static final ThreadPool pool = new ThreadPool("benchmark", () -> Math.max(1, Runtime.getRuntime().availableProcessors() - 2));
+	private static double[] players;
+	private static final Histogram addTime = new Histogram();
+	private static final Histogram waitTime = new Histogram();
+
+	private static final class CellKey {
+		private final int x, y, z, voxelSize;
+		private CellKey(int x, int y, int z, int voxelSize) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.voxelSize = voxelSize;
+		}
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof CellKey)) return false;
+			CellKey key = (CellKey)other;
+			return x == key.x && y == key.y && z == key.z && voxelSize == key.voxelSize;
+		}
+		@Override
+		public int hashCode() {
+			return ((x*31 + y)*31 + z)*31 + voxelSize;
+		}
+	}
+
+	/** Mimics the server side chunk task, whose priority is the maximum over all players. */
+	private static final class ChunkTask extends ThreadPool.Task {
+		private final int wx, wy, wz, voxelSize;
+		private final long creationTime = System.nanoTime();
+		private ChunkTask(int wx, int wy, int wz, int voxelSize) {
+			this.wx = wx;
+			this.wy = wy;
+			this.wz = wz;
+			this.voxelSize = voxelSize;
+		}
+		@Override
+		public float getPriority() {
+			double[] players = ThreadPoolBenchmark.players;
+			int halfWidth = voxelSize*CHUNK_SIZE/2;
+			float priority = -Float.MAX_VALUE;
+			for(int i = 0; i < players.length; i += 3) {
+				double dx = wx + halfWidth - players[i];
+				double dy = wy + halfWidth - players[i + 1];
+				double dz = wz + halfWidth - players[i + 2];
+				priority = Math.max(priority, -(float)(dx*dx + dy*dy + dz*dz)/voxelSize/voxelSize + 2*Integer.numberOfTrailingZeros(voxelSize)*CHUNK_SIZE*CHUNK_SIZE);
+			}
+			return priority;
+		}
+		@Override
+		public boolean isStillNeeded() {
+			return true;
+		}
+		@Override
+		public Object getBucketKey() {
+			int mask = ~(2*voxelSize*CHUNK_SIZE - 1);
+			return new CellKey(wx & mask, wy & mask, wz & mask, voxelSize);
+		}
+		@Override
+		public void run() {
+			waitTime.recordSince(creationTime);
+			// Simulates a bit of generation work:
+			long end = System.nanoTime() + 20000;
+			while(System.nanoTime() < end);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int queuedTasks = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int playerCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		Random random = new Random(42);
+		double[] positions = new double[3*playerCount];
+		double[] velocities = new double[3*playerCount];
+		for(int i = 0; i < positions.length; i++) {
+			positions[i] = random.nextDouble()*4000 - 2000;
+			velocities[i] = random.nextDouble()*20 - 10; // blocks per second
+		}
+		players = positions.clone();
+
+		Thread producer = new Thread(() -> {
+			Random rand = new Random(1);
+			while(true) {
+				if(pool.getQueueSize() >= queuedTasks) {
+					Thread.onSpinWait();
+					continue;
+				}
+				double[] players = ThreadPoolBenchmark.players;
+				int player = rand.nextInt(players.length/3);
+				int voxelSize = VOXEL_SIZES[rand.nextInt(VOXEL_SIZES.length)];
+				// Like the chunk requests of a player, the chunks are requested in groups of neighbors:
+				int cellSize = 2*voxelSize*CHUNK_SIZE;
+				int range = 4*cellSize;
+				int mask = ~(cellSize - 1);
+				int cx = (int)players[3*player] + rand.nextInt(2*range) - range & mask;
+				int cy = (int)players[3*player + 1] + rand.nextInt(2*range) - range & mask;
+				int cz = (int)players[3*player + 2] + rand.nextInt(2*range) - range & mask;
+				for(int i = 0; i < 8; i++) {
+					ChunkTask task = new ChunkTask(cx + (i & 1)*cellSize/2, cy + (i >> 1 & 1)*cellSize/2, cz + (i >> 2)*cellSize/2, voxelSize);
+					long start = System.nanoTime();
+					pool.addTask(task);
+					addTime.recordSince(start);
+				}
+			}
+		});
+		producer.setDaemon(true);
+		producer.start();
+		while(pool.getQueueSize() < queuedTasks) {
+			Thread.sleep(10);
+		}
+
+		Histogram priorityUpdateTime = Metrics.histogram("threadPool.benchmark.priorityUpdateTime");
+		System.out.println("second | queue | buckets | priority update p50/p99/max ms | addTask p99 ms | task wait p50 ms | per task refresh ms");
+		for(int second = 1; second <= seconds; second++) {
+			long end = System.currentTimeMillis() + 1000;
+			while(System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+				boolean enteredChunk = false;
+				for(int i = 0; i < positions.length; i++) {
+					double old = positions[i];
+					positions[i] += velocities[i]*0.01;
+					enteredChunk |= Math.floor(old/CHUNK_SIZE) != Math.floor(positions[i]/CHUNK_SIZE);
+				}
+				players = positions.clone();
+				if(enteredChunk) {
+					pool.requestPriorityUpdate();
+				}
+			}
+			// What refreshing every task would cost:
+			long start = System.nanoTime();
+			ChunkTask probe = new ChunkTask(0, 0, 0, 1);
+			float sum = 0;
+			for(int i = 0; i < pool.getQueueSize(); i++) {
+				sum += probe.getPriority();
+			}
+			double perTaskRefresh = (System.nanoTime() - start)/1e6 + sum*0;
+			System.out.printf("%6d | %5d | %7d | %8.2f / %5.2f / %5.2f | %14.3f | %16.1f | %19.2f%n", second, pool.getQueueSize(), pool.getBucketCount(),
+				priorityUpdateTime.getPercentile(0.5), priorityUpdateTime.getPercentile(0.99), priorityUpdateTime.getMax(),
+				addTime.getPercentile(0.99), waitTime.getPercentile(0.5), perTaskRefresh);
+		}
+	}
+}
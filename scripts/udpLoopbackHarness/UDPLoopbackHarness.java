@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import cubyz.multiplayer.CongestionControl;
+import cubyz.multiplayer.ReceiveWindow;
+import cubyz.multiplayer.SendWindow;
+import cubyz.utils.math.Bits;
+import cubyz.utils.metrics.Histogram;
+
+/**
+ * Streams data over the loopback interface using the same windows, congestion control and packet layout as the UDPConnection and measures the throughput under simulated packet loss.<br>
+ * Every packet goes through a simulated link with a limited bandwidth, a drop-tail buffer, a propagation delay and random loss, in both directions.
+ * The sender produces more data than the link can carry, like a server that streams chunks to a player.<br>
+ * For comparison each loss rate is also run without congestion control: Packets are sent as soon as they are produced and resent after two keep-alive intervals, which is what the UDPConnection did before.<br>
+ * Compile and run from the repository root:<br>
+ * javac -d out -cp src scripts/udpLoopbackHarness/UDPLoopbackHarness.java<br>
+ * java -cp out UDPLoopbackHarness [seconds per run] [bandwidth in MiB/s] [one-way delay in ms] [loss rates...]
+ */
+public class UDPLoopbackHarness {
+	private static final byte IMPORTANT_PACKET = (byte)0xff;
+	private static final byte KEEP_ALIVE = 0;
+	private static final int IMPORTANT_HEADER_SIZE = 5;
+	private static final int MAX_IMPORTANT_PACKET_SIZE = 1500 - 20 - 8;
+	private static final int KEEP_ALIVE_INTERVAL = 100;
+	/** The time the link buffer can hold. */
+	private static final long LINK_BUFFER_TIME = 50000000;
+	/** How much faster than the link the data is produced. */
+	private static final double OVERLOAD = 2;
+
+	/** Simulates a link with limited bandwidth, a drop-tail buffer, delay and random loss. */
+	private static final class Link extends Thread {
+		private static final class Scheduled {
+			private final DatagramPacket packet;
+			private final long deliveryTime;
+			private Scheduled(DatagramPacket packet, long deliveryTime) {
+				this.packet = packet;
+				this.deliveryTime = deliveryTime;
+			}
+		}
+		private final DatagramSocket socket;
+		private final Random random;
+		private final double loss;
+		private final double bytesPerNs;
+		private final long delay;
+		private final ArrayDeque<Scheduled> queue = new ArrayDeque<>();
+		private long lastDeparture;
+		private volatile boolean running = true;
+		private final LongAdder randomDrops = new LongAdder(), bufferDrops = new LongAdder();
+
+		private Link(DatagramSocket socket, double loss, double bytesPerSecond, long delay, long seed) {
+			this.socket = socket;
+			this.loss = loss;
+			this.bytesPerNs = bytesPerSecond/1e9;
+			this.delay = delay;
+			random = new Random(seed);
+			setDaemon(true);
+		}
+
+		private void send(DatagramPacket packet) {
+			long time = System.nanoTime();
+			synchronized(queue) {
+				if(random.nextDouble() < loss) {
+					randomDrops.increment();
+					return;
+				}
+				long departure = Math.max(time, lastDeparture) + (long)((packet.getLength() + 28)/bytesPerNs);
+				if(departure - time > LINK_BUFFER_TIME) {
+					bufferDrops.increment();
+					return;
+				}
+				lastDeparture = departure;
+				DatagramPacket copy = new DatagramPacket(Arrays.copyOf(packet.getData(), packet.getLength()), packet.getLength(), packet.getAddress(), packet.getPort());
+				queue.add(new Scheduled(copy, departure + delay));
+			}
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				Scheduled next;
+				synchronized(queue) {
+					next = queue.peek();
+				}
+				long time = System.nanoTime();
+				if(next == null || next.deliveryTime - time > 0) {
+					LockSupport.parkNanos(next == null ? 1000000 : next.deliveryTime - time);
+					continue;
+				}
+				synchronized(queue) {
+					queue.poll();
+				}
+				try {
+					socket.send(next.packet);
+				} catch(IOException e) {
+					if(running) e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static final class Endpoint {
+		private final DatagramSocket socket;
+		private final boolean congestionControlEnabled;
+		private Link link;
+		private InetAddress remoteAddress;
+		private int remotePort;
+		private volatile boolean running = true;
+		private Thread sender;
+
+		private final SendWindow sendWindow = new SendWindow();
+		private final ReceiveWindow receiveWindow = new ReceiveWindow();
+		private final ArrayDeque<DatagramPacket> sendQueue = new ArrayDeque<>();
+		private final CongestionControl congestionControl = new CongestionControl(KEEP_ALIVE_INTERVAL);
+		private int messageID = 0;
+		private int lastKeepAliveSent = 0, otherKeepAliveReceived = 0;
+		private long lastKeepAliveReceiveTime = 0;
+
+		private final LongAdder packetsSent = new LongAdder(), packetsResent = new LongAdder();
+		private volatile long bytesDelivered;
+		private final Histogram ackTime = new Histogram();
+
+		private Endpoint(boolean congestionControlEnabled) throws SocketException {
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			socket.setReceiveBufferSize(1 << 22);
+			socket.setSoTimeout(10);
+			this.congestionControlEnabled = congestionControlEnabled;
+		}
+
+		private void connect(Endpoint other, Link link) {
+			remoteAddress = other.socket.getLocalAddress();
+			remotePort = other.socket.getLocalPort();
+			this.link = link;
+		}
+
+		private void sendImportant(byte[] payload) {
+			byte[] data = new byte[payload.length + IMPORTANT_HEADER_SIZE];
+			data[0] = IMPORTANT_PACKET;
+			Bits.putInt(data, 1, messageID++);
+			System.arraycopy(payload, 0, data, IMPORTANT_HEADER_SIZE, payload.length);
+			DatagramPacket packet = new DatagramPacket(data, data.length, remoteAddress, remotePort);
+			synchronized(sendQueue) {
+				sendQueue.add(packet);
+			}
+			LockSupport.unpark(sender);
+		}
+
+		/** Same as UDPConnection.sendPaced */
+		private long sendPaced(long time) {
+			while(true) {
+				long nextSendTime = congestionControl.getNextSendTime();
+				if(nextSendTime - time > 0) return nextSendTime;
+				long timeout = congestionControl.getResendTimeout();
+				DatagramPacket packet = sendWindow.pollResend(time - timeout, time);
+				if(packet != null) {
+					congestionControl.onLoss(Bits.getInt(packet.getData(), 1), sendWindow.getNextId());
+					packetsResent.increment();
+				} else {
+					synchronized(sendQueue) {
+						if(sendQueue.isEmpty() || congestionControl.isWindowFull(sendWindow.size())) {
+							return sendWindow.getNextResendTime(timeout);
+						}
+						packet = sendQueue.poll();
+					}
+					sendWindow.add(Bits.getInt(packet.getData(), 1), packet, time);
+				}
+				packetsSent.increment();
+				congestionControl.onPacketSent(time);
+				link.send(packet);
+			}
+		}
+
+		/** The old behavior: Send everything immediately and resend after two keep-alive intervals. */
+		private long sendUnpaced(long time) {
+			DatagramPacket packet;
+			while((packet = sendWindow.pollResend(time - 2*KEEP_ALIVE_INTERVAL*1000000L, time)) != null) {
+				packetsSent.increment();
+				packetsResent.increment();
+				link.send(packet);
+			}
+			while(true) {
+				synchronized(sendQueue) {
+					packet = sendQueue.poll();
+				}
+				if(packet == null) break;
+				sendWindow.add(Bits.getInt(packet.getData(), 1), packet, time);
+				packetsSent.increment();
+				link.send(packet);
+			}
+			return time + KEEP_ALIVE_INTERVAL*1000000L;
+		}
+
+		private void runSender() {
+			while(running) {
+				long time = System.nanoTime();
+				long wakeUpTime = Math.min(time + KEEP_ALIVE_INTERVAL*1000000L, congestionControlEnabled ? sendPaced(time) : sendUnpaced(time));
+				long waitTime = wakeUpTime - System.nanoTime();
+				if(waitTime > 0) {
+					LockSupport.parkNanos(waitTime);
+				}
+			}
+		}
+
+		/** Same as UDPConnection.sendKeepAlive */
+		private void sendKeepAlive() {
+			byte[] data;
+			long time = System.nanoTime();
+			int id = lastKeepAliveSent++;
+			synchronized(receiveWindow) {
+				data = new byte[receiveWindow.getAckLength() + 11];
+				data[0] = KEEP_ALIVE;
+				Bits.putInt(data, 1, id);
+				Bits.putInt(data, 5, otherKeepAliveReceived);
+				int holdTime = CongestionControl.NO_HOLD_TIME;
+				if(lastKeepAliveReceiveTime != 0) {
+					holdTime = (int)Math.min((time - lastKeepAliveReceiveTime)/1000000, CongestionControl.NO_HOLD_TIME - 1);
+				}
+				Bits.putChar(data, 9, (char)holdTime);
+				receiveWindow.writeAck(data, 11);
+			}
+			congestionControl.onKeepAliveSent(id, time);
+			link.send(new DatagramPacket(data, data.length, remoteAddress, remotePort));
+		}
+
+		private void receive(byte[] data, int len) {
+			if(len == 0) return;
+			if(data[0] == IMPORTANT_PACKET) {
+				int id = Bits.getInt(data, 1);
+				synchronized(receiveWindow) {
+					if(receiveWindow.isTooFarAhead(id)) return;
+					if(!receiveWindow.put(id, Arrays.copyOfRange(data, IMPORTANT_HEADER_SIZE, len))) return;
+					// Process everything that arrived in order:
+					int start = receiveWindow.getStart();
+					byte[] packet;
+					while((packet = receiveWindow.get(start)) != null) {
+						bytesDelivered += packet.length;
+						start++;
+					}
+					receiveWindow.release(start);
+				}
+			} else if(data[0] == KEEP_ALIVE) {
+				long time = System.nanoTime();
+				otherKeepAliveReceived = Bits.getInt(data, 1);
+				lastKeepAliveReceiveTime = time;
+				congestionControl.onKeepAliveReceived(Bits.getInt(data, 5), Bits.getChar(data, 9), time);
+				int acknowledged = sendWindow.receiveAck(data, 11, len - 11);
+				congestionControl.onAck(acknowledged, sendWindow.getAckedBytes(), time);
+				ackTime.recordSince(time);
+				if(acknowledged != 0) {
+					LockSupport.unpark(sender);
+				}
+			}
+		}
+
+		/** Receives packets and sends the keep-alives, like the UDPConnectionManager. */
+		private void runReceiver() {
+			DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+			long lastTime = System.currentTimeMillis();
+			while(running) {
+				try {
+					socket.receive(packet);
+					receive(packet.getData(), packet.getLength());
+				} catch(SocketTimeoutException e) {
+					// No message within the last 10 ms.
+				} catch(IOException e) {
+					if(running) e.printStackTrace();
+				}
+				if(System.currentTimeMillis() - lastTime > KEEP_ALIVE_INTERVAL) {
+					lastTime = System.currentTimeMillis();
+					sendKeepAlive();
+				}
+			}
+		}
+
+		private void start() {
+			Thread receiver = new Thread(this::runReceiver);
+			receiver.setDaemon(true);
+			receiver.start();
+			sender = new Thread(this::runSender);
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		private void stop() {
+			running = false;
+			link.running = false;
+			socket.close();
+		}
+	}
+
+	private static void run(boolean congestionControl, double loss, double seconds, double bandwidth, long delay) throws Exception {
+		Endpoint server = new Endpoint(congestionControl);
+		Endpoint client = new Endpoint(congestionControl);
+		Link serverLink = new Link(server.socket, loss, bandwidth, delay, 1);
+		Link clientLink = new Link(client.socket, loss, bandwidth, delay, 2);
+		server.connect(client, serverLink);
+		client.connect(server, clientLink);
+		serverLink.start();
+		clientLink.start();
+		server.start();
+		client.start();
+
+		byte[] payload = new byte[MAX_IMPORTANT_PACKET_SIZE - IMPORTANT_HEADER_SIZE];
+		new Random(3).nextBytes(payload);
+		long start = System.nanoTime();
+		long end = start + (long)(seconds*1e9);
+		long produced = 0;
+		while(true) {
+			long time = System.nanoTime();
+			if(time >= end) break;
+			// Produce data faster than the link can carry it:
+			while(produced < (time - start)*OVERLOAD*bandwidth/1e9) {
+				server.sendImportant(payload);
+				produced += payload.length;
+			}
+			LockSupport.parkNanos(1000000);
+		}
+		double time = (System.nanoTime() - start)/1e9;
+		long delivered = client.bytesDelivered;
+		server.stop();
+		client.stop();
+		Thread.sleep(100);
+		CongestionControl cc = server.congestionControl;
+		System.out.printf("%s loss %4.1f %%: %6.2f MiB/s(%3.0f %% of the link), %6d packets sent, %6d resent(%4.1f %%), %5d random drops, %5d buffer drops, ack p99 %.3f ms",
+				congestionControl ? "paced  " : "unpaced", loss*100, delivered/time/(1 << 20), 100*delivered/time/bandwidth,
+				server.packetsSent.sum(), server.packetsResent.sum(), 100.0*server.packetsResent.sum()/Math.max(1, server.packetsSent.sum()),
+				serverLink.randomDrops.sum(), serverLink.bufferDrops.sum(), server.ackTime.getPercentile(0.99));
+		if(congestionControl) {
+			System.out.printf(", RTT %.1f ms, window %d, loss rate %.1f %%, bandwidth %.2f MiB/s", cc.getRoundTripTime(), cc.getWindow(), cc.getLossRate()*100, cc.getBandwidth()/(double)(1 << 20));
+		}
+		System.out.println();
+	}
+
+	public static void main(String[] args) throws Exception {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+		double bandwidth = (args.length > 1 ? Double.parseDouble(args[1]) : 4)*(1 << 20);
+		long delay = (args.length > 2 ? Long.parseLong(args[2]) : 20)*1000000;
+		double[] lossRates = {0, 0.01, 0.05, 0.1};
+		if(args.length > 3) {
+			lossRates = new double[args.length - 3];
+			for(int i = 3; i < args.length; i++) {
+				lossRates[i - 3] = Double.parseDouble(args[i]);
+			}
+		}
+		System.out.printf("Link: %.1f MiB/s, %d ms delay, %d ms buffer. %.0f s per run, data is produced %.0f times faster than the link can carry it.%n", bandwidth/(1 << 20), delay/1000000, LINK_BUFFER_TIME/1000000, seconds, OVERLOAD);
+		for(double loss : lossRates) {
+			run(false, loss, seconds, bandwidth, delay);
+			run(true, loss, seconds, bandwidth, delay);
+		}
+	}
+}
@@ -9,6 +9,7 @@ import cubyz.Constants;
 import cubyz.utils.Logger;
 import cubyz.Settings;
 import cubyz.gui.input.Keybindings;
+import cubyz.multiplayer.server.Server;
 import cubyz.rendering.Window;
 import cubyz.utils.DiscordIntegration;
 import cubyz.utils.translate.LanguageLoader;
@@ -47,6 +48,12 @@ public final class ClientSettings {
 	public static String playerName = null;
 
 	public static String lastUsedIPAddress = "localhost";
+
+	/**The memory budget in MiB for chunks that left the render distance. The server doesn't need to send them again, if they didn't change.*/
+	public static int receivedChunkCacheSize = 64;
+
+	/**The number of threads that build the chunk meshes. 0 picks a number based on the available cores.*/
+	public static int meshingThreads = 0;
 	
 
 	/**Not actually a setting, but stored here anyways.*/
@@ -56,6 +63,16 @@ public final class ClientSettings {
 		return RENDER_DISTANCE + (((int)(RENDER_DISTANCE*LOD_FACTOR) & ~1) << Constants.HIGHEST_LOD);
 	}
 
+	/**
+	 * In singleplayer the server also needs cores for the generation, so the meshing only gets the third of the available cores that the server leaves.
+	 */
+	public static int getMeshingThreadCount() {
+		if(meshingThreads > 0) return meshingThreads;
+		int available = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+		if(Server.world == null) return available; // The server runs somewhere else.
+		return Math.max(1, available - available*2/3);
+	}
+
 	public static void save() {
 		JsonObject settings = new JsonObject();
 		JsonObject keyBindings = new JsonObject();
@@ -82,6 +99,8 @@ public final class ClientSettings {
 		if(ClientSettings.playerName != null)
 			settings.put("playerName", ClientSettings.playerName);
 		settings.put("lastUsedIPAddress", ClientSettings.lastUsedIPAddress);
+		settings.put("meshingThreads", ClientSettings.meshingThreads);
+		settings.put("receivedChunkCacheSize", ClientSettings.receivedChunkCacheSize);
 
 		try {
 			FileWriter writer = new FileWriter("settings.json", StandardCharsets.UTF_8);
@@ -138,6 +157,10 @@ public final class ClientSettings {
 		playerName = settings.getString("playerName", playerName);
 
 		lastUsedIPAddress = settings.getString("lastUsedIPAddress", lastUsedIPAddress);
+
+		meshingThreads = settings.getInt("meshingThreads", meshingThreads);
+
+		receivedChunkCacheSize = settings.getInt("receivedChunkCacheSize", receivedChunkCacheSize);
 	}
 	
 }
@@ -2,9 +2,9 @@ package cubyz.client.entity;
 
 import cubyz.Constants;
 import cubyz.api.CubyzRegistries;
+import cubyz.multiplayer.EntitySnapshot;
 import cubyz.utils.datastructures.SimpleList;
 import cubyz.utils.interpolation.TimeDifference;
-import cubyz.utils.math.Bits;
 import pixelguys.json.JsonObject;
 
 public final class ClientEntityManager {
@@ -50,28 +50,25 @@ public final class ClientEntityManager {
 		timeDifference.reset();
 	}
 
-	public static void serverUpdate(short time, byte[] data, int offset, int length) {
+	public static void serverUpdate(short time, EntitySnapshot.Section snapshot) {
 		timeDifference.addDataPoint(time);
-		int num = length/(4+24+12+24);
-		for(int i = 0; i < num; i++) {
-			int id = Bits.getInt(data, offset);
-			offset += 4;
+		for(int i = 0; i < snapshot.count; i++) {
+			int id = snapshot.keys[i];
+			int offset = i*EntitySnapshot.ENTITY_FIELDS;
 			double[] position = new double[]{
-				Bits.getDouble(data, offset),
-				Bits.getDouble(data, offset + 8),
-				Bits.getDouble(data, offset + 16),
-				Bits.getFloat(data, offset + 24),
-				Bits.getFloat(data, offset + 28),
-				Bits.getFloat(data, offset + 32),
+				snapshot.states[offset]/EntitySnapshot.POSITION_SCALE,
+				snapshot.states[offset + 1]/EntitySnapshot.POSITION_SCALE,
+				snapshot.states[offset + 2]/EntitySnapshot.POSITION_SCALE,
+				snapshot.states[offset + 3]/EntitySnapshot.ROTATION_SCALE,
+				snapshot.states[offset + 4]/EntitySnapshot.ROTATION_SCALE,
+				snapshot.states[offset + 5]/EntitySnapshot.ROTATION_SCALE,
 			};
-			offset += 36;
 			double[] velocity = new double[]{
-				Bits.getDouble(data, offset),
-				Bits.getDouble(data, offset + 8),
-				Bits.getDouble(data, offset + 16),
+				snapshot.states[offset + 6]/EntitySnapshot.VELOCITY_SCALE,
+				snapshot.states[offset + 7]/EntitySnapshot.VELOCITY_SCALE,
+				snapshot.states[offset + 8]/EntitySnapshot.VELOCITY_SCALE,
 				0, 0, 0,
 			};
-			offset += 24;
 			for(ClientEntity ent : entities.toArray()) {
 				if(ent.id == id) {
 					ent.updatePosition(position, velocity, time);
@@ -1,9 +1,9 @@
 package cubyz.client.entity;
 
 import cubyz.Constants;
+import cubyz.multiplayer.EntitySnapshot;
 import cubyz.utils.interpolation.GenericInterpolation;
 import cubyz.utils.interpolation.TimeDifference;
-import cubyz.utils.math.Bits;
 import cubyz.world.World;
 import cubyz.world.entity.ItemEntityManager;
 import cubyz.world.items.ItemStack;
@@ -17,27 +17,26 @@ public class InterpolatedItemEntityManager extends ItemEntityManager {
 		super(world);
 	}
 
-	public void readPosition(byte[] data, int offset, int length, short time) {
-		assert length%(6*8 + 2) == 0 : "length must be a multiple of 6*8 + 2";
+	/**
+	 * The item entities that are missing in the snapshot are too far away. They stay where they are.
+	 */
+	public void readPosition(EntitySnapshot.Section snapshot, short time) {
 		timeDifference.addDataPoint(time);
 		double[] pos = new double[3*MAX_CAPACITY];
 		double[] vel = new double[3*MAX_CAPACITY];
-		length += offset;
-		while(offset < length) {
-			int i = Bits.getShort(data, offset) & 0xffff;
-			offset += 2;
-			pos[3*i] = Bits.getDouble(data, offset);
-			offset += 8;
-			pos[3*i+1] = Bits.getDouble(data, offset);
-			offset += 8;
-			pos[3*i+2] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i+1] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i+2] = Bits.getDouble(data, offset);
-			offset += 8;
+		synchronized(this) {
+			for(int ii = 0; ii < size; ii++) {
+				int i3 = 3*(indices[ii] & 0xffff);
+				System.arraycopy(posxyz, i3, pos, i3, 3);
+			}
+		}
+		for(int j = 0; j < snapshot.count; j++) {
+			int i3 = 3*snapshot.keys[j];
+			int offset = j*EntitySnapshot.ITEM_FIELDS;
+			for(int k = 0; k < 3; k++) {
+				pos[i3 + k] = snapshot.states[offset + k]/EntitySnapshot.POSITION_SCALE;
+				vel[i3 + k] = snapshot.states[offset + 3 + k]/EntitySnapshot.VELOCITY_SCALE;
+			}
 		}
 		interpolation.updatePosition(pos, vel, time);
 	}
@@ -0,0 +1,71 @@
+package cubyz.command;
+
+import cubyz.api.Resource;
+import cubyz.multiplayer.server.Server;
+import cubyz.world.ChunkPregenerator;
+
+/**
+ * Generates and stores the chunks in an area in the background.
+ */
+
+public class PregenerateCommand extends CommandBase {
+
+	public PregenerateCommand() {
+		name = "/pregenerate";
+		expectedArgs = new String[1];
+		expectedArgs[0] = "<radius around spawn | x1 y1 z1 x2 y2 z2 | resume | stop | status>";
+	}
+
+	@Override
+	public Resource getRegistryID() {
+		return new Resource("cubyz", "pregenerate");
+	}
+
+	@Override
+	public void commandExecute(CommandSource source, String[] args) {
+		if(Server.world == null) {
+			source.feedback("There is no world to pregenerate.");
+			return;
+		}
+		if(args.length == 2 && args[1].equals("stop")) {
+			if(ChunkPregenerator.stop()) {
+				source.feedback("Stopping the pregeneration after the current regions.");
+			} else {
+				source.feedback("No pregeneration is running.");
+			}
+			return;
+		}
+		if(args.length == 2 && args[1].equals("status")) {
+			source.feedback(ChunkPregenerator.getStatus());
+			return;
+		}
+		boolean started;
+		try {
+			if(args.length == 2 && args[1].equals("resume")) {
+				started = ChunkPregenerator.resume(Server.world, source);
+			} else if(args.length == 2) {
+				int radius = Integer.parseInt(args[1]);
+				int x = Server.world.spawn.x;
+				int y = Server.world.spawn.y;
+				int z = Server.world.spawn.z;
+				started = ChunkPregenerator.start(Server.world, source, x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+			} else if(args.length == 7) {
+				int[] coordinates = new int[6];
+				for(int i = 0; i < 6; i++) {
+					coordinates[i] = Integer.parseInt(args[i + 1]);
+				}
+				started = ChunkPregenerator.start(Server.world, source, coordinates[0], coordinates[1], coordinates[2], coordinates[3], coordinates[4], coordinates[5]);
+			} else {
+				source.feedback("Usage: " + name + " " + expectedArgs[0]);
+				return;
+			}
+		} catch (NumberFormatException e) {
+			source.feedback("Coordinates must be integers between " + Integer.MIN_VALUE + " and " + Integer.MAX_VALUE);
+			return;
+		}
+		if(!started) {
+			source.feedback("Couldn't start: Either a pregeneration is already running or there is nothing to resume.");
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package cubyz.command;
+
+import java.util.ArrayList;
+
+import cubyz.api.Resource;
+import cubyz.utils.metrics.Metrics;
+
+/**
+ * Shows the metrics of the server, like cache hit rates, generation times and network usage.
+ */
+
+public class StatsCommand extends CommandBase {
+
+	public StatsCommand() {
+		name = "/stats";
+		expectedArgs = new String[1];
+		expectedArgs[0] = "[prefix, for example cache or generation.mapFragments]";
+	}
+
+	@Override
+	public Resource getRegistryID() {
+		return new Resource("cubyz", "stats");
+	}
+
+	@Override
+	public void commandExecute(CommandSource source, String[] args) {
+		if(args.length > 2) {
+			source.feedback("Usage: " + name + " " + expectedArgs[0]);
+			return;
+		}
+		ArrayList<String> lines = Metrics.format(args.length == 2 ? args[1] : "");
+		if(lines.isEmpty()) {
+			source.feedback("No metrics found.");
+			return;
+		}
+		for(String line : lines) {
+			source.feedback(line);
+		}
+	}
+}
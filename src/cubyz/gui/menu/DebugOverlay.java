@@ -6,6 +6,7 @@ import cubyz.client.Cubyz;
 import cubyz.client.GameLauncher;
 import cubyz.client.GameLogic;
 import cubyz.gui.MenuGUI;
+import cubyz.multiplayer.CongestionControl;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.rendering.Graphics;
@@ -85,13 +86,15 @@ public class DebugOverlay extends MenuGUI {
 				Graphics.drawText(0 * GUI_SCALE, 40 * GUI_SCALE, "XYZ: " + Math.round(100*x)/100.0 + ", " + Math.round(100*y)/100.0 + ", " + Math.round(100*z)/100.0);
 				Graphics.drawText(0 * GUI_SCALE, 50 * GUI_SCALE, "Render Distance: " + ClientSettings.RENDER_DISTANCE);
 				Graphics.drawText(0 * GUI_SCALE, 60 * GUI_SCALE, "Game Time: " + Cubyz.world.gameTime);
-				Graphics.drawText(0*GUI_SCALE, 70*GUI_SCALE, "Queue Size: " + ThreadPool.getQueueSize());
+				Graphics.drawText(0*GUI_SCALE, 70*GUI_SCALE, "Queue Size: " + ThreadPool.MESHING.getQueueSize() + " meshing, " + ThreadPool.GENERATION.getQueueSize() + " generation");
 				Graphics.drawText(0 * GUI_SCALE, 80 * GUI_SCALE, "Biome: " + (Cubyz.world.playerBiome == null ? "null" : Cubyz.world.playerBiome.getRegistryID()));
 
 				Graphics.drawText(0*GUI_SCALE, 100*GUI_SCALE, "Packet loss: "+Math.round(10000*UDPConnection.packets_resent/(float)UDPConnection.packets_sent)/100.0f+"% ("+UDPConnection.packets_resent+"/"+ UDPConnection.packets_sent +")");
 				Graphics.drawText(0*GUI_SCALE, 110*GUI_SCALE, "Important Protocols total: " + (Protocols.bytesReceived[Protocols.IMPORTANT_PACKET & 0xff] >> 10) + "kiB in " + Protocols.packetsReceived[Protocols.IMPORTANT_PACKET & 0xff] + " packets");
 				Graphics.drawText(0*GUI_SCALE, 120*GUI_SCALE, "Keep-alive: " + (Protocols.bytesReceived[Protocols.KEEP_ALIVE] >> 10) + "kiB in " + Protocols.packetsReceived[Protocols.KEEP_ALIVE] + " packets");
-				int yText = 130;
+				CongestionControl congestionControl = Cubyz.world.serverConnection.getCongestionControl();
+				Graphics.drawText(0*GUI_SCALE, 130*GUI_SCALE, "Connection: RTT " + Math.round(congestionControl.getRoundTripTime()) + " ms, window " + congestionControl.getWindow() + " packets, loss " + Math.round(1000*congestionControl.getLossRate())/10.0f + "%, " + (congestionControl.getBandwidth() >> 10) + " kiB/s, queue " + Cubyz.world.serverConnection.getSendQueueSize());
+				int yText = 140;
 				for(int i = 0; i < Protocols.bytesReceived.length; i++) {
 					if(Protocols.list[i] != null) {
 						Graphics.drawText(0*GUI_SCALE, yText*GUI_SCALE, Protocols.list[i].getClass().getSimpleName() + ": " + (Protocols.bytesReceived[i] >> 10) + "kiB in " + Protocols.packetsReceived[i] + " packets");
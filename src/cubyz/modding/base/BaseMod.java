@@ -52,6 +52,8 @@ public class BaseMod implements Mod {
 		CubyzRegistries.COMMAND_REGISTRY.register(new CureCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new TimeCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new TPCommand());
+		CubyzRegistries.COMMAND_REGISTRY.register(new PregenerateCommand());
+		CubyzRegistries.COMMAND_REGISTRY.register(new StatsCommand());
 
 		if(Constants.getGameSide() == Side.CLIENT) {
 			ClientRegistries.GUIS.register(new WorkbenchGUI());
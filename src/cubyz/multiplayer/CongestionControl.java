@@ -0,0 +1,202 @@
+package cubyz.multiplayer;
+
+/**
+ * AIMD congestion control and pacing for the important packets of a connection.<br>
+ * The congestion window limits the number of unacknowledged packets. It grows by one packet per acknowledged packet during slow start and by one packet per window afterwards.
+ * When a packet needs to be resent the window is halved, at most once per window of packets, and the resend timeout doubles until the next acknowledgement arrives.
+ * The window never drops below the amount of data that was recently delivered within one round trip, so random packet loss, which is common on wireless connections, doesn't throttle the connection.<br>
+ * The round trip time is measured with the keep-alive ids: Each keep-alive echoes the id of the last keep-alive that was received, together with the time it was held back.<br>
+ * Acknowledgements only arrive with the keep-alives, so the packets are spread evenly over the round trip time plus the keep-alive interval, instead of sending the whole window at once.
+ */
+
+public final class CongestionControl {
+	private static final int MIN_WINDOW = 4;
+	private static final int INITIAL_WINDOW = 32;
+	private static final int MAX_WINDOW = ReceiveWindow.MAX_SIZE/2;
+	private static final long MIN_RESEND_TIMEOUT = 200000000; // ns
+	private static final long MAX_RESEND_TIMEOUT = 5000000000L; // ns
+	private static final int MAX_BACKOFF = 4;
+	/** Sends faster than one window per acknowledgement delay, so the window can fill up. */
+	private static final float PACING_GAIN = 2;
+	/** The maximum time the pacing can catch up with, when the sender woke up late. */
+	private static final long MAX_BURST_TIME = 2000000; // ns
+	/** The number of acknowledgements(keep-alives) over which the maximum bandwidth and the minimum round trip time are taken. */
+	private static final int FILTER_LENGTH = 16;
+	/** Weight of a single packet in the loss rate. */
+	private static final double LOSS_WEIGHT = 1.0/256;
+	/** Marks a keep-alive that doesn't echo anything. */
+	public static final int NO_HOLD_TIME = 0xffff;
+
+	/** The time between two keep-alives in ns. */
+	private final long ackDelay;
+
+	private float window = INITIAL_WINDOW;
+	private float slowStartThreshold = MAX_WINDOW;
+	/** Losses of packets before this id belong to the last loss event. */
+	private int recoveryEnd;
+	private int backoff;
+
+	private final long[] keepAliveSendTimes = new long[64];
+	private int lastKeepAliveSent = -1;
+	/** In ns, negative until the first measurement. */
+	private long smoothedRTT = -1;
+	private long rttVariance;
+	private final long[] recentRTTs = new long[FILTER_LENGTH];
+	private int rttIndex;
+
+	private long lastAckTime;
+	private long lastAckedBytes;
+	/** In bytes per second. */
+	private double bandwidth;
+	private final double[] recentBandwidths = new double[FILTER_LENGTH];
+	private int bandwidthIndex;
+	private double averagePacketSize = 1024;
+	private double lossRate;
+
+	private long nextSendTime;
+
+	/**
+	 * @param keepAliveInterval the time between two keep-alives in ms.
+	 */
+	public CongestionControl(int keepAliveInterval) {
+		ackDelay = keepAliveInterval*1000000L;
+	}
+
+	public synchronized void onKeepAliveSent(int id, long time) {
+		keepAliveSendTimes[id & keepAliveSendTimes.length - 1] = time;
+		lastKeepAliveSent = id;
+	}
+
+	/**
+	 * Updates the round trip time.
+	 * @param echoedId the id of the last keep-alive the other side received.
+	 * @param holdTime the time in ms between receiving that keep-alive and sending its echo.
+	 */
+	public synchronized void onKeepAliveReceived(int echoedId, int holdTime, long time) {
+		if(holdTime == NO_HOLD_TIME) return;
+		int age = lastKeepAliveSent - echoedId;
+		if(age < 0 || age >= keepAliveSendTimes.length) return;
+		long sample = time - keepAliveSendTimes[echoedId & keepAliveSendTimes.length - 1] - holdTime*1000000L;
+		if(sample < 0) return;
+		recentRTTs[rttIndex++ & FILTER_LENGTH - 1] = sample;
+		// Like TCP(RFC 6298):
+		if(smoothedRTT < 0) {
+			smoothedRTT = sample;
+			rttVariance = sample/2;
+		} else {
+			rttVariance += (Math.abs(smoothedRTT - sample) - rttVariance)/4;
+			smoothedRTT += (sample - smoothedRTT)/8;
+		}
+	}
+
+	/**
+	 * @param packets the number of packets that were acknowledged.
+	 * @param totalAckedBytes the total number of bytes that were acknowledged over the lifetime of the connection.
+	 */
+	public synchronized void onAck(int packets, long totalAckedBytes, long time) {
+		if(lastAckTime != 0 && time > lastAckTime) {
+			double sample = (totalAckedBytes - lastAckedBytes)*1e9/(time - lastAckTime);
+			bandwidth += (sample - bandwidth)/4;
+			recentBandwidths[bandwidthIndex++ & FILTER_LENGTH - 1] = sample;
+		}
+		if(packets != 0) {
+			averagePacketSize += ((double)(totalAckedBytes - lastAckedBytes)/packets - averagePacketSize)/8;
+		}
+		lastAckTime = time;
+		lastAckedBytes = totalAckedBytes;
+		if(packets == 0) return;
+		backoff = 0;
+		lossRate *= Math.pow(1 - LOSS_WEIGHT, packets);
+		if(window < slowStartThreshold) {
+			window += packets;
+		} else {
+			window += packets/window;
+		}
+		window = Math.min(window, MAX_WINDOW);
+	}
+
+	/**
+	 * @param id the id of the packet that gets resent.
+	 * @param nextId the id of the next new packet.
+	 */
+	public synchronized void onLoss(int id, int nextId) {
+		lossRate = lossRate*(1 - LOSS_WEIGHT) + LOSS_WEIGHT;
+		if(id - recoveryEnd < 0) return; // Sent before the window was reduced.
+		recoveryEnd = nextId;
+		slowStartThreshold = Math.max(MIN_WINDOW, Math.max(window/2, getDeliveredWindow()));
+		window = Math.min(window, slowStartThreshold);
+		backoff = Math.min(backoff + 1, MAX_BACKOFF);
+	}
+
+	/**
+	 * @return the number of packets that were recently delivered within one round trip, including the time until the acknowledgement gets sent.
+	 */
+	private float getDeliveredWindow() {
+		double maxBandwidth = 0;
+		for(double sample : recentBandwidths) {
+			maxBandwidth = Math.max(maxBandwidth, sample);
+		}
+		long minRTT = Long.MAX_VALUE;
+		for(int i = 0; i < Math.min(rttIndex, FILTER_LENGTH); i++) {
+			minRTT = Math.min(minRTT, recentRTTs[i]);
+		}
+		if(minRTT == Long.MAX_VALUE) return 0;
+		return (float)(maxBandwidth*(minRTT + ackDelay)/1e9/averagePacketSize);
+	}
+
+	/**
+	 * @return the time in ns after which an unacknowledged packet gets resent.
+	 */
+	public synchronized long getResendTimeout() {
+		long timeout;
+		if(smoothedRTT < 0) {
+			timeout = 3*ackDelay;
+		} else {
+			timeout = smoothedRTT + 4*rttVariance + ackDelay;
+		}
+		timeout <<= backoff;
+		return Math.max(MIN_RESEND_TIMEOUT, Math.min(MAX_RESEND_TIMEOUT, timeout));
+	}
+
+	public synchronized boolean isWindowFull(int packetsInFlight) {
+		return packetsInFlight >= (int)window;
+	}
+
+	/**
+	 * @return the time in ns when the next packet may be sent.
+	 */
+	public synchronized long getNextSendTime() {
+		return nextSendTime;
+	}
+
+	public synchronized void onPacketSent(long time) {
+		long rtt = Math.max(smoothedRTT, 0) + ackDelay;
+		long interval = (long)(rtt/(window*PACING_GAIN));
+		nextSendTime = Math.max(nextSendTime, time - MAX_BURST_TIME) + interval;
+	}
+
+	/**
+	 * @return the round trip time in ms, or -1 if it wasn't measured yet.
+	 */
+	public synchronized float getRoundTripTime() {
+		return smoothedRTT < 0 ? -1 : smoothedRTT/1e6f;
+	}
+
+	public synchronized int getWindow() {
+		return (int)window;
+	}
+
+	/**
+	 * @return the fraction of the recently sent packets that needed to be resent.
+	 */
+	public synchronized float getLossRate() {
+		return (float)lossRate;
+	}
+
+	/**
+	 * @return the rate of acknowledged data in bytes per second.
+	 */
+	public synchronized long getBandwidth() {
+		return (long)bandwidth;
+	}
+}
@@ -0,0 +1,254 @@
+package cubyz.multiplayer;
+
+import java.util.Arrays;
+
+/**
+ * The quantized positions and velocities of the entities and item entities near a player, as they were sent in one update.<br>
+ * Both sides keep the recent snapshots, so each snapshot only needs to contain the differences to the last one the client acknowledged.
+ * Entities that didn't change aren't sent at all, entities that aren't in the new snapshot anymore are sent as removed.
+ * New entities use their position relative to the origin, the corner of the chunk that contains the player, so all numbers stay small.<br>
+ * Layout of a section: For every changed entity: varint key difference to the previous one(≥ 1), varint bitmask of the changed fields, zigzag varint of each changed field.
+ * A 0 ends the changes. The removed entities follow in the same way, only with the key differences.
+ */
+
+public final class EntitySnapshot {
+	/** Position, rotation and velocity. */
+	public static final int ENTITY_FIELDS = 9;
+	/** Position and velocity. */
+	public static final int ITEM_FIELDS = 6;
+	/** ~4 mm */
+	public static final double POSITION_SCALE = 256;
+	public static final double ROTATION_SCALE = 4096;
+	public static final double VELOCITY_SCALE = 256;
+	/** The number of snapshots that are kept on both sides. Older acknowledgements are ignored. */
+	public static final int HISTORY_SIZE = 32;
+
+	public final int id;
+	public final Section entities;
+	public final Section items;
+
+	public EntitySnapshot(int id, Section entities, Section items) {
+		this.id = id;
+		this.entities = entities;
+		this.items = items;
+	}
+
+	public static long quantizePosition(double value) {
+		return Math.round(value*POSITION_SCALE);
+	}
+
+	public static long quantizeRotation(double value) {
+		return Math.round(value*ROTATION_SCALE);
+	}
+
+	public static long quantizeVelocity(double value) {
+		return Math.round(value*VELOCITY_SCALE);
+	}
+
+	/**
+	 * The snapshots indexed by their id.
+	 */
+	public static final class History {
+		private final EntitySnapshot[] snapshots = new EntitySnapshot[HISTORY_SIZE];
+
+		public synchronized void put(EntitySnapshot snapshot) {
+			snapshots[snapshot.id & HISTORY_SIZE - 1] = snapshot;
+		}
+
+		/**
+		 * @return null if the snapshot was already overwritten.
+		 */
+		public synchronized EntitySnapshot get(int id) {
+			EntitySnapshot snapshot = snapshots[id & HISTORY_SIZE - 1];
+			if(snapshot == null || snapshot.id != id) return null;
+			return snapshot;
+		}
+
+		public synchronized void clear() {
+			Arrays.fill(snapshots, null);
+		}
+	}
+
+	public static final class Writer {
+		private byte[] data;
+		private int length;
+
+		public Writer(int initialCapacity) {
+			data = new byte[Math.max(16, initialCapacity)];
+		}
+
+		public void writeVarLong(long value) {
+			if(length + 10 > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length*2, length + 10));
+			}
+			while((value & ~0x7fL) != 0) {
+				data[length++] = (byte)(value & 0x7f | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte)value;
+		}
+
+		public void writeZigZag(long value) {
+			writeVarLong(value << 1 ^ value >> 63);
+		}
+
+		public byte[] toArray() {
+			return Arrays.copyOf(data, length);
+		}
+	}
+
+	public static final class Reader {
+		private final byte[] data;
+		private int offset;
+		private final int end;
+
+		public Reader(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.end = offset + length;
+		}
+
+		/**
+		 * @throws ArrayIndexOutOfBoundsException if the data ends in the middle of a number.
+		 */
+		public long readVarLong() {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				if(offset >= end) throw new ArrayIndexOutOfBoundsException("Unexpected end of the entity snapshot.");
+				byte b = data[offset++];
+				value |= (long)(b & 0x7f) << shift;
+				if(b >= 0) return value;
+			}
+			return value;
+		}
+
+		public long readZigZag() {
+			long value = readVarLong();
+			return value >>> 1 ^ -(value & 1);
+		}
+	}
+
+	/**
+	 * The states of one kind of entity, sorted by their key.
+	 */
+	public static final class Section {
+		public static final Section EMPTY = new Section(new int[0], new long[0], 0);
+
+		public final int[] keys;
+		/** count×fields values. */
+		public final long[] states;
+		public final int count;
+
+		/**
+		 * @param keys in ascending order.
+		 */
+		public Section(int[] keys, long[] states, int count) {
+			this.keys = keys;
+			this.states = states;
+			this.count = count;
+		}
+
+		/**
+		 * Writes the differences between the baseline and this section.
+		 * @param origin the state that new entities are relative to.
+		 */
+		public void writeDelta(Writer out, Section baseline, int fields, long[] origin) {
+			int lastKey = -1;
+			int j = 0;
+			for(int i = 0; i < count; i++) {
+				while(j < baseline.count && baseline.keys[j] < keys[i]) j++;
+				boolean isNew = j == baseline.count || baseline.keys[j] != keys[i];
+				long[] base = isNew ? origin : baseline.states;
+				int baseOffset = isNew ? 0 : j*fields;
+				int mask = 0;
+				for(int f = 0; f < fields; f++) {
+					if(states[i*fields + f] != base[baseOffset + f]) mask |= 1 << f;
+				}
+				if(mask == 0 && !isNew) continue;
+				out.writeVarLong((long)keys[i] - lastKey);
+				lastKey = keys[i];
+				out.writeVarLong(mask);
+				for(int f = 0; f < fields; f++) {
+					if((mask & 1 << f) != 0) {
+						out.writeZigZag(states[i*fields + f] - base[baseOffset + f]);
+					}
+				}
+			}
+			out.writeVarLong(0);
+			// The removed entities:
+			lastKey = -1;
+			int i = 0;
+			for(j = 0; j < baseline.count; j++) {
+				while(i < count && keys[i] < baseline.keys[j]) i++;
+				if(i < count && keys[i] == baseline.keys[j]) continue;
+				out.writeVarLong((long)baseline.keys[j] - lastKey);
+				lastKey = baseline.keys[j];
+			}
+			out.writeVarLong(0);
+		}
+
+		/**
+		 * Applies the differences written by {@link #writeDelta} to the baseline.
+		 */
+		public static Section readDelta(Reader in, Section baseline, int fields, long[] origin) {
+			int[] changedKeys = new int[16];
+			long[] changedStates = new long[16*fields];
+			int changedCount = 0;
+			int key = -1;
+			long delta;
+			while((delta = in.readVarLong()) != 0) {
+				key = (int)(key + delta);
+				int mask = (int)in.readVarLong();
+				int j = Arrays.binarySearch(baseline.keys, 0, baseline.count, key);
+				long[] base = j < 0 ? origin : baseline.states;
+				int baseOffset = j < 0 ? 0 : j*fields;
+				if(changedCount == changedKeys.length) {
+					changedKeys = Arrays.copyOf(changedKeys, changedCount*2);
+					changedStates = Arrays.copyOf(changedStates, changedCount*2*fields);
+				}
+				changedKeys[changedCount] = key;
+				for(int f = 0; f < fields; f++) {
+					long value = base[baseOffset + f];
+					if((mask & 1 << f) != 0) {
+						value += in.readZigZag();
+					}
+					changedStates[changedCount*fields + f] = value;
+				}
+				changedCount++;
+			}
+			int[] removedKeys = new int[16];
+			int removedCount = 0;
+			key = -1;
+			while((delta = in.readVarLong()) != 0) {
+				key = (int)(key + delta);
+				if(removedCount == removedKeys.length) {
+					removedKeys = Arrays.copyOf(removedKeys, removedCount*2);
+				}
+				removedKeys[removedCount++] = key;
+			}
+			// Merge the baseline with the changes:
+			int[] keys = new int[baseline.count + changedCount];
+			long[] states = new long[keys.length*fields];
+			int count = 0;
+			int b = 0, c = 0, r = 0;
+			while(b < baseline.count || c < changedCount) {
+				if(c == changedCount || b < baseline.count && baseline.keys[b] < changedKeys[c]) {
+					while(r < removedCount && removedKeys[r] < baseline.keys[b]) r++;
+					if(r == removedCount || removedKeys[r] != baseline.keys[b]) {
+						keys[count] = baseline.keys[b];
+						System.arraycopy(baseline.states, b*fields, states, count*fields, fields);
+						count++;
+					}
+					b++;
+				} else {
+					if(b < baseline.count && baseline.keys[b] == changedKeys[c]) b++;
+					keys[count] = changedKeys[c];
+					System.arraycopy(changedStates, c*fields, states, count*fields, fields);
+					count++;
+					c++;
+				}
+			}
+			return new Section(keys, states, count);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package cubyz.multiplayer;
 
 import cubyz.multiplayer.protocols.*;
+import cubyz.utils.metrics.Metrics;
 
 public final class Protocols {
 	public static final Protocol[] list = new Protocol[256];
@@ -19,4 +20,18 @@ public final class Protocols {
 	public static final EntityProtocol ENTITY = new EntityProtocol();
 	public static final GenericUpdateProtocol GENERIC_UPDATE = new GenericUpdateProtocol();
 	public static final ChatProtocol CHAT = new ChatProtocol();
+
+	static {
+		Metrics.gauge("network.keepAlive.bytesReceived", () -> bytesReceived[KEEP_ALIVE]);
+		Metrics.gauge("network.keepAlive.packetsReceived", () -> packetsReceived[KEEP_ALIVE]);
+		Metrics.gauge("network.important.bytesReceived", () -> bytesReceived[IMPORTANT_PACKET & 0xff]);
+		Metrics.gauge("network.important.packetsReceived", () -> packetsReceived[IMPORTANT_PACKET & 0xff]);
+		for(int i = 0; i < list.length; i++) {
+			if(list[i] == null) continue;
+			int id = i;
+			String name = list[i].getClass().getSimpleName();
+			Metrics.gauge("network." + name + ".bytesReceived", () -> bytesReceived[id]);
+			Metrics.gauge("network." + name + ".packetsReceived", () -> packetsReceived[id]);
+		}
+	}
 }
@@ -0,0 +1,113 @@
+package cubyz.multiplayer;
+
+import cubyz.utils.math.Bits;
+
+/**
+ * Receiver side of the reliable packet stream.<br>
+ * Stores the packets that arrived in a ring buffer indexed by their id, until they were processed.
+ * The buffer only grows when packets arrive out of order, up to {@link #MAX_SIZE} packets.<br>
+ * The acknowledgements contain the id up to which all packets were received, followed by a bitset of the packets received after that, so each keep-alive contains the full state and lost keep-alives don't matter.
+ */
+
+public final class ReceiveWindow {
+	/** The maximum distance between the first unprocessed packet and the newest one. */
+	public static final int MAX_SIZE = 65536;
+	/** Limits the keep-alive size. Packets beyond this are acknowledged once the gap before them is closed. */
+	private static final int MAX_ACK_BYTES = 1024;
+
+	/** Size is always a power of 2. */
+	private byte[][] ring = new byte[1024][];
+	/** The first packet that wasn't fully processed yet. */
+	private int start;
+	/** All packets before this one were received. */
+	private int received;
+	/** One after the newest packet. */
+	private int end;
+
+	private void grow(int id) {
+		int newLength = ring.length;
+		while(id - start >= newLength) {
+			newLength *= 2;
+		}
+		byte[][] newRing = new byte[newLength][];
+		for(int i = start; i != end; i++) {
+			newRing[i & newLength - 1] = ring[i & ring.length - 1];
+		}
+		ring = newRing;
+	}
+
+	public boolean isTooFarAhead(int id) {
+		return id - start >= MAX_SIZE;
+	}
+
+	/**
+	 * @return false if the packet was received before.
+	 */
+	public boolean put(int id, byte[] data) {
+		assert !isTooFarAhead(id);
+		if(id - received < 0) return false;
+		if(id - start >= ring.length) {
+			grow(id);
+		}
+		int index = id & ring.length - 1;
+		if(ring[index] != null) return false;
+		ring[index] = data;
+		if(id - end >= 0) {
+			end = id + 1;
+		}
+		while(received != end && ring[received & ring.length - 1] != null) {
+			received++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the packet or null if it, or a packet before it, wasn't received yet.
+	 */
+	public byte[] get(int id) {
+		if(id - start < 0 || id - received >= 0) return null;
+		return ring[id & ring.length - 1];
+	}
+
+	/**
+	 * @return the first packet that wasn't fully processed yet.
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * Frees all packets before the id, after they were processed.
+	 */
+	public void release(int id) {
+		assert id - received <= 0 : "Cannot release packets that weren't received.";
+		for(; start != id; start++) {
+			ring[start & ring.length - 1] = null;
+		}
+	}
+
+	/**
+	 * @return the number of bytes needed by {@link #writeAck(byte[], int)}.
+	 */
+	public int getAckLength() {
+		int bits = end - received - 1;
+		return 4 + Math.min((Math.max(bits, 0) + 7)/8, MAX_ACK_BYTES);
+	}
+
+	public void writeAck(byte[] data, int offset) {
+		int length = getAckLength();
+		Bits.putInt(data, offset, received);
+		// The packet at received is missing, so the bitset starts after it:
+		int id = received + 1;
+		for(int i = offset + 4; i < offset + length; i++) {
+			byte bits = 0;
+			for(int bit = 0; bit < 8; bit++) {
+				if(id + bit - end < 0 && ring[id + bit & ring.length - 1] != null) {
+					bits |= 1 << bit;
+				}
+			}
+			data[i] = bits;
+			id += 8;
+		}
+	}
+}
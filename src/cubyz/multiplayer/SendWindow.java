@@ -0,0 +1,169 @@
+package cubyz.multiplayer;
+
+import java.net.DatagramPacket;
+
+import cubyz.utils.math.Bits;
+
+/**
+ * Sender side of the reliable packet stream.<br>
+ * The packets that weren't acknowledged yet are stored in a ring buffer indexed by their id, so acknowledging a packet is O(1).
+ * They are also kept in a list sorted by the time they were last sent, so looking for packets that need to be resent only touches those packets.<br>
+ * When and how fast the packets are sent and resent is decided by the {@link CongestionControl}.<br>
+ * The acknowledgements are written by {@link ReceiveWindow#writeAck(byte[], int)}.
+ */
+
+public final class SendWindow {
+	private static final class Entry {
+		private final DatagramPacket packet;
+		/** In ns. */
+		private long lastSendTime;
+		/** Doubly linked list in the order the packets were last sent. */
+		private Entry previous, next;
+		private Entry(DatagramPacket packet, long lastSendTime) {
+			this.packet = packet;
+			this.lastSendTime = lastSendTime;
+		}
+	}
+
+	/** Size is always a power of 2. */
+	private Entry[] ring = new Entry[1024];
+	/** All packets before this one were acknowledged. */
+	private int oldest;
+	/** The id of the next packet. */
+	private int next;
+	/** The packet that was sent the longest time ago. */
+	private Entry first;
+	private Entry last;
+	private int size;
+	private long ackedBytes;
+
+	private void append(Entry entry) {
+		entry.previous = last;
+		entry.next = null;
+		if(last != null) last.next = entry;
+		else first = entry;
+		last = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if(entry.previous != null) entry.previous.next = entry.next;
+		else first = entry.next;
+		if(entry.next != null) entry.next.previous = entry.previous;
+		else last = entry.previous;
+		entry.previous = entry.next = null;
+	}
+
+	private void grow() {
+		Entry[] newRing = new Entry[ring.length*2];
+		for(int id = oldest; id != next; id++) {
+			newRing[id & newRing.length - 1] = ring[id & ring.length - 1];
+		}
+		ring = newRing;
+	}
+
+	/**
+	 * Stores the packet until it gets acknowledged.
+	 * @param id must be one higher than the id of the previous packet.
+	 * @param time the time in ns when the packet is sent.
+	 */
+	public synchronized void add(int id, DatagramPacket packet, long time) {
+		assert id == next : "Packets must be added in order.";
+		if(next - oldest == ring.length) {
+			grow();
+		}
+		Entry entry = new Entry(packet, time);
+		ring[id & ring.length - 1] = entry;
+		append(entry);
+		next++;
+		size++;
+	}
+
+	/**
+	 * @return true if the packet wasn't acknowledged before.
+	 */
+	private boolean acknowledge(int id) {
+		if(id - oldest < 0 || id - next >= 0) return false;
+		int index = id & ring.length - 1;
+		Entry entry = ring[index];
+		if(entry == null) return false;
+		ring[index] = null;
+		unlink(entry);
+		size--;
+		ackedBytes += entry.packet.getLength();
+		return true;
+	}
+
+	/**
+	 * Removes all packets that were acknowledged by the other side.
+	 * @param data contains the id up to which all packets were received, followed by a bitset of the packets that were received after the next missing one.
+	 * @return the number of packets that were acknowledged for the first time.
+	 */
+	public synchronized int receiveAck(byte[] data, int offset, int length) {
+		if(length < 4) return 0;
+		int acknowledged = 0;
+		int received = Bits.getInt(data, offset);
+		if(received - next > 0) {
+			received = next; // Can only happen if the other side is confused, for example after a reconnect.
+		}
+		for(; oldest - received < 0; oldest++) {
+			if(acknowledge(oldest)) acknowledged++;
+		}
+		// The packet at received is missing, so the bitset starts after it:
+		int id = received + 1;
+		for(int i = offset + 4; i < offset + length; i++) {
+			byte bits = data[i];
+			for(int bit = 0; bit < 8; bit++) {
+				if((bits & 1 << bit) != 0 && acknowledge(id + bit)) {
+					acknowledged++;
+				}
+			}
+			id += 8;
+		}
+		while(oldest != next && ring[oldest & ring.length - 1] == null) {
+			oldest++;
+		}
+		return acknowledged;
+	}
+
+	/**
+	 * Marks the packet that was sent the longest time ago as resent, if it was sent before the given time.
+	 * @return the packet that needs to be resent or null.
+	 */
+	public synchronized DatagramPacket pollResend(long sentBefore, long time) {
+		if(first == null || first.lastSendTime - sentBefore > 0) return null;
+		Entry entry = first;
+		entry.lastSendTime = time;
+		unlink(entry);
+		append(entry);
+		return entry.packet;
+	}
+
+	/**
+	 * @return the time in ns when the next packet needs to be resent, or Long.MAX_VALUE if all packets were acknowledged.
+	 */
+	public synchronized long getNextResendTime(long timeout) {
+		if(first == null) return Long.MAX_VALUE;
+		return first.lastSendTime + timeout;
+	}
+
+	/**
+	 * @return the id of the next packet.
+	 */
+	public synchronized int getNextId() {
+		return next;
+	}
+
+	/**
+	 * @return the total size of all packets that were acknowledged.
+	 */
+	public synchronized long getAckedBytes() {
+		return ackedBytes;
+	}
+
+	/**
+	 * @return the number of packets that weren't acknowledged yet.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
@@ -5,12 +5,11 @@ import cubyz.client.Cubyz;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.Logger;
-import cubyz.utils.datastructures.IntSimpleList;
-import cubyz.utils.datastructures.SimpleList;
 import cubyz.utils.math.Bits;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 
 public class UDPConnection {
@@ -31,14 +30,16 @@ public class UDPConnection {
 	private final byte[] streamBuffer = new byte[MAX_IMPORTANT_PACKET_SIZE];
 	private int streamPosition = IMPORTANT_HEADER_SIZE;
 	private int messageID = 0;
-	private final SimpleList<UnconfirmedPackage> unconfirmedPackets = new SimpleList<>(new UnconfirmedPackage[1024]);
-	private final IntSimpleList[] receivedPackets = new IntSimpleList[]{new IntSimpleList(), new IntSimpleList(), new IntSimpleList()}; // Resend the confirmation 3 times, to make sure the server doesn't need to resend stuff.
-	private final byte[][] lastReceivedPackets = new byte[65536][];
+	private final SendWindow sendWindow = new SendWindow();
+	private final ReceiveWindow receiveWindow = new ReceiveWindow();
+	/** The important packets that were not sent yet, because the congestion control didn't allow it. */
+	private final ArrayDeque<DatagramPacket> sendQueue = new ArrayDeque<>();
+	private final CongestionControl congestionControl = new CongestionControl(UDPConnectionManager.KEEP_ALIVE_INTERVAL);
+	/** The time in ns when the last keep-alive was received, 0 if none was received yet. */
+	private long lastKeepAliveReceiveTime = 0;
+	/** Position in the first unprocessed packet. */
 	private int lastIndex = 0;
 
-	int lastIncompletePacket = 0;
-
-
 	int lastKeepAliveSent = 0, lastKeepAliveReceived = 0, otherKeepAliveReceived = 0;
 
 	protected boolean disconnected = false;
@@ -88,11 +89,10 @@ public class UDPConnection {
 			Bits.putInt(streamBuffer, 1, ID);
 
 			DatagramPacket packet = new DatagramPacket(Arrays.copyOf(streamBuffer, streamPosition), streamPosition, remoteAddress, remotePort);
-			synchronized(unconfirmedPackets) {
-				unconfirmedPackets.add(new UnconfirmedPackage(packet, lastKeepAliveSent, ID));
+			synchronized(sendQueue) {
+				sendQueue.add(packet);
 			}
-			packets_sent++;
-			manager.send(packet);
+			manager.wakePacer();
 
 			streamPosition = IMPORTANT_HEADER_SIZE;
 		}
@@ -146,94 +146,68 @@ public class UDPConnection {
 		manager.send(new DatagramPacket(fullData, fullData.length, remoteAddress, remotePort));
 	}
 
-	private void receiveKeepAlive(byte[] data, int offset, int length) {
-		otherKeepAliveReceived = Bits.getInt(data, offset);
-		lastKeepAliveReceived = Bits.getInt(data, offset + 4);
-		for(int i = offset + 8; i + 8 <= offset + length; i += 8) {
-			int start = Bits.getInt(data, i);
-			int len = Bits.getInt(data, i + 4);
-			synchronized(unconfirmedPackets) {
-				for(int j = 0; j < unconfirmedPackets.size; j++) {
-					int diff = unconfirmedPackets.array[j].id - start;
-					if(diff >= 0 && diff < len) {
-						unconfirmedPackets.remove(j);
-						j--;
+	/**
+	 * Sends the queued packets and resends the lost ones, as fast as the congestion control allows.
+	 * Only called by the pacer thread of the manager.
+	 * @return the time in ns when this needs to be called again, unless new packets or acknowledgements arrive before.
+	 */
+	long sendPaced(long time) {
+		while(true) {
+			long nextSendTime = congestionControl.getNextSendTime();
+			if(nextSendTime - time > 0) return nextSendTime;
+			long timeout = congestionControl.getResendTimeout();
+			DatagramPacket packet = sendWindow.pollResend(time - timeout, time);
+			if(packet != null) {
+				congestionControl.onLoss(Bits.getInt(packet.getData(), 1), sendWindow.getNextId());
+				packets_resent++;
+			} else {
+				synchronized(sendQueue) {
+					if(sendQueue.isEmpty() || congestionControl.isWindowFull(sendWindow.size())) {
+						return sendWindow.getNextResendTime(timeout);
 					}
+					packet = sendQueue.poll();
 				}
+				sendWindow.add(Bits.getInt(packet.getData(), 1), packet, time);
 			}
+			packets_sent++;
+			congestionControl.onPacketSent(time);
+			manager.send(packet);
+		}
+	}
+
+	private void receiveKeepAlive(byte[] data, int offset, int length) {
+		if(length < 10) return;
+		long time = System.nanoTime();
+		otherKeepAliveReceived = Bits.getInt(data, offset);
+		lastKeepAliveReceiveTime = time;
+		lastKeepAliveReceived = Bits.getInt(data, offset + 4);
+		congestionControl.onKeepAliveReceived(lastKeepAliveReceived, Bits.getChar(data, offset + 8), time);
+		int acknowledged = sendWindow.receiveAck(data, offset + 10, length - 10);
+		congestionControl.onAck(acknowledged, sendWindow.getAckedBytes(), time);
+		if(acknowledged != 0) {
+			manager.wakePacer(); // The congestion window might allow more packets now.
 		}
 	}
 
 	void sendKeepAlive() {
 		byte[] data;
-		synchronized(receivedPackets) {
-			IntSimpleList runLengthEncodingStarts = new IntSimpleList();
-			IntSimpleList runLengthEncodingLengths = new IntSimpleList();
-			for(var packets : receivedPackets) {
-				outer:
-				for(int i = 0; i < packets.size; i++) {
-					int value = packets.array[i];
-					int leftRegion = -1;
-					int rightRegion = -1;
-					for(int reg = 0; reg < runLengthEncodingStarts.size; reg++) {
-						int diff = value - runLengthEncodingStarts.array[reg];
-						if(diff >= 0 && diff < runLengthEncodingLengths.array[reg]) {
-							continue outer; // Value is already in the list.
-						}
-						if(diff == runLengthEncodingLengths.array[reg]) {
-							leftRegion = reg;
-						}
-						if(diff == -1) {
-							rightRegion = reg;
-						}
-					}
-					if(leftRegion == -1) {
-						if(rightRegion == -1) {
-							runLengthEncodingStarts.add(value);
-							runLengthEncodingLengths.add(1);
-						} else {
-							runLengthEncodingStarts.array[rightRegion]--;
-							runLengthEncodingLengths.array[rightRegion]++;
-						}
-					} else if(rightRegion == -1) {
-						runLengthEncodingLengths.array[leftRegion]++;
-					} else {
-						// Needs to combine the regions:
-						runLengthEncodingLengths.array[leftRegion] += runLengthEncodingLengths.array[rightRegion] + 1;
-						runLengthEncodingStarts.removeIndex(rightRegion);
-						runLengthEncodingLengths.removeIndex(rightRegion);
-					}
-				}
-			}
-			IntSimpleList putBackToFront = receivedPackets[receivedPackets.length - 1];
-			System.arraycopy(receivedPackets, 0, receivedPackets, 1, receivedPackets.length - 1);
-			receivedPackets[0] = putBackToFront;
-			receivedPackets[0].clear();
-			data = new byte[runLengthEncodingStarts.size*8 + 9];
+		long time = System.nanoTime();
+		int id = lastKeepAliveSent++;
+		synchronized(receiveWindow) {
+			data = new byte[receiveWindow.getAckLength() + 11];
 			data[0] = Protocols.KEEP_ALIVE;
-			Bits.putInt(data, 1, lastKeepAliveSent++);
+			Bits.putInt(data, 1, id);
 			Bits.putInt(data, 5, otherKeepAliveReceived);
-			int cur = 9;
-			for(int i = 0; i < runLengthEncodingStarts.size; i++) {
-				Bits.putInt(data, cur, runLengthEncodingStarts.array[i]);
-				cur += 4;
-				Bits.putInt(data, cur, runLengthEncodingLengths.array[i]);
-				cur += 4;
+			// The time the echoed keep-alive was held back, so the other side can calculate the round trip time:
+			int holdTime = CongestionControl.NO_HOLD_TIME;
+			if(lastKeepAliveReceiveTime != 0) {
+				holdTime = (int)Math.min((time - lastKeepAliveReceiveTime)/1000000, CongestionControl.NO_HOLD_TIME - 1);
 			}
-			assert(cur == data.length);
+			Bits.putChar(data, 9, (char)holdTime);
+			receiveWindow.writeAck(data, 11);
 		}
+		congestionControl.onKeepAliveSent(id, time);
 		manager.send(new DatagramPacket(data, data.length, remoteAddress, remotePort));
-		synchronized(unconfirmedPackets) {
-			// Resend packets that didn't receive confirmation within the last 2 keep-alive signals.
-			for(int i = 0; i < unconfirmedPackets.size; i++) {
-				if(lastKeepAliveReceived - unconfirmedPackets.array[i].lastKeepAliveSentBefore >= 2) {
-					packets_sent++;
-					packets_resent++;
-					manager.send(unconfirmedPackets.array[i].packet);
-					unconfirmedPackets.array[i].lastKeepAliveSentBefore = lastKeepAliveSent;
-				}
-			}
-		}
 		flush();
 		if(bruteforcingPort) { // Brute force through some ports.
 			// This is called every 100 ms, so if I send 10 requests it shouldn't be too bad.
@@ -251,6 +225,19 @@ public class UDPConnection {
 		}
 	}
 
+	public CongestionControl getCongestionControl() {
+		return congestionControl;
+	}
+
+	/**
+	 * @return the number of important packets that wait for the congestion control.
+	 */
+	public int getSendQueueSize() {
+		synchronized(sendQueue) {
+			return sendQueue.size();
+		}
+	}
+
 	public boolean isConnected() {
 		return otherKeepAliveReceived != 0;
 	}
@@ -259,25 +246,27 @@ public class UDPConnection {
 		byte[] data;
 		byte protocol;
 		while(true) {
-			synchronized(lastReceivedPackets) {
-				int id = lastIncompletePacket;
-				if(lastReceivedPackets[id & 65535] == null)
+			synchronized(receiveWindow) {
+				int id = receiveWindow.getStart();
+				byte[] packet = receiveWindow.get(id);
+				if(packet == null)
 					return;
 				int newIndex = lastIndex;
-				protocol = lastReceivedPackets[id & 65535][newIndex++];
+				protocol = packet[newIndex++];
 				if(Cubyz.world == null && protocol != Protocols.HANDSHAKE.id)
 					return;
 				// Determine the next packet length:
 				int len = 0;
 				int shift = 0;
 				while(true) {
-					if(newIndex == lastReceivedPackets[id & 65535].length) {
+					if(newIndex == packet.length) {
 						newIndex = 0;
 						id++;
-						if(lastReceivedPackets[id & 65535] == null)
+						packet = receiveWindow.get(id);
+						if(packet == null)
 							return;
 					}
-					byte nextByte = lastReceivedPackets[id & 65535][newIndex++];
+					byte nextByte = packet[newIndex++];
 					len |= (nextByte & 0x7f) << shift;
 					if((nextByte & 0x80) != 0) {
 						shift += 7;
@@ -287,28 +276,28 @@ public class UDPConnection {
 				}
 
 				// Check if there is enough data available to fill the packets needs:
-				int dataAvailable = lastReceivedPackets[id & 65535].length - newIndex;
+				int dataAvailable = packet.length - newIndex;
 				for(int idd = id + 1; dataAvailable < len; idd++) {
-					if(lastReceivedPackets[idd & 65535] == null) return;
-					dataAvailable += lastReceivedPackets[idd & 65535].length;
+					byte[] nextPacket = receiveWindow.get(idd);
+					if(nextPacket == null) return;
+					dataAvailable += nextPacket.length;
 				}
 
 				// Copy the data to an array:
 				data = new byte[len];
 				int offset = 0;
 				do {
-					dataAvailable = Math.min(lastReceivedPackets[id & 65535].length - newIndex, len - offset);
-					System.arraycopy(lastReceivedPackets[id & 65535], newIndex, data, offset, dataAvailable);
+					dataAvailable = Math.min(packet.length - newIndex, len - offset);
+					System.arraycopy(packet, newIndex, data, offset, dataAvailable);
 					newIndex += dataAvailable;
 					offset += dataAvailable;
-					if(newIndex == lastReceivedPackets[id & 65535].length) {
+					if(newIndex == packet.length) {
 						id++;
 						newIndex = 0;
+						packet = receiveWindow.get(id);
 					}
 				} while(offset != len);
-				for(; lastIncompletePacket != id; lastIncompletePacket++) {
-					lastReceivedPackets[lastIncompletePacket & 65535] = null;
-				}
+				receiveWindow.release(id);
 				lastIndex = newIndex;
 			}
 			Protocols.bytesReceived[protocol & 0xff] += data.length + 1;
@@ -343,18 +332,14 @@ public class UDPConnection {
 					Logger.error("Server 'reconnected'? This makes no sense and the game can't handle that.");
 				}
 			}
-			if(id - lastIncompletePacket >= 65536) {
-				Logger.warning("Many incomplete packages. Cannot process any more packages for now.");
-				return;
-			}
-			synchronized(receivedPackets) {
-				receivedPackets[0].add(id);
-			}
-			synchronized(lastReceivedPackets) {
-				if(id - lastIncompletePacket < 0 || lastReceivedPackets[id & 65535] != null) {
-					return; // Already received the package in the past.
+			synchronized(receiveWindow) {
+				if(receiveWindow.isTooFarAhead(id)) {
+					Logger.warning("Many incomplete packages. Cannot process any more packages for now.");
+					return;
+				}
+				if(!receiveWindow.put(id, Arrays.copyOfRange(data, IMPORTANT_HEADER_SIZE, len))) {
+					return; // Already received the package in the past. The next keep-alive confirms it again.
 				}
-				lastReceivedPackets[id & 65535] = Arrays.copyOfRange(data, IMPORTANT_HEADER_SIZE, len);
 				// Check if a message got completed:
 				collectPackets();
 			}
@@ -377,16 +362,4 @@ public class UDPConnection {
 		manager.removeConnection(this);
 		Logger.info("Disconnected");
 	}
-
-	private static final class UnconfirmedPackage {
-		private final DatagramPacket packet;
-		private int lastKeepAliveSentBefore;
-		private final int id;
-
-		private UnconfirmedPackage(DatagramPacket packet, int lastKeepAliveSentBefore, int id) {
-			this.packet = packet;
-			this.lastKeepAliveSentBefore = lastKeepAliveSentBefore;
-			this.id = id;
-		}
-	}
 }
@@ -6,15 +6,21 @@ import java.io.IOException;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 
 import static cubyz.Constants.CONNECTION_TIMEOUT;
 
 public final class UDPConnectionManager extends Thread {
+	/** The time between two keep-alives in ms. The keep-alives also carry the acknowledgements. */
+	static final int KEEP_ALIVE_INTERVAL = 100;
+
 	private final DatagramSocket socket;
 	private final DatagramPacket receivedPacket;
 	public final ArrayList<UDPConnection> connections = new ArrayList<>();
 	private final ArrayList<DatagramPacket> requests = new ArrayList<>();
 	private volatile boolean running = true;
+	/** Sends the important packets of all connections, paced by their congestion control. */
+	private final Thread pacer;
 	public String externalIPPort = null;
 	private InetAddress externalAddress = null;
 	private int externalPort = 0;
@@ -36,7 +42,10 @@ public final class UDPConnectionManager extends Thread {
 
 		receivedPacket = new DatagramPacket(new byte[65536], 65536);
 
+		pacer = new Thread(this::runPacer, "UDP-Pacer");
+		pacer.setDaemon(true);
 		start();
+		pacer.start();
 		if(online) {
 			makeOnline();
 		}
@@ -70,6 +79,35 @@ public final class UDPConnectionManager extends Thread {
 		}
 	}
 
+	/**
+	 * Lets the pacer check the connections again, for example after new packets were queued.
+	 */
+	public void wakePacer() {
+		LockSupport.unpark(pacer);
+	}
+
+	private void runPacer() {
+		try {
+			while(running) {
+				long time = System.nanoTime();
+				long wakeUpTime = time + KEEP_ALIVE_INTERVAL*1000000L;
+				UDPConnection[] connections;
+				synchronized(this.connections) {
+					connections = this.connections.toArray(new UDPConnection[0]);
+				}
+				for(UDPConnection connection : connections) {
+					wakeUpTime = Math.min(wakeUpTime, connection.sendPaced(time));
+				}
+				long waitTime = wakeUpTime - System.nanoTime();
+				if(waitTime > 0) {
+					LockSupport.parkNanos(this, waitTime);
+				}
+			}
+		} catch (Exception e) {
+			Logger.crash(e);
+		}
+	}
+
 	public byte[] sendRequest(DatagramPacket packet, long timeout) {
 		send(packet);
 		byte[] request = packet.getData();
@@ -108,6 +146,7 @@ public final class UDPConnectionManager extends Thread {
 			connections.get(0).disconnect();
 		}
 		running = false;
+		wakePacer();
 		if(Thread.currentThread() != this) {
 			interrupt();
 			try {
@@ -169,7 +208,7 @@ public final class UDPConnectionManager extends Thread {
 				}
 
 				// Send a keep-alive packet roughly every 100 ms:
-				if(System.currentTimeMillis() - lastTime > 100 && running) {
+				if(System.currentTimeMillis() - lastTime > KEEP_ALIVE_INTERVAL && running) {
 					lastTime = System.currentTimeMillis();
 					for(UDPConnection connection : connections.toArray(new UDPConnection[0])) {
 						if(lastTime - connection.lastConnection > CONNECTION_TIMEOUT && connection.isConnected()) {
@@ -3,10 +3,16 @@ package cubyz.multiplayer.protocols;
 import cubyz.client.Cubyz;
 import cubyz.multiplayer.Protocol;
 import cubyz.multiplayer.UDPConnection;
+import cubyz.multiplayer.server.BlockUpdateQueue;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.math.Bits;
+import cubyz.world.Chunk;
 
+/**
+ * Client → server: int x, int y, int z, int newBlock.<br>
+ * Server → client: the chunk groups of a {@link BlockUpdateQueue}.
+ */
 public class BlockUpdateProtocol extends Protocol {
 	public BlockUpdateProtocol() {
 		super((byte)7);
@@ -14,14 +20,30 @@ public class BlockUpdateProtocol extends Protocol {
 
 	@Override
 	public void receive(UDPConnection conn, byte[] data, int offset, int length) {
-		int x = Bits.getInt(data, offset);
-		int y = Bits.getInt(data, offset + 4);
-		int z = Bits.getInt(data, offset + 8);
-		int newBlock = Bits.getInt(data, offset + 12);
 		if(conn instanceof User) {
+			int x = Bits.getInt(data, offset);
+			int y = Bits.getInt(data, offset + 4);
+			int z = Bits.getInt(data, offset + 8);
+			int newBlock = Bits.getInt(data, offset + 12);
 			Server.world.updateBlock(x, y, z, newBlock);
-		} else {
-			Cubyz.world.remoteUpdateBlock(x, y, z, newBlock);
+			return;
+		}
+		int end = offset + length;
+		while(offset < end) {
+			int wx = Bits.getInt(data, offset);
+			int wy = Bits.getInt(data, offset + 4);
+			int wz = Bits.getInt(data, offset + 8);
+			int count = Bits.getChar(data, offset + 12);
+			offset += BlockUpdateQueue.HEADER_SIZE;
+			for(int i = 0; i < count; i++) {
+				int position = Bits.getShort(data, offset);
+				int newBlock = Bits.getInt(data, offset + 2);
+				offset += BlockUpdateQueue.ENTRY_SIZE;
+				int x = wx + (position >> 2*Chunk.chunkShift & Chunk.chunkMask);
+				int y = wy + (position >> Chunk.chunkShift & Chunk.chunkMask);
+				int z = wz + (position & Chunk.chunkMask);
+				Cubyz.world.remoteUpdateBlock(x, y, z, newBlock);
+			}
 		}
 	}
 
@@ -33,4 +55,11 @@ public class BlockUpdateProtocol extends Protocol {
 		Bits.putInt(data, 12, newBlock);
 		conn.sendImportant(this, data);
 	}
+
+	/**
+	 * @param data the chunk groups, as encoded by {@link BlockUpdateQueue.ChunkUpdates#encode()}.
+	 */
+	public void sendBatch(User user, byte[] data) {
+		user.sendImportant(this, data);
+	}
 }
@@ -7,6 +7,11 @@ import cubyz.multiplayer.server.User;
 import cubyz.utils.math.Bits;
 import cubyz.world.ChunkData;
 
+/**
+ * Requests chunks from the server and cancels requests that the client doesn't need anymore.<br>
+ * Each entry is 16 bytes: int wx, int wy, int wz, int voxelSize. A negative voxelSize cancels the request for the chunk with the positive voxelSize.<br>
+ * A voxelSize of 0 tells the server that the client forgot the normal chunk, so it needs to be sent in full the next time. Pending requests for it stay untouched.
+ */
 public class ChunkRequestProtocol extends Protocol {
 	public ChunkRequestProtocol() {
 		super((byte)2);
@@ -17,18 +22,37 @@ public class ChunkRequestProtocol extends Protocol {
 		assert length % 16 == 0;
 		int end = offset + length;
 		while(offset < end) {
+			int voxelSize = Bits.getInt(data, offset + 12);
 			ChunkData request = new ChunkData(
 				Bits.getInt(data, offset),
 				Bits.getInt(data, offset + 4),
 				Bits.getInt(data, offset + 8),
-				Bits.getInt(data, offset + 12)
+				Math.max(1, Math.abs(voxelSize))
 			);
-			Server.world.queueChunk(request, (User)conn);
+			if(voxelSize == 0) {
+				Server.world.chunkManager.forgetChunk(request, (User)conn);
+			} else if(voxelSize < 0) {
+				Server.world.chunkManager.cancelChunk(request, (User)conn);
+			} else {
+				Server.world.queueChunk(request, (User)conn);
+			}
 			offset += 16;
 		}
 	}
 
 	public void sendRequest(UDPConnection conn, ChunkData[] requests) {
+		send(conn, requests, 1);
+	}
+
+	public void sendCancel(UDPConnection conn, ChunkData[] requests) {
+		send(conn, requests, -1);
+	}
+
+	public void sendForget(UDPConnection conn, ChunkData[] chunks) {
+		send(conn, chunks, 0);
+	}
+
+	private void send(UDPConnection conn, ChunkData[] requests, int voxelSizeSign) {
 		if(requests.length == 0) return;
 		byte[] data = new byte[16*requests.length];
 		int off = 0;
@@ -39,7 +63,7 @@ public class ChunkRequestProtocol extends Protocol {
 			off += 4;
 			Bits.putInt(data, off, requests[i].wz);
 			off += 4;
-			Bits.putInt(data, off, requests[i].voxelSize);
+			Bits.putInt(data, off, voxelSizeSign*requests[i].voxelSize);
 			off += 4;
 		}
 		conn.sendImportant(this, data);
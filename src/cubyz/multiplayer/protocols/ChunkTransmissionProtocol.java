@@ -3,17 +3,26 @@ package cubyz.multiplayer.protocols;
 import cubyz.client.Cubyz;
 import cubyz.multiplayer.Protocol;
 import cubyz.multiplayer.UDPConnection;
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.rendering.VisibleChunk;
+import cubyz.utils.Logger;
 import cubyz.utils.ThreadPool;
+import cubyz.utils.compression.CompressionAlgorithm;
+import cubyz.utils.compression.CompressionAlgorithms;
+import cubyz.utils.datastructures.ByteArrayView;
 import cubyz.utils.math.Bits;
 import cubyz.world.Chunk;
 import cubyz.world.ChunkData;
 import cubyz.world.ReducedChunkVisibilityData;
-import cubyz.world.save.ChunkIO;
-
-import java.util.Arrays;
 
+/**
+ * Packet layout: int wx, int wy, int wz, int voxelSize, byte compression id, compressed chunk data.<br>
+ * If the compression id is {@link #UNCHANGED} there is no data. The client should reuse the chunk it received before.
+ */
 public class ChunkTransmissionProtocol extends Protocol {
+	private static final int HEADER_SIZE = 17;
+	private static final byte UNCHANGED = (byte)0xff;
+
 	public ChunkTransmissionProtocol() {
 		super((byte)3);
 	}
@@ -24,64 +33,84 @@ public class ChunkTransmissionProtocol extends Protocol {
 		int wy = Bits.getInt(data, offset + 4);
 		int wz = Bits.getInt(data, offset + 8);
 		int voxelSize = Bits.getInt(data, offset + 12);
-		offset += 16;
-		length -= 16;
+		if(data[offset + 16] == UNCHANGED) {
+			ChunkData request = new ChunkData(wx, wy, wz, voxelSize);
+			VisibleChunk ch = Cubyz.world.takeCachedChunk(request);
+			if(ch != null) {
+				ThreadPool.MESHING.addTask(new ChunkLoadTask(ch));
+			} else { // It was evicted in the meantime.
+				Cubyz.world.forgetChunks(new ChunkData[] {request});
+				Cubyz.world.queueChunks(new ChunkData[] {request});
+			}
+			return;
+		}
+		CompressionAlgorithm compression = CompressionAlgorithms.getById(data[offset + 16]);
+		offset += HEADER_SIZE;
+		length -= HEADER_SIZE;
+		if(compression == null) {
+			Logger.error("Received chunk with unknown compression algorithm "+data[offset - 1]+".");
+			return;
+		}
+		ByteArrayView chunkData = compression.decompressToBuffer(data, offset, length);
+		if(chunkData == null)
+			return;
 		if(voxelSize == 1) {
-			byte[] chunkData = ChunkIO.decompressChunk(data, offset, length);
-			if(chunkData == null)
-				return;
 			VisibleChunk ch = new VisibleChunk(Cubyz.world, wx, wy, wz);
-			ch.loadFromByteArray(chunkData, chunkData.length);
-			ThreadPool.addTask(new ChunkLoadTask(ch));
+			Cubyz.world.takeCachedChunk(ch); // The old version is outdated.
+			ch.loadFromByteArray(chunkData.array, chunkData.offset, chunkData.length);
+			ThreadPool.MESHING.addTask(new ChunkLoadTask(ch));
 		} else {
-			data = ChunkIO.decompressChunk(data, offset, length);
-			length = data.length;
-			offset = 0;
-			int size = length/8;
-			byte[] x = Arrays.copyOfRange(data, offset, offset + size);
-			byte[] y = Arrays.copyOfRange(data, offset + size, offset + 2*size);
-			byte[] z = Arrays.copyOfRange(data, offset + 2*size, offset + 3*size);
-			byte[] neighbors = Arrays.copyOfRange(data, offset + 3*size, offset + 4*size);
-			int[] visibleBlocks = new int[size];
-			offset += 4*size;
-			for(int i = 0; i < size; i++) {
-				visibleBlocks[i] = Bits.getInt(data, offset);
-				offset += 4;
-			}
-			ReducedChunkVisibilityData visDat = new ReducedChunkVisibilityData(wx, wy, wz, voxelSize, x, y, z, neighbors, visibleBlocks);
+			ReducedChunkVisibilityData visDat = new ReducedChunkVisibilityData(wx, wy, wz, voxelSize, chunkData.array, chunkData.offset, chunkData.length);
 			Cubyz.chunkTree.updateChunkMesh(visDat);
 		}
 	}
 
 	public void sendChunk(UDPConnection conn, ChunkData ch) {
+		byte[] data = prepareChunk(ch);
+		if(data != null) {
+			send(conn, data);
+		}
+	}
+
+	/**
+	 * Compresses the chunk, so it can be sent to multiple users or at a later time with {@link #send(UDPConnection, byte[])}.
+	 * @return null if the chunk can't be sent.
+	 */
+	public byte[] prepareChunk(ChunkData ch) {
+		CompressionAlgorithm compression = ServerSettings.chunkTransmissionCompression;
 		byte[] data;
 		if(ch instanceof Chunk) {
-			byte[] compressedChunk = ChunkIO.compressChunk((Chunk)ch);
-			data = new byte[compressedChunk.length + 16];
-			System.arraycopy(compressedChunk, 0, data, 16, compressedChunk.length);
+			byte[] compressedChunk = compression.compress(((Chunk)ch).saveToByteArray());
+			data = new byte[compressedChunk.length + HEADER_SIZE];
+			System.arraycopy(compressedChunk, 0, data, HEADER_SIZE, compressedChunk.length);
 		} else if(ch instanceof ReducedChunkVisibilityData) {
-			ReducedChunkVisibilityData visDat = (ReducedChunkVisibilityData)ch;
-			data = new byte[visDat.size*8];
-			System.arraycopy(visDat.x, 0, data, 0, visDat.size);
-			System.arraycopy(visDat.y, 0, data, visDat.size, visDat.size);
-			System.arraycopy(visDat.z, 0, data, 2*visDat.size, visDat.size);
-			System.arraycopy(visDat.neighbors, 0, data, 3*visDat.size, visDat.size);
-			int offset = 4*visDat.size;
-			for(int i = 0; i < visDat.size; i++) {
-				Bits.putInt(data, offset, visDat.visibleBlocks[i]);
-				offset += 4;
-			}
-			byte[] compressedData = ChunkIO.compressChunk(data);
-			data = new byte[compressedData.length + 16];
-			System.arraycopy(compressedData, 0, data, 16, compressedData.length);
+			data = ((ReducedChunkVisibilityData)ch).saveToByteArray();
+			byte[] compressedData = compression.compress(data);
+			data = new byte[compressedData.length + HEADER_SIZE];
+			System.arraycopy(compressedData, 0, data, HEADER_SIZE, compressedData.length);
 		} else {
 			assert false: "Invalid chunk class to send over the network " + ch.getClass() + ".";
-			return;
+			return null;
 		}
 		Bits.putInt(data, 0, ch.wx);
 		Bits.putInt(data, 4, ch.wy);
 		Bits.putInt(data, 8, ch.wz);
 		Bits.putInt(data, 12, ch.voxelSize);
+		data[16] = compression.id;
+		return data;
+	}
+
+	public void send(UDPConnection conn, byte[] preparedChunk) {
+		conn.sendImportant(this, preparedChunk);
+	}
+
+	public void sendUnchanged(UDPConnection conn, ChunkData ch) {
+		byte[] data = new byte[HEADER_SIZE];
+		Bits.putInt(data, 0, ch.wx);
+		Bits.putInt(data, 4, ch.wy);
+		Bits.putInt(data, 8, ch.wz);
+		Bits.putInt(data, 12, ch.voxelSize);
+		data[16] = UNCHANGED;
 		conn.sendImportant(this, data);
 	}
 
@@ -95,6 +124,11 @@ public class ChunkTransmissionProtocol extends Protocol {
 			return ch.getPriority(Cubyz.player);
 		}
 
+		@Override
+		public Object getBucketKey() {
+			return ch.getPriorityCell();
+		}
+
 		@Override
 		public boolean isStillNeeded() {
 			return Cubyz.chunkTree.findNode(ch) != null;
@@ -3,42 +3,101 @@ package cubyz.multiplayer.protocols;
 import cubyz.client.Cubyz;
 import cubyz.client.entity.ClientEntityManager;
 import cubyz.client.entity.InterpolatedItemEntityManager;
+import cubyz.multiplayer.EntitySnapshot;
 import cubyz.multiplayer.Protocol;
 import cubyz.multiplayer.UDPConnection;
+import cubyz.multiplayer.server.EntityGrid;
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.multiplayer.server.User;
 import cubyz.utils.math.Bits;
+import cubyz.utils.metrics.Counter;
+import cubyz.utils.metrics.Metrics;
+import cubyz.world.Chunk;
+import org.joml.Vector3d;
 
+/**
+ * Server → client: short time, char snapshot id, char baseline id(equal to the snapshot id if there is none), int origin x, y, z, the entity section, the item entity section.
+ * See {@link EntitySnapshot} for the layout of the sections.<br>
+ * Client → server: char id of the received snapshot.
+ */
 public class EntityPositionProtocol extends Protocol {
-	private static final byte ENTITY = 0, ITEM = 1;
+	private static final int HEADER_SIZE = 18;
+
+	private static final Counter sentBytes = Metrics.counter("entitySnapshots.bytesSent");
+	private static final Counter snapshotsWithoutBaseline = Metrics.counter("entitySnapshots.withoutBaseline");
+
 	public EntityPositionProtocol() {
 		super((byte)6);
 	}
 
+	private static long[] getOrigin(int fields, int x, int y, int z) {
+		long[] origin = new long[fields];
+		origin[0] = EntitySnapshot.quantizePosition(x);
+		origin[1] = EntitySnapshot.quantizePosition(y);
+		origin[2] = EntitySnapshot.quantizePosition(z);
+		return origin;
+	}
+
 	@Override
 	public void receive(UDPConnection conn, byte[] data, int offset, int length) {
+		if(conn instanceof User) {
+			((User)conn).acknowledgeEntitySnapshot(Bits.getChar(data, offset));
+			return;
+		}
 		if(Cubyz.world == null) return;
-		short time = Bits.getShort(data, offset+1);
-		if(data[offset] == ENTITY) {
-			offset += 3;
-			length -= 3;
-			ClientEntityManager.serverUpdate(time, data, offset, length);
-		} else if(data[offset] == ITEM) {
-			offset += 3;
-			length -= 3;
-			((InterpolatedItemEntityManager)Cubyz.world.itemEntityManager).readPosition(data, offset, length, time);
+		short time = Bits.getShort(data, offset);
+		int id = Bits.getChar(data, offset + 2);
+		int baselineId = Bits.getChar(data, offset + 4);
+		int ox = Bits.getInt(data, offset + 6);
+		int oy = Bits.getInt(data, offset + 10);
+		int oz = Bits.getInt(data, offset + 14);
+		EntitySnapshot baseline = null;
+		if(baselineId != id) {
+			baseline = Cubyz.world.entitySnapshots.get(baselineId);
+			if(baseline == null) return; // Can only happen after the client was reset. The server will send a full snapshot once it stops getting acknowledgements.
 		}
+		EntitySnapshot.Reader in = new EntitySnapshot.Reader(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+		EntitySnapshot.Section entities = EntitySnapshot.Section.readDelta(in, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.entities, EntitySnapshot.ENTITY_FIELDS, getOrigin(EntitySnapshot.ENTITY_FIELDS, ox, oy, oz));
+		EntitySnapshot.Section items = EntitySnapshot.Section.readDelta(in, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.items, EntitySnapshot.ITEM_FIELDS, getOrigin(EntitySnapshot.ITEM_FIELDS, ox, oy, oz));
+		Cubyz.world.entitySnapshots.put(new EntitySnapshot(id, entities, items));
+		byte[] ack = new byte[2];
+		Bits.putChar(ack, 0, (char)id);
+		conn.sendUnimportant(this, ack);
+
+		ClientEntityManager.serverUpdate(time, entities);
+		((InterpolatedItemEntityManager)Cubyz.world.itemEntityManager).readPosition(items, time);
 	}
 
-	public void send(UDPConnection conn, byte[] entityData, byte[] itemData) {
-		byte[] fullData = new byte[entityData.length + 3];
-		fullData[0] = ENTITY;
-		Bits.putShort(fullData, 1, (short)System.currentTimeMillis());
-		System.arraycopy(entityData, 0, fullData, 3, entityData.length);
-		conn.sendUnimportant(this, fullData);
-
-		fullData = new byte[itemData.length + 3];
-		fullData[0] = ITEM;
-		Bits.putShort(fullData, 1, (short)System.currentTimeMillis());
-		System.arraycopy(itemData, 0, fullData, 3, itemData.length);
-		conn.sendUnimportant(this, fullData);
+	/**
+	 * Sends the entities near the player, relative to the last snapshot the user acknowledged.
+	 */
+	public void send(User user, EntityGrid grid) {
+		Vector3d position = user.player.getPosition();
+		int id = user.nextEntitySnapshotId();
+		EntitySnapshot baseline = user.getEntitySnapshotBaseline(id);
+		EntitySnapshot snapshot = grid.createSnapshot(id, position, Math.min(user.renderDistance, ServerSettings.entityDistance));
+		user.sentEntitySnapshots.put(snapshot);
+		if(baseline == null) {
+			snapshotsWithoutBaseline.increment();
+		}
+
+		int ox = (int)Math.floor(position.x) & ~Chunk.chunkMask;
+		int oy = (int)Math.floor(position.y) & ~Chunk.chunkMask;
+		int oz = (int)Math.floor(position.z) & ~Chunk.chunkMask;
+		EntitySnapshot.Writer out = new EntitySnapshot.Writer(HEADER_SIZE + 8*(snapshot.entities.count + snapshot.items.count));
+		snapshot.entities.writeDelta(out, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.entities, EntitySnapshot.ENTITY_FIELDS, getOrigin(EntitySnapshot.ENTITY_FIELDS, ox, oy, oz));
+		snapshot.items.writeDelta(out, baseline == null ? EntitySnapshot.Section.EMPTY : baseline.items, EntitySnapshot.ITEM_FIELDS, getOrigin(EntitySnapshot.ITEM_FIELDS, ox, oy, oz));
+		byte[] sections = out.toArray();
+
+		byte[] data = new byte[HEADER_SIZE + sections.length];
+		Bits.putShort(data, 0, (short)System.currentTimeMillis());
+		Bits.putChar(data, 2, (char)id);
+		Bits.putChar(data, 4, (char)(baseline == null ? id : baseline.id));
+		Bits.putInt(data, 6, ox);
+		Bits.putInt(data, 10, oy);
+		Bits.putInt(data, 14, oz);
+		System.arraycopy(sections, 0, data, HEADER_SIZE, sections.length);
+		user.sendUnimportant(this, data);
+		sentBytes.add(data.length);
 	}
 }
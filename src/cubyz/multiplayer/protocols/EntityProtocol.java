@@ -5,9 +5,9 @@ import cubyz.client.entity.ClientEntityManager;
 import cubyz.multiplayer.Protocol;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
+import cubyz.multiplayer.server.EntityGrid;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
-import cubyz.utils.math.Bits;
 import cubyz.world.entity.Entity;
 import cubyz.world.entity.ItemEntityManager;
 import pixelguys.json.*;
@@ -56,31 +56,9 @@ public class EntityProtocol extends Protocol {
 
 	public void sendToClients(Entity[] currentEntities, Entity[] lastSentEntities, ItemEntityManager itemEntities) {
 		synchronized(itemEntities) {
-			byte[] data = new byte[currentEntities.length*(4 + 3*8 + 3*8 + 3*4)];
-			int offset = 0;
 			JsonArray entityChanges = new JsonArray();
 			outer:
 			for(Entity ent : currentEntities) {
-				Bits.putInt(data, offset, ent.id);
-				offset += 4;
-				Bits.putDouble(data, offset, ent.getPosition().x);
-				offset += 8;
-				Bits.putDouble(data, offset, ent.getPosition().y);
-				offset += 8;
-				Bits.putDouble(data, offset, ent.getPosition().z);
-				offset += 8;
-				Bits.putFloat(data, offset, ent.getRotation().x);
-				offset += 4;
-				Bits.putFloat(data, offset, ent.getRotation().y);
-				offset += 4;
-				Bits.putFloat(data, offset, ent.getRotation().z);
-				offset += 4;
-				Bits.putDouble(data, offset, ent.vx);
-				offset += 8;
-				Bits.putDouble(data, offset, ent.vy);
-				offset += 8;
-				Bits.putDouble(data, offset, ent.vz);
-				offset += 8;
 				for(int i = 0; i < lastSentEntities.length; i++) {
 					if(lastSentEntities[i] == ent) {
 						lastSentEntities[i] = null;
@@ -95,7 +73,6 @@ public class EntityProtocol extends Protocol {
 				entityData.put("name", ent.name);
 				entityChanges.add(entityData);
 			}
-			assert offset == data.length;
 			for(Entity ent : lastSentEntities) {
 				if(ent != null) {
 					entityChanges.add(new JsonInt(ent.id));
@@ -116,6 +93,7 @@ public class EntityProtocol extends Protocol {
 					}
 				}
 			}
+			EntityGrid grid = new EntityGrid(currentEntities, itemEntities);
 			for(User user : Server.users) {
 				if(!user.isConnected()) continue;
 				if(!user.receivedFirstEntityData) {
@@ -134,7 +112,7 @@ public class EntityProtocol extends Protocol {
 					user.sendImportant(this, fullEntityData.toString().getBytes(StandardCharsets.UTF_8));
 					user.receivedFirstEntityData = true;
 				}
-				Protocols.ENTITY_POSITION.send(user, data, itemEntities.getPositionAndVelocityData());
+				Protocols.ENTITY_POSITION.send(user, grid);
 			}
 		}
 	}
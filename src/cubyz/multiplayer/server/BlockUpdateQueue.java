@@ -0,0 +1,157 @@
+package cubyz.multiplayer.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import cubyz.multiplayer.Protocols;
+import cubyz.utils.math.Bits;
+import cubyz.utils.metrics.Counter;
+import cubyz.utils.metrics.Metrics;
+import cubyz.world.Chunk;
+import cubyz.world.ChunkData;
+
+/**
+ * Collects the block updates of one server update and sends them in a single message per user.<br>
+ * Updates of the same position are coalesced, only the last one gets sent.
+ * The updates are grouped by chunk, so each update only needs the 15 bit position inside its chunk.
+ * Users only receive the chunks within their render distance. The chunks outside of it were changed, so the client gets the new version when it requests them again.<br>
+ * Layout of a chunk group: int wx, int wy, int wz, char count, count×(short position, int block), with position = x << 10 | y << 5 | z.
+ */
+
+public final class BlockUpdateQueue {
+	public static final int HEADER_SIZE = 14;
+	public static final int ENTRY_SIZE = 6;
+
+	private static final Counter queuedUpdates = Metrics.counter("blockUpdates.queued");
+	private static final Counter coalescedUpdates = Metrics.counter("blockUpdates.coalesced");
+	private static final Counter sentBytes = Metrics.counter("blockUpdates.bytesSent");
+
+	public static final class ChunkUpdates {
+		public final ChunkData chunk;
+		private short[] positions = new short[8];
+		private int[] blocks = new int[8];
+		private int size;
+		/** Open addressing table storing index + 1 into the arrays. Size is always a power of 2. */
+		private int[] table = new int[16];
+
+		private ChunkUpdates(ChunkData chunk) {
+			this.chunk = chunk;
+		}
+
+		private int find(int position) {
+			int mask = table.length - 1;
+			int slot = position*0x9e3779b1 >>> 16 & mask;
+			while(table[slot] != 0 && positions[table[slot] - 1] != position) {
+				slot = slot + 1 & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * @return false if the position was already updated before and got overwritten.
+		 */
+		private boolean put(short position, int block) {
+			int slot = find(position);
+			if(table[slot] != 0) {
+				blocks[table[slot] - 1] = block;
+				return false;
+			}
+			if(size == positions.length) {
+				positions = Arrays.copyOf(positions, size*2);
+				blocks = Arrays.copyOf(blocks, size*2);
+			}
+			positions[size] = position;
+			blocks[size] = block;
+			size++;
+			table[slot] = size;
+			if(size*2 > table.length) {
+				table = new int[table.length*2];
+				for(int i = 0; i < size; i++) {
+					table[find(positions[i])] = i + 1;
+				}
+			}
+			return true;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public byte[] encode() {
+			byte[] data = new byte[HEADER_SIZE + ENTRY_SIZE*size];
+			Bits.putInt(data, 0, chunk.wx);
+			Bits.putInt(data, 4, chunk.wy);
+			Bits.putInt(data, 8, chunk.wz);
+			Bits.putChar(data, 12, (char)size);
+			for(int i = 0; i < size; i++) {
+				Bits.putShort(data, HEADER_SIZE + ENTRY_SIZE*i, positions[i]);
+				Bits.putInt(data, HEADER_SIZE + ENTRY_SIZE*i + 2, blocks[i]);
+			}
+			return data;
+		}
+	}
+
+	private HashMap<ChunkData, ChunkUpdates> chunks = new HashMap<>();
+
+	public void add(int x, int y, int z, int newBlock) {
+		ChunkData ch = new ChunkData(x & ~Chunk.chunkMask, y & ~Chunk.chunkMask, z & ~Chunk.chunkMask, 1);
+		short position = (short)((x & Chunk.chunkMask) << 2*Chunk.chunkShift | (y & Chunk.chunkMask) << Chunk.chunkShift | (z & Chunk.chunkMask));
+		queuedUpdates.increment();
+		synchronized(this) {
+			ChunkUpdates updates = chunks.get(ch);
+			if(updates == null) {
+				updates = new ChunkUpdates(ch);
+				chunks.put(ch, updates);
+			}
+			if(!updates.put(position, newBlock)) {
+				coalescedUpdates.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes all queued updates.
+	 * @return the updates grouped by chunk.
+	 */
+	public ArrayList<ChunkUpdates> takeAll() {
+		HashMap<ChunkData, ChunkUpdates> old;
+		synchronized(this) {
+			if(chunks.isEmpty()) return new ArrayList<>();
+			old = chunks;
+			chunks = new HashMap<>();
+		}
+		return new ArrayList<>(old.values());
+	}
+
+	/**
+	 * Sends the queued updates to all users that have the chunks in their render distance.
+	 * Called once per server update.
+	 */
+	public void flush(User[] users) {
+		ArrayList<ChunkUpdates> updates = takeAll();
+		if(updates.isEmpty()) return;
+		byte[][] encoded = new byte[updates.size()][];
+		for(int i = 0; i < encoded.length; i++) {
+			encoded[i] = updates.get(i).encode();
+		}
+		boolean[] isNeeded = new boolean[encoded.length];
+		for(User user : users) {
+			int length = 0;
+			for(int i = 0; i < encoded.length; i++) {
+				isNeeded[i] = user.isInRenderDistance(updates.get(i).chunk);
+				if(isNeeded[i]) length += encoded[i].length;
+			}
+			if(length == 0) continue;
+			byte[] data = new byte[length];
+			int offset = 0;
+			for(int i = 0; i < encoded.length; i++) {
+				if(!isNeeded[i]) continue;
+				System.arraycopy(encoded[i], 0, data, offset, encoded[i].length);
+				offset += encoded[i].length;
+			}
+			Protocols.BLOCK_UPDATE.sendBatch(user, data);
+			sentBytes.add(length);
+		}
+	}
+}
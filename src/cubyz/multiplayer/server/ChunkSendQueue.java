@@ -0,0 +1,170 @@
+package cubyz.multiplayer.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import cubyz.multiplayer.Protocols;
+import cubyz.utils.metrics.Counter;
+import cubyz.utils.metrics.Histogram;
+import cubyz.utils.metrics.Metrics;
+import cubyz.world.Chunk;
+import cubyz.world.ChunkData;
+import org.joml.Vector3d;
+
+/**
+ * The chunks that are ready to be sent to a user.<br>
+ * Chunks finish their generation in an arbitrary order, so instead of sending them right away they are queued and sent in the server update, the closest ones first.
+ * Each update may only send {@link ServerSettings#chunkSendBudget} KiB to the user, and nothing while the connection still holds back packets, so the order is decided as late as possible.<br>
+ * The priorities are only recalculated when the player entered another chunk. Chunks that left the render distance in the meantime are dropped.<br>
+ * Chunks that were changed while they were waiting get serialized again before sending, so they don't overwrite the newer blocks on the client.
+ */
+
+public class ChunkSendQueue {
+	/** Nothing gets sent while the congestion control holds back more packets than this. */
+	private static final int MAX_HELD_BACK_PACKETS = 64;
+	/** Only drop chunks after 10 seconds to account for trouble when for example teleporting. */
+	private static final long MIN_AGE_FOR_DROP = 10000;
+	/** Marks chunks that don't have a version, like the reduced chunks. */
+	public static final int NO_VERSION = -1;
+
+	private static final Counter sentChunks = Metrics.counter("chunkSendQueue.sent");
+	private static final Counter droppedChunks = Metrics.counter("chunkSendQueue.dropped");
+	private static final Counter refreshedChunks = Metrics.counter("chunkSendQueue.refreshed");
+	private static final Histogram waitTime = Metrics.histogram("chunkSendQueue.waitTime");
+
+	private static final class Entry {
+		private final ChunkData ch;
+		/** The chunk the data was created from. Used to check if it was changed while it was waiting. */
+		private final ChunkData source;
+		private final byte[] data;
+		private final int version;
+		private final long creationTime = System.currentTimeMillis();
+		private final long creationTimeNs = System.nanoTime();
+		private float priority;
+		/** Entries are removed from the heap lazily. */
+		private boolean removed;
+		private Entry(ChunkData ch, ChunkData source, byte[] data, int version) {
+			this.ch = ch;
+			this.source = source;
+			this.data = data;
+			this.version = version;
+		}
+	}
+
+	private final User user;
+	private final HashMap<ChunkData, Entry> entries = new HashMap<>();
+	private PriorityQueue<Entry> heap = new PriorityQueue<>((a, b) -> Float.compare(b.priority, a.priority));
+	/** Hash of the chunk that contained the player during the last priority update. */
+	private long lastPlayerChunk;
+	/** The bytes that may still be sent. Becomes negative after a chunk that was bigger than the remaining budget. */
+	private long budget;
+
+	public ChunkSendQueue(User user) {
+		this.user = user;
+	}
+
+	/**
+	 * @param data the message, as created by {@link cubyz.multiplayer.protocols.ChunkTransmissionProtocol#prepareChunk(ChunkData)}.
+	 * @param version gets stored in {@link User#deliveredChunkVersions} when the chunk is sent. {@link #NO_VERSION} if the chunk has none.
+	 */
+	public void add(ChunkData ch, byte[] data, int version) {
+		Entry entry = new Entry(new ChunkData(ch.wx, ch.wy, ch.wz, ch.voxelSize), ch, data, version);
+		entry.priority = ch.getPriority(user.player);
+		synchronized(this) {
+			Entry old = entries.put(entry.ch, entry);
+			if(old != null) {
+				old.removed = true; // The newer data replaces it.
+			}
+			heap.add(entry);
+		}
+	}
+
+	/**
+	 * @return true if the chunk was queued.
+	 */
+	public synchronized boolean remove(ChunkData ch) {
+		Entry entry = entries.remove(ch);
+		if(entry == null) return false;
+		entry.removed = true;
+		return true;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		heap.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void updatePriorities() {
+		Vector3d position = user.player.getPosition();
+		long playerChunk = ((((long)Math.floor(position.x) >> Chunk.chunkShift)*31 + ((long)Math.floor(position.y) >> Chunk.chunkShift))*31 + ((long)Math.floor(position.z) >> Chunk.chunkShift));
+		if(playerChunk == lastPlayerChunk) return;
+		lastPlayerChunk = playerChunk;
+		long time = System.currentTimeMillis();
+		ArrayList<Entry> remaining = new ArrayList<>(entries.size());
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(time - entry.creationTime > MIN_AGE_FOR_DROP && !user.isInRenderDistance(entry.ch)) {
+				iterator.remove();
+				entry.removed = true;
+				droppedChunks.increment();
+				continue;
+			}
+			entry.priority = entry.ch.getPriority(user.player);
+			remaining.add(entry);
+		}
+		// The rebuilt heap doesn't contain the removed entries anymore:
+		PriorityQueue<Entry> newHeap = new PriorityQueue<>(Math.max(1, remaining.size()), heap.comparator());
+		newHeap.addAll(remaining);
+		heap = newHeap;
+	}
+
+	/**
+	 * Sends the most important chunks that fit into the budget of this update.
+	 * Called once per server update.
+	 */
+	public void update() {
+		long maxBudget = ServerSettings.chunkSendBudget*1024L;
+		ArrayList<Entry> toSend = new ArrayList<>();
+		synchronized(this) {
+			if(maxBudget <= 0) {
+				budget = Long.MAX_VALUE;
+			} else {
+				budget = Math.min(budget + maxBudget, maxBudget);
+			}
+			if(entries.isEmpty()) return;
+			if(user.getSendQueueSize() > MAX_HELD_BACK_PACKETS) return; // The connection can't keep up. Sending more would only delay the next chunks that might be more important.
+			updatePriorities();
+			while(budget > 0 && !heap.isEmpty()) {
+				Entry entry = heap.poll();
+				if(entry.removed) continue;
+				entries.remove(entry.ch);
+				budget -= entry.data.length;
+				toSend.add(entry);
+			}
+		}
+		for(Entry entry : toSend) {
+			byte[] data = entry.data;
+			int version = entry.version;
+			if(version != NO_VERSION && entry.source instanceof Chunk && ((Chunk)entry.source).getVersion() != version) {
+				// The chunk was changed while it was waiting. The block updates in between would get lost on the client, since they arrive before the chunk.
+				version = ((Chunk)entry.source).getVersion();
+				data = Protocols.CHUNK_TRANSMISSION.prepareChunk(entry.source);
+				if(data == null) continue;
+				refreshedChunks.increment();
+			}
+			if(version != NO_VERSION) {
+				user.deliveredChunkVersions.put(entry.ch, version);
+			}
+			Protocols.CHUNK_TRANSMISSION.send(user, data);
+			sentChunks.increment();
+			waitTime.recordSince(entry.creationTimeNs);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package cubyz.multiplayer.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import cubyz.multiplayer.EntitySnapshot;
+import cubyz.utils.datastructures.HashMapKey3D;
+import cubyz.utils.datastructures.IntSimpleList;
+import cubyz.world.Chunk;
+import cubyz.world.entity.Entity;
+import cubyz.world.entity.ItemEntityManager;
+import org.joml.Vector3d;
+
+/**
+ * Sorts the entities and item entities into chunk sized cells once per server update, so finding the ones near a player only needs to look at the surrounding cells.<br>
+ * The cells are visited closest first. When there are too many entities, the ones further away get left out, so the snapshots always fit into a single packet.
+ */
+
+public final class EntityGrid {
+	private static final int MAX_ENTITIES = 128;
+	private static final int MAX_ITEMS = 512;
+
+	private static final class Cell {
+		private final IntSimpleList entities = new IntSimpleList(4);
+		private final IntSimpleList items = new IntSimpleList(4);
+	}
+
+	/** The cell offsets within {@link #offsetRadius}, closest first. */
+	private static int[][] offsets = new int[0][];
+	private static int offsetRadius = -1;
+
+	private final Entity[] entities;
+	private final ItemEntityManager itemEntities;
+	private final HashMap<HashMapKey3D, Cell> cells = new HashMap<>();
+
+	/**
+	 * Needs to be called while holding the lock of the item entity manager.
+	 */
+	public EntityGrid(Entity[] entities, ItemEntityManager itemEntities) {
+		this.entities = entities;
+		this.itemEntities = itemEntities;
+		for(int i = 0; i < entities.length; i++) {
+			Vector3d pos = entities[i].getPosition();
+			getOrCreateCell(pos.x, pos.y, pos.z).entities.add(i);
+		}
+		for(int ii = 0; ii < itemEntities.size; ii++) {
+			int i = itemEntities.indices[ii] & 0xffff;
+			getOrCreateCell(itemEntities.posxyz[3*i], itemEntities.posxyz[3*i + 1], itemEntities.posxyz[3*i + 2]).items.add(i);
+		}
+	}
+
+	private Cell getOrCreateCell(double x, double y, double z) {
+		HashMapKey3D key = new HashMapKey3D((int)Math.floor(x) >> Chunk.chunkShift, (int)Math.floor(y) >> Chunk.chunkShift, (int)Math.floor(z) >> Chunk.chunkShift);
+		Cell cell = cells.get(key);
+		if(cell == null) {
+			cell = new Cell();
+			cells.put(key, cell);
+		}
+		return cell;
+	}
+
+	private static int[][] getOffsets(int radius) {
+		if(radius == offsetRadius) return offsets;
+		ArrayList<int[]> list = new ArrayList<>();
+		for(int dx = -radius; dx <= radius; dx++) {
+			for(int dy = -radius; dy <= radius; dy++) {
+				for(int dz = -radius; dz <= radius; dz++) {
+					if(dx*dx + dy*dy + dz*dz <= (radius + 1)*(radius + 1)) {
+						list.add(new int[] {dx, dy, dz});
+					}
+				}
+			}
+		}
+		list.sort((a, b) -> Integer.compare(a[0]*a[0] + a[1]*a[1] + a[2]*a[2], b[0]*b[0] + b[1]*b[1] + b[2]*b[2]));
+		offsets = list.toArray(new int[0][]);
+		offsetRadius = radius;
+		return offsets;
+	}
+
+	/**
+	 * @param radius in chunks.
+	 * @return the entities and item entities within the radius around the position.
+	 */
+	public EntitySnapshot createSnapshot(int id, Vector3d position, int radius) {
+		int cx = (int)Math.floor(position.x) >> Chunk.chunkShift;
+		int cy = (int)Math.floor(position.y) >> Chunk.chunkShift;
+		int cz = (int)Math.floor(position.z) >> Chunk.chunkShift;
+		double maxDistSquare = (double)radius*Chunk.chunkSize*radius*Chunk.chunkSize;
+		// (id << 32 | index), so sorting them sorts by id:
+		long[] entityOrder = new long[Math.min(entities.length, MAX_ENTITIES)];
+		int entityCount = 0;
+		int[] itemKeys = new int[Math.min(itemEntities.size, MAX_ITEMS)];
+		int itemCount = 0;
+		for(int[] offset : getOffsets(radius)) {
+			Cell cell = cells.get(new HashMapKey3D(cx + offset[0], cy + offset[1], cz + offset[2]));
+			if(cell == null) continue;
+			for(int j = 0; j < cell.entities.size && entityCount < entityOrder.length; j++) {
+				int i = cell.entities.array[j];
+				if(entities[i].getPosition().distanceSquared(position) <= maxDistSquare) {
+					entityOrder[entityCount++] = (long)entities[i].id << 32 | i;
+				}
+			}
+			for(int j = 0; j < cell.items.size && itemCount < itemKeys.length; j++) {
+				int i = cell.items.array[j];
+				double dx = itemEntities.posxyz[3*i] - position.x;
+				double dy = itemEntities.posxyz[3*i + 1] - position.y;
+				double dz = itemEntities.posxyz[3*i + 2] - position.z;
+				if(dx*dx + dy*dy + dz*dz <= maxDistSquare) {
+					itemKeys[itemCount++] = i;
+				}
+			}
+		}
+		Arrays.sort(entityOrder, 0, entityCount);
+		int[] entityKeys = new int[entityCount];
+		long[] entityStates = new long[entityCount*EntitySnapshot.ENTITY_FIELDS];
+		for(int j = 0; j < entityCount; j++) {
+			Entity ent = entities[(int)entityOrder[j]];
+			entityKeys[j] = ent.id;
+			int offset = j*EntitySnapshot.ENTITY_FIELDS;
+			entityStates[offset] = EntitySnapshot.quantizePosition(ent.getPosition().x);
+			entityStates[offset + 1] = EntitySnapshot.quantizePosition(ent.getPosition().y);
+			entityStates[offset + 2] = EntitySnapshot.quantizePosition(ent.getPosition().z);
+			entityStates[offset + 3] = EntitySnapshot.quantizeRotation(ent.getRotation().x);
+			entityStates[offset + 4] = EntitySnapshot.quantizeRotation(ent.getRotation().y);
+			entityStates[offset + 5] = EntitySnapshot.quantizeRotation(ent.getRotation().z);
+			entityStates[offset + 6] = EntitySnapshot.quantizeVelocity(ent.vx);
+			entityStates[offset + 7] = EntitySnapshot.quantizeVelocity(ent.vy);
+			entityStates[offset + 8] = EntitySnapshot.quantizeVelocity(ent.vz);
+		}
+		Arrays.sort(itemKeys, 0, itemCount);
+		long[] itemStates = new long[itemCount*EntitySnapshot.ITEM_FIELDS];
+		for(int j = 0; j < itemCount; j++) {
+			int i3 = 3*itemKeys[j];
+			int offset = j*EntitySnapshot.ITEM_FIELDS;
+			for(int k = 0; k < 3; k++) {
+				itemStates[offset + k] = EntitySnapshot.quantizePosition(itemEntities.posxyz[i3 + k]);
+				itemStates[offset + 3 + k] = EntitySnapshot.quantizeVelocity(itemEntities.velxyz[i3 + k]);
+			}
+		}
+		return new EntitySnapshot(id, new EntitySnapshot.Section(entityKeys, entityStates, entityCount), new EntitySnapshot.Section(itemKeys, itemStates, itemCount));
+	}
+}
@@ -8,7 +8,10 @@ import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnectionManager;
 import cubyz.utils.Logger;
 import cubyz.utils.Pacer;
+import cubyz.utils.ThreadPool;
 import cubyz.utils.datastructures.SimpleList;
+import cubyz.utils.metrics.Histogram;
+import cubyz.utils.metrics.Metrics;
 import cubyz.world.ServerWorld;
 import cubyz.world.entity.Entity;
 
@@ -30,6 +33,8 @@ public final class Server extends Pacer {
 				Constants.setGameSide(Side.SERVER);
 				ModLoader.load();
 			}
+			ServerSettings.load();
+			Metrics.startDump(ServerSettings.metricsDumpInterval);
 			if (world != null) {
 				stop();
 				world.cleanup();
@@ -70,12 +75,21 @@ public final class Server extends Pacer {
 	}
 
 	public static void disconnect(User user) {
-		world.forceSave();
+		// The rest of the world is handled by the autosave.
+		if(user.player != null && user.name != null) { // Connections that dropped before the handshake don't have a player.
+			world.savePlayer(user);
+		}
+		for(ThreadPool.Task task : user.pendingChunkRequests.values()) {
+			task.cancel();
+		}
+		user.pendingChunkRequests.clear();
+		user.chunkSendQueue.clear();
 		synchronized(usersList) {
 			if(user.name != null) {
 				Protocols.CHAT.sendToClients(user.name + " #ffff00left");
 			}
 			usersList.remove(user);
+			Metrics.remove("network.connection." + user.name + ".");
 			world.removeEntity(user.player);
 			users = usersList.toArray();
 		}
@@ -85,6 +99,7 @@ public final class Server extends Pacer {
 		synchronized(usersList) {
 			Protocols.CHAT.sendToClients(user.name+" #ffff00joined");
 			usersList.add(user);
+			Metrics.registerConnection(user.name, user);
 			users = usersList.toArray();
 		}
 	}
@@ -96,16 +111,22 @@ public final class Server extends Pacer {
 	}
 
 	private Entity[] lastSentEntities = new Entity[0];
+	private final Histogram updateTime = Metrics.histogram("server.updateTime");
 
 	@Override
 	public void update() {
+		long start = System.nanoTime();
 		world.update();
 
 		for(User user : users) {
 			user.update();
+			user.chunkSendQueue.update();
 		}
+		// After the chunks, so the updates don't arrive before the chunk they belong to:
+		world.blockUpdates.flush(users);
 		Entity[] entities = world.getEntities();
 		Protocols.ENTITY.sendToClients(entities, lastSentEntities, world.itemEntityManager);
 		lastSentEntities = entities;
+		updateTime.recordSince(start);
 	}
 }
@@ -0,0 +1,117 @@
+package cubyz.multiplayer.server;
+
+import java.io.File;
+
+import cubyz.client.GameLauncher;
+import cubyz.utils.compression.CompressionAlgorithm;
+import cubyz.utils.compression.CompressionAlgorithms;
+
+import pixelguys.json.JsonObject;
+import pixelguys.json.JsonParser;
+
+/**
+ * Stores all variables that can be used to tune the server.<br>
+ * They are loaded from "serverSettings.json" when the server starts.
+ */
+
+public final class ServerSettings {
+	private ServerSettings() {} // No instances allowed.
+
+	/**The time in milliseconds that changed chunks may wait in the save queue, so multiple changes can be combined into one write.*/
+	public static int chunkSaveInterval = 1000;
+
+	/**When more chunks are waiting to be saved, the threads that change chunks have to wait for the saver.*/
+	public static int maxQueuedChunkSaves = 1024;
+
+	/**The time in milliseconds that changed chunks wait before their lower resolution chunks get updated. Changes in that time are combined into one update.*/
+	public static int lodUpdateInterval = 500;
+
+	/**Only stores the blocks that differ from the generated terrain. Makes saves a lot smaller, but loading and saving chunks needs to generate their terrain.<br>
+	 * Worlds with delta saves need to be generated by the same version of the terrain generator.*/
+	public static boolean deltaChunkSaves = false;
+
+	/**The time in milliseconds between two autosaves. 0 disables the autosave.*/
+	public static int autosaveInterval = 60000;
+
+	/**The time in milliseconds that each server update may spend on the autosave. The autosave gets spread over multiple updates.*/
+	public static int autosaveBudget = 5;
+
+	/**The compression used for the region files of new worlds. Existing worlds store their own setting in world.dat.*/
+	public static CompressionAlgorithm defaultStorageCompression = CompressionAlgorithms.DEFLATE;
+
+	/**The compression used for sending chunks to clients. The clients can decompress every known algorithm.*/
+	public static CompressionAlgorithm chunkTransmissionCompression = CompressionAlgorithms.DEFLATE;
+
+	/**The memory budgets of the caches in MiB.*/
+	public static int reducedChunkCacheSize = 1024;
+	public static int normalChunkCacheSize = 512;
+	public static int mapFragmentCacheSize = 1024;
+	public static int caveMapCacheSize = 128;
+	public static int caveBiomeMapCacheSize = 32;
+	public static int climateMapCacheSize = 256;
+
+	/**The KiB of chunk data that may be sent to each player in each server update. The closest chunks are sent first. 0 disables the limit.*/
+	public static int chunkSendBudget = 64;
+
+	/**The distance in chunks within which entities and item entities are sent to a player. Limited by the render distance of the player.*/
+	public static int entityDistance = 4;
+
+	/**The number of region files that are kept open.*/
+	public static int maxOpenRegionFiles = 128;
+
+	/**The number of threads that load and generate chunks. 0 picks a number based on the available cores.*/
+	public static int generationThreads = 0;
+
+	/**The time in milliseconds between two dumps of the metrics to "logs/metrics.jsonl". 0 disables the dump.*/
+	public static int metricsDumpInterval = 60000;
+
+	public static void load() {
+		if (!new File("serverSettings.json").exists()) {
+			return;
+		}
+
+		JsonObject settings = JsonParser.parseObjectFromFile("serverSettings.json");
+
+		JsonObject storage = settings.getObjectOrNew("storage");
+		chunkSaveInterval = storage.getInt("chunkSaveInterval", chunkSaveInterval);
+		maxQueuedChunkSaves = storage.getInt("maxQueuedChunkSaves", maxQueuedChunkSaves);
+		deltaChunkSaves = storage.getBool("deltaChunkSaves", deltaChunkSaves);
+		autosaveInterval = storage.getInt("autosaveInterval", autosaveInterval);
+		autosaveBudget = storage.getInt("autosaveBudget", autosaveBudget);
+		defaultStorageCompression = CompressionAlgorithms.getByName(storage.getString("compression", defaultStorageCompression.name), defaultStorageCompression);
+
+		maxOpenRegionFiles = storage.getInt("maxOpenRegionFiles", maxOpenRegionFiles);
+
+		JsonObject cache = settings.getObjectOrNew("cacheSizeMiB");
+		reducedChunkCacheSize = cache.getInt("reducedChunks", reducedChunkCacheSize);
+		normalChunkCacheSize = cache.getInt("normalChunks", normalChunkCacheSize);
+		mapFragmentCacheSize = cache.getInt("mapFragments", mapFragmentCacheSize);
+		caveMapCacheSize = cache.getInt("caveMaps", caveMapCacheSize);
+		caveBiomeMapCacheSize = cache.getInt("caveBiomeMaps", caveBiomeMapCacheSize);
+		climateMapCacheSize = cache.getInt("climateMaps", climateMapCacheSize);
+
+		JsonObject generation = settings.getObjectOrNew("generation");
+		lodUpdateInterval = generation.getInt("lodUpdateInterval", lodUpdateInterval);
+
+		JsonObject threads = settings.getObjectOrNew("threads");
+		generationThreads = threads.getInt("generation", generationThreads);
+
+		JsonObject metrics = settings.getObjectOrNew("metrics");
+		metricsDumpInterval = metrics.getInt("dumpInterval", metricsDumpInterval);
+
+		JsonObject network = settings.getObjectOrNew("network");
+		chunkTransmissionCompression = CompressionAlgorithms.getByName(network.getString("chunkCompression", chunkTransmissionCompression.name), chunkTransmissionCompression);
+		chunkSendBudget = network.getInt("chunkSendBudget", chunkSendBudget);
+		entityDistance = network.getInt("entityDistance", entityDistance);
+	}
+
+	/**
+	 * In singleplayer the client also needs some cores for meshing, so the generation only gets two thirds of the available cores.
+	 */
+	public static int getGenerationThreadCount() {
+		if(generationThreads > 0) return generationThreads;
+		int available = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+		if(GameLauncher.renderer == null) return available; // headless server
+		return Math.max(1, available*2/3);
+	}
+}
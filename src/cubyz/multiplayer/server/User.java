@@ -1,13 +1,19 @@
 package cubyz.multiplayer.server;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import cubyz.Constants;
 import cubyz.command.CommandSource;
+import cubyz.multiplayer.EntitySnapshot;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.multiplayer.UDPConnectionManager;
+import cubyz.utils.ThreadPool;
 import cubyz.utils.interpolation.GenericInterpolation;
 import cubyz.utils.interpolation.TimeDifference;
 import cubyz.utils.math.Bits;
+import cubyz.world.Chunk;
+import cubyz.world.ChunkData;
 import cubyz.world.entity.Player;
 import org.joml.Vector3f;
 
@@ -27,6 +33,18 @@ public class User extends UDPConnection implements CommandSource {
 
 	public Thread waitingThread;
 
+	/** The chunks this user requested, that are queued or being generated. Allows the client to cancel them. */
+	public final ConcurrentHashMap<ChunkData, ThreadPool.Task> pendingChunkRequests = new ConcurrentHashMap<>();
+	/** The versions of the normal chunks that this user received and still has. The client removes chunks by cancelling them. */
+	public final ConcurrentHashMap<ChunkData, Integer> deliveredChunkVersions = new ConcurrentHashMap<>();
+	/** The chunks that are ready to be sent, closest first. */
+	public final ChunkSendQueue chunkSendQueue = new ChunkSendQueue(this);
+	/** The recent entity snapshots, the next ones are sent relative to the one the client acknowledged last. */
+	public final EntitySnapshot.History sentEntitySnapshots = new EntitySnapshot.History();
+	private int nextEntitySnapshot = 0;
+	/** -1 if no snapshot was acknowledged yet. */
+	private int lastAckedEntitySnapshot = -1;
+
 	public User(UDPConnectionManager manager, String ipPort) throws InterruptedException {
 		super(manager, ipPort);
 		this.ipPort = ipPort;
@@ -56,6 +74,43 @@ public class User extends UDPConnection implements CommandSource {
 		interpolation.outVelocity[2] = player.vz;
 	}
 
+	/**
+	 * @return true if the chunk is within the render distance of this user, with a margin of one chunk diagonal.
+	 */
+	public boolean isInRenderDistance(ChunkData ch) {
+		double minDistSquare = ch.getMinDistanceSquared(player.getPosition().x, player.getPosition().y, player.getPosition().z);
+		//                                                                   ↓ Margin for error. (diagonal of 1 chunk)
+		double targetRenderDistance = (renderDistance*Chunk.chunkSize + Chunk.chunkSize*Math.sqrt(3));//*Math.pow(LODFactor, Math.log(ch.voxelSize)/Math.log(2));
+		if(ch.voxelSize != 1) {
+			targetRenderDistance *= ch.voxelSize*LODFactor;
+		}
+		return minDistSquare <= targetRenderDistance*targetRenderDistance;
+	}
+
+	public synchronized int nextEntitySnapshotId() {
+		int id = nextEntitySnapshot;
+		nextEntitySnapshot = id + 1 & 0xffff;
+		return id;
+	}
+
+	/**
+	 * @param id the id of the next snapshot.
+	 * @return the last acknowledged snapshot or null if it is too old.
+	 */
+	public synchronized EntitySnapshot getEntitySnapshotBaseline(int id) {
+		if(lastAckedEntitySnapshot == -1) return null;
+		int age = id - lastAckedEntitySnapshot & 0xffff;
+		if(age == 0 || age >= EntitySnapshot.HISTORY_SIZE) return null;
+		return sentEntitySnapshots.get(lastAckedEntitySnapshot);
+	}
+
+	public synchronized void acknowledgeEntitySnapshot(int id) {
+		int age = nextEntitySnapshot - id & 0xffff;
+		if(age == 0 || age > EntitySnapshot.HISTORY_SIZE) return; // Wasn't sent recently.
+		if(lastAckedEntitySnapshot != -1 && (short)(id - lastAckedEntitySnapshot) <= 0) return; // Arrived out of order.
+		lastAckedEntitySnapshot = id;
+	}
+
 	public void update() {
 		short time = (short)(System.currentTimeMillis() - Constants.ENTITY_LOOKBACK);
 		time -= difference.difference;
@@ -211,20 +211,21 @@ public final class BlockDropRenderer {
 		}
 	}
 	
-	private static Cache<ItemVoxelModel> voxelModels = new Cache<ItemVoxelModel>(new ItemVoxelModel[32][32]);
+	/** Each model has a weight of 1, so at most 1024 models are kept. The space of evicted models gets reused. */
+	private static Cache<ItemVoxelModel> voxelModels = new Cache<ItemVoxelModel>(1024, model -> 1, model -> {
+		if(model.index != -1)
+			freeIndices.add(model);
+	});
 	
 	private static int getModelIndex(Item item) {
 		ItemVoxelModel compareObject = new ItemVoxelModel(item);
-		int hash = compareObject.hashCode() & voxelModels.cache.length-1;
-		synchronized(voxelModels.cache[hash]) {
+		int hash = compareObject.hashCode();
+		synchronized(voxelModels.getLock(hash)) {
 			// Check if it's already inside:
 			ItemVoxelModel result = voxelModels.find(compareObject, hash);
 			if(result != null) return result.index;
 			compareObject.init();
-			ItemVoxelModel replace = voxelModels.addToCache(compareObject, hash);
-			if(replace != null && replace.index != -1)
-				freeIndices.add(replace);
-			return compareObject.index;
+			return voxelModels.addToCache(compareObject, hash).index;
 		}
 	}
 	
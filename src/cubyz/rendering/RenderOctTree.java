@@ -36,7 +36,7 @@ public class RenderOctTree {
 			}
 			meshRequests.add(new ChunkData(wx, wy, wz, mesh.voxelSize));
 		}
-		public void update(int px, int py, int pz, int renderDistance, int maxRD, int minHeight, int maxHeight, int nearRenderDistance, ArrayList<ChunkData> meshRequests) {
+		public void update(int px, int py, int pz, int renderDistance, int maxRD, int minHeight, int maxHeight, int nearRenderDistance, ArrayList<ChunkData> meshRequests, ArrayList<ChunkData> cancelledRequests) {
 			synchronized(this) {
 				// Calculate the minimum distance between this chunk and the player:
 				double minDist = mesh.getMinDistanceSquared(px, py, pz);
@@ -45,7 +45,7 @@ public class RenderOctTree {
 					if (minDist > nearRenderDistance*nearRenderDistance) {
 						if (nextNodes != null) {
 							for(int i = 0; i < 8; i++) {
-								nextNodes[i].cleanup();
+								nextNodes[i].cleanup(cancelledRequests);
 							}
 							nextNodes = null;
 						}
@@ -62,7 +62,7 @@ public class RenderOctTree {
 						this.nextNodes = nextNodes;
 					}
 					for(int i = 0; i < 8; i++) {
-						nextNodes[i].update(px, py, pz, renderDistance, maxRD/2, minHeight, maxHeight, nearRenderDistance, meshRequests);
+						nextNodes[i].update(px, py, pz, renderDistance, maxRD/2, minHeight, maxHeight, nearRenderDistance, meshRequests, cancelledRequests);
 					}
 				// Check if parts of this OctTree require a higher resolution:
 				} else if (minDist < maxRD*maxRD/4 && size > Chunk.chunkSize*2) {
@@ -74,13 +74,13 @@ public class RenderOctTree {
 						this.nextNodes = nextNodes;
 					}
 					for(int i = 0; i < 8; i++) {
-						nextNodes[i].update(px, py, pz, renderDistance, maxRD/2, minHeight, maxHeight, nearRenderDistance, meshRequests);
+						nextNodes[i].update(px, py, pz, renderDistance, maxRD/2, minHeight, maxHeight, nearRenderDistance, meshRequests, cancelledRequests);
 					}
 				// This OctTree doesn't require higher resolution:
 				} else {
 					if (nextNodes != null) {
 						for(int i = 0; i < 8; i++) {
-							nextNodes[i].cleanup();
+							nextNodes[i].cleanup(cancelledRequests);
 						}
 						nextNodes = null;
 					}
@@ -105,14 +105,25 @@ public class RenderOctTree {
 			return frustumInt.testAab((float)(wx - x0), (float)(wy - y0), (float)(wz - z0), (float)(wx + size - x0), (float)(wy + size - y0), (float)(wz + size - z0));
 		}
 		
-		public void cleanup() {
+		/**
+		 * @param cancelledRequests collects the requests of meshes that didn't receive their chunk yet, so they can be cancelled on the server.
+		 * Received normal chunks are kept in the cache of the world instead. May be null.
+		 */
+		public void cleanup(ArrayList<ChunkData> cancelledRequests) {
 			if (mesh != null) {
 				Meshes.deleteMesh(mesh);
-				// TODO: Look into unqueue-ing the chunk when it isn't needed anymore. Maybe that could be done server-side?
+				if (cancelledRequests != null) {
+					ChunkData chunk = mesh.getChunk();
+					if (chunk == null) {
+						cancelledRequests.add(new ChunkData(wx, wy, wz, mesh.voxelSize));
+					} else if (chunk instanceof VisibleChunk) {
+						Cubyz.world.cacheChunk((VisibleChunk)chunk);
+					}
+				}
 			}
 			if (nextNodes != null) {
 				for(int i = 0; i < 8; i++) {
-					nextNodes[i].cleanup();
+					nextNodes[i].cleanup(cancelledRequests);
 				}
 			}
 		}
@@ -139,6 +150,7 @@ public class RenderOctTree {
 		maxX += LODSize/2 - Chunk.chunkSize;
 		HashMap<HashMapKey3D, OctTreeNode> newMap = new HashMap<>();
 		ArrayList<ChunkData> meshRequests = new ArrayList<>();
+		ArrayList<ChunkData> cancelledRequests = new ArrayList<>();
 		for(int x = minX; x <= maxX; x += LODSize) {
 			int maxYRenderDistance = (int)Math.ceil(Math.sqrt(maxRenderDistance*maxRenderDistance - (x - px)*(x - px)));
 			int minY = (py - maxYRenderDistance - LODMask) & ~LODMask;
@@ -178,14 +190,14 @@ public class RenderOctTree {
 						node.shouldBeRemoved = false;
 					}
 					newMap.put(key, node);
-					node.update(px, py, pz, renderDistance*Chunk.chunkSize, maxRenderDistance, 0/*Cubyz.world.chunkManager.getOrGenerateMapFragment(x, z, 32).getMinHeight()*/, 1024/*Cubyz.world.chunkManager.getOrGenerateMapFragment(x, z, 32).getMaxHeight()*/, nearRenderDistance, meshRequests);
+					node.update(px, py, pz, renderDistance*Chunk.chunkSize, maxRenderDistance, 0/*Cubyz.world.chunkManager.getOrGenerateMapFragment(x, z, 32).getMinHeight()*/, 1024/*Cubyz.world.chunkManager.getOrGenerateMapFragment(x, z, 32).getMaxHeight()*/, nearRenderDistance, meshRequests, cancelledRequests);
 				}
 			}
 		}
 		// Clean memory for unused nodes:
 		for(OctTreeNode node : roots.values()) {
 			if (node.shouldBeRemoved) {
-				node.cleanup();
+				node.cleanup(cancelledRequests);
 			} else {
 				// Mark this node to be potentially removed in the next update:
 				node.shouldBeRemoved = true;
@@ -198,6 +210,7 @@ public class RenderOctTree {
 		lastRD = renderDistance;
 		lastFactor = LODFactor;
 		// Make requests after updating the list, to avoid concurrency issues and reduce number of requests:
+		Cubyz.world.cancelChunks(cancelledRequests.toArray(new ChunkData[0]));
 		Cubyz.world.queueChunks(meshRequests.toArray(new ChunkData[0]));
 	}
 
@@ -261,7 +274,7 @@ public class RenderOctTree {
 		lastRD = 0;
 		lastFactor = 0;
 		for(OctTreeNode node : roots.values()) {
-			node.cleanup();
+			node.cleanup(null); // The server forgets the requests when the client leaves.
 		}
 		roots.clear();
 		Meshes.clearMeshQueue();
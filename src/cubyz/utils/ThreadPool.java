@@ -1,89 +1,390 @@
 package cubyz.utils;
 
-import cubyz.utils.datastructures.BlockingMaxHeap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntSupplier;
 
+import cubyz.client.ClientSettings;
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.utils.metrics.Histogram;
+import cubyz.utils.metrics.Metrics;
+
+/**
+ * Runs tasks on a set of worker threads, the one with the highest priority first.<br>
+ * Tasks are grouped into buckets by {@link Task#getBucketKey()}, for example all chunks of one spatial cell and resolution.
+ * A bucket has a single priority, taken from its first task, and its tasks are run in the order they were added.
+ * This way updating the priorities only costs one {@link Task#getPriority()} call per bucket instead of one per task.<br>
+ * Priorities are only updated after {@link #requestPriorityUpdate()}, for example when a player entered another chunk.<br>
+ * Each kind of work has its own pool, so for example a burst of far away chunk generation cannot delay the meshes close to the player.
+ */
 public final class ThreadPool {
 
-	private static final int REFRESH_TIME = 100; // The time after which all priorities get refreshed in milliseconds.
+	private static final int REFRESH_TIME = 100; // The minimum time between two priority updates in milliseconds.
+	private static final int CLEANUP_BATCH = 256; // The number of tasks that get checked with isStillNeeded() in each priority update.
+
+	/** Server side: Loads and generates the chunks that were requested by the players. */
+	public static final ThreadPool GENERATION = new ThreadPool("generation", ServerSettings::getGenerationThreadCount);
+	/** Client side: Builds the meshes of the received chunks. The lighting is calculated in the same pass. */
+	public static final ThreadPool MESHING = new ThreadPool("meshing", ClientSettings::getMeshingThreadCount);
+
+	private static final class Bucket {
+		private final Object key;
+		private float priority;
+		private int heapIndex;
+		/** Doubly linked list of the tasks. */
+		private Task first, last;
+		private Bucket(Object key, float priority) {
+			this.key = key;
+			this.priority = priority;
+		}
+	}
 
-	private static final Thread[] threads;
-	private static final BlockingMaxHeap<Task> loadList;
+	private final String name;
+	private final IntSupplier threadCount;
+	/** Guards all of the fields below. */
+	private final Object lock = new Object();
+	/** The workers are started with the first task. */
+	private Thread[] threads = new Thread[0];
+	private final HashMap<Object, Bucket> buckets = new HashMap<>();
+	/** Binary max heap of the buckets. */
+	private Bucket[] heap = new Bucket[1024];
+	private int heapSize;
+	private int size;
+	private int waitingThreads;
+	/** Position in the heap where the next check for unneeded tasks starts. */
+	private int cleanupIndex;
 
-	static {
-		threads = new Thread[Math.max(1, Runtime.getRuntime().availableProcessors() - 2)];
-		for (int i = 0; i < threads.length; i++) {
-			Thread thread = new Thread(ThreadPool::run);
-			thread.setName("Worker-Thread-" + (i+1));
+	private volatile boolean priorityUpdateRequested;
+	private final Histogram priorityUpdateTime;
+	private final Histogram taskTime;
+
+	/**
+	 * @param name used for the thread names and the metrics.
+	 * @param threadCount gets called when the pool starts and on every {@link #clear()}, so the number of threads can adapt to settings and whether the server runs in the same process.
+	 */
+	public ThreadPool(String name, IntSupplier threadCount) {
+		this.name = name;
+		this.threadCount = threadCount;
+		priorityUpdateTime = Metrics.histogram("threadPool." + name + ".priorityUpdateTime");
+		taskTime = Metrics.histogram("threadPool." + name + ".taskTime");
+		Metrics.gauge("threadPool." + name + ".queueSize", this::getQueueSize);
+		Metrics.gauge("threadPool." + name + ".buckets", this::getBucketCount);
+		Metrics.gauge("threadPool." + name + ".threads", this::getThreadCount);
+	}
+
+	/**
+	 * Starts or stops workers until the pool has the requested number of threads.
+	 * Needs to hold the lock.
+	 */
+	private void resize() {
+		int newCount = Math.max(1, threadCount.getAsInt());
+		if(newCount == threads.length) return;
+		int oldCount = threads.length;
+		threads = Arrays.copyOf(threads, newCount);
+		for(int i = oldCount; i < newCount; i++) {
+			int index = i;
+			Thread thread = new Thread(() -> run(index));
+			thread.setName("Worker-Thread-" + name + "-" + (i+1));
 			thread.setPriority(Thread.MIN_PRIORITY);
 			thread.setDaemon(true);
 			thread.start();
 			threads[i] = thread;
 		}
-		loadList = new BlockingMaxHeap<>(new Task[1024], threads.length);
+		lock.notifyAll(); // Lets the surplus workers stop.
 	}
 
-	private static void run() {
+	private void run(int index) {
 		long lastUpdate = System.currentTimeMillis();
 		while (true) {
 			Task popped;
 			try {
-				popped = loadList.extractMax();
+				popped = extractMax(index);
 			} catch (InterruptedException e) {
 				break;
 			}
+			if(popped == null) break; // The pool got smaller.
+			long start = System.nanoTime();
 			try {
-				popped.run();
+				if(popped.isStillNeeded()) {
+					popped.run();
+				}
 			} catch (Throwable e) {
 				Logger.error("Could not run task " + popped + " !");
 				Logger.error(e);
 			}
-			if(Thread.currentThread() == threads[0] && System.currentTimeMillis() - lastUpdate > REFRESH_TIME) { // Only update priorities on the first worker thread and after a specific amount of time.
+			taskTime.recordSince(start);
+			if(index == 0 && System.currentTimeMillis() - lastUpdate > REFRESH_TIME) { // Only update priorities on the first worker thread and after a specific amount of time.
 				lastUpdate = System.currentTimeMillis();
-				// Update the priority of all elements:
-				Task[] array = loadList.toArray();
-				for(Task element : array) {
-					if (element != null) {
-						if(!element.isStillNeeded()) {
-							loadList.remove(element);
-							continue;
-						}
-						element.cachedPriority = element.getPriority();
-					}
+				updatePriorities();
+			}
+		}
+	}
+
+	/**
+	 * Recomputes the bucket priorities, if requested, and removes a batch of tasks that are no longer needed.
+	 * The tasks are called outside of the lock, so they may add new tasks.
+	 */
+	private void updatePriorities() {
+		long start = System.nanoTime();
+		boolean updateRequested = priorityUpdateRequested;
+		priorityUpdateRequested = false;
+		Bucket[] bucketSnapshot = null;
+		Task[] representatives = null;
+		ArrayList<Task> cleanupTasks = new ArrayList<>();
+		synchronized(lock) {
+			if(updateRequested) {
+				bucketSnapshot = Arrays.copyOf(heap, heapSize);
+				representatives = new Task[heapSize];
+				for(int i = 0; i < heapSize; i++) {
+					representatives[i] = heap[i].first;
+				}
+			}
+			for(int i = 0; i < heapSize && cleanupTasks.size() < CLEANUP_BATCH; i++) {
+				if(cleanupIndex >= heapSize) cleanupIndex = 0;
+				for(Task task = heap[cleanupIndex++].first; task != null && cleanupTasks.size() < CLEANUP_BATCH; task = task.next) {
+					cleanupTasks.add(task);
+				}
+			}
+		}
+		float[] priorities = null;
+		if(updateRequested) {
+			priorities = new float[representatives.length];
+			for(int i = 0; i < representatives.length; i++) {
+				priorities[i] = representatives[i].getPriority();
+			}
+		}
+		cleanupTasks.removeIf(Task::isStillNeeded);
+		synchronized(lock) {
+			if(updateRequested) {
+				for(int i = 0; i < bucketSnapshot.length; i++) {
+					bucketSnapshot[i].priority = priorities[i];
+				}
+				for(int i = heapSize/2 - 1; i >= 0; i--) {
+					siftDown(i);
+				}
+			}
+			for(Task task : cleanupTasks) {
+				if(task.bucket != null) {
+					removeTask(task);
+				}
+			}
+		}
+		if(updateRequested) {
+			priorityUpdateTime.recordSince(start);
+		}
+	}
+
+	// Heap operations, need to hold the lock:
+
+	private void place(Bucket bucket, int i) {
+		heap[i] = bucket;
+		bucket.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+		Bucket bucket = heap[i];
+		while(i*2 + 1 < heapSize) {
+			int child = i*2 + 1;
+			if(child + 1 < heapSize && heap[child + 1].priority > heap[child].priority) child++;
+			if(heap[child].priority <= bucket.priority) break;
+			place(heap[child], i);
+			i = child;
+		}
+		place(bucket, i);
+	}
+
+	private void siftUp(int i) {
+		Bucket bucket = heap[i];
+		while(i > 0) {
+			int parent = (i - 1)/2;
+			if(heap[parent].priority >= bucket.priority) break;
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(bucket, i);
+	}
+
+	private void removeBucket(Bucket bucket) {
+		buckets.remove(bucket.key);
+		int i = bucket.heapIndex;
+		heapSize--;
+		if(i != heapSize) {
+			Bucket moved = heap[heapSize];
+			place(moved, i);
+			siftDown(i);
+			siftUp(moved.heapIndex);
+		}
+		heap[heapSize] = null;
+		bucket.heapIndex = -1;
+	}
+
+	private void removeTask(Task task) {
+		Bucket bucket = task.bucket;
+		if(task.previous != null) task.previous.next = task.next;
+		else bucket.first = task.next;
+		if(task.next != null) task.next.previous = task.previous;
+		else bucket.last = task.previous;
+		task.previous = task.next = null;
+		task.bucket = null;
+		size--;
+		if(bucket.first == null) {
+			removeBucket(bucket);
+		}
+	}
+
+	/**
+	 * @return null if the worker should stop.
+	 */
+	private Task extractMax(int index) throws InterruptedException {
+		synchronized(lock) {
+			while(true) {
+				if(index >= threads.length) return null;
+				if(heapSize != 0) break;
+				waitingThreads++;
+				try {
+					lock.wait();
+				} finally {
+					waitingThreads--;
 				}
-				loadList.updatePriority();
 			}
+			Task task = heap[0].first;
+			removeTask(task);
+			return task;
 		}
 	}
 
-	public static void clear() {
-		loadList.clear();
+	public void clear() {
+		synchronized(lock) {
+			for(int i = 0; i < heapSize; i++) {
+				Task task = heap[i].first;
+				while(task != null) {
+					Task next = task.next;
+					task.bucket = null;
+					task.previous = task.next = null;
+					task = next;
+				}
+				heap[i] = null;
+			}
+			buckets.clear();
+			heapSize = 0;
+			size = 0;
+		}
 		// Wait until all in-progress tasks are done:
-		while(loadList.waitingThreadCount() < threads.length) {
+		while(true) {
+			synchronized(lock) {
+				if(waitingThreads >= threads.length) break;
+			}
 			try {
 				Thread.sleep(1);
 			} catch(Exception e) {}
 		}
+		synchronized(lock) {
+			if(threads.length != 0) {
+				resize();
+			}
+		}
 	}
 
-	public static void addTask(Task task) {
-		if(task.isStillNeeded()) {
-			task.cachedPriority = task.getPriority();
-			loadList.add(task);
+	public void addTask(Task task) {
+		if(!task.isStillNeeded()) return;
+		Object key = task.getBucketKey();
+		float priority = task.getPriority();
+		synchronized(lock) {
+			if(task.bucket != null) return; // Already queued.
+			if(threads.length == 0) {
+				resize();
+			}
+			Bucket bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new Bucket(key, priority);
+				buckets.put(key, bucket);
+				if(heapSize == heap.length) {
+					heap = Arrays.copyOf(heap, heapSize*2);
+				}
+				place(bucket, heapSize++);
+				siftUp(heapSize - 1);
+			}
+			task.pool = this;
+			task.bucket = bucket;
+			task.previous = bucket.last;
+			if(bucket.last != null) bucket.last.next = task;
+			else bucket.first = task;
+			bucket.last = task;
+			size++;
+			if(waitingThreads != 0) {
+				lock.notify();
+			}
 		}
 	}
 
-	public static int getQueueSize() {
-		return loadList.size();
+	/**
+	 * Makes the first worker thread recompute the priorities of all buckets.
+	 * Should be called when the priorities changed significantly, for example when a player entered another chunk.
+	 */
+	public void requestPriorityUpdate() {
+		priorityUpdateRequested = true;
 	}
 
-	public abstract static class Task implements Comparable<Task>, Runnable {
-		private float cachedPriority;
-		@Override
-		public int compareTo(Task other) {
-			return (int)Math.signum(cachedPriority - other.cachedPriority);
+	public int getQueueSize() {
+		synchronized(lock) {
+			return size;
 		}
+	}
+
+	public int getBucketCount() {
+		synchronized(lock) {
+			return heapSize;
+		}
+	}
+
+	public int getThreadCount() {
+		synchronized(lock) {
+			return threads.length;
+		}
+	}
+
+	public abstract static class Task implements Runnable {
+		/** The last pool this task was added to. */
+		private volatile ThreadPool pool;
+		private volatile boolean cancelled;
+		// Only accessed while holding the lock of the pool:
+		private Bucket bucket;
+		private Task previous, next;
 
+		/**
+		 * Gets called when the task is added. Priority updates only call it for the first task of each bucket.
+		 */
 		public abstract float getPriority();
 		public abstract boolean isStillNeeded();
+
+		/**
+		 * Tasks with equal keys share a bucket and its priority.
+		 * @return this by default, so every task has its own bucket.
+		 */
+		public Object getBucketKey() {
+			return this;
+		}
+
+		/**
+		 * Removes the task from the queue, if it wasn't started yet. Running tasks can check {@link #isCancelled()} to skip the rest of their work.
+		 * @return true if the task was removed from the queue.
+		 */
+		public final boolean cancel() {
+			cancelled = true;
+			ThreadPool pool = this.pool;
+			if(pool == null) return false;
+			synchronized(pool.lock) {
+				if(this.pool == pool && bucket != null) {
+					pool.removeTask(this);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public final boolean isCancelled() {
+			return cancelled;
+		}
 	}
 }
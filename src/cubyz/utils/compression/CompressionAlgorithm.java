@@ -0,0 +1,68 @@
+package cubyz.utils.compression;
+
+import java.nio.ByteBuffer;
+
+import cubyz.utils.datastructures.ByteArrayView;
+
+/**
+ * A compression algorithm that can be used for chunk storage and transmission.<br>
+ * The id is stored in region file headers and network packets, so it must never change once an algorithm was released.
+ */
+public abstract class CompressionAlgorithm {
+	private static final ThreadLocal<byte[]> threadLocalInputBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	public final byte id;
+	public final String name;
+
+	public CompressionAlgorithm(byte id, String name) {
+		assert CompressionAlgorithms.list[id & 0xff] == null : "Compression algorithms have duplicate id : " + this.getClass() + " " + CompressionAlgorithms.list[id & 0xff].getClass();
+		this.id = id;
+		this.name = name;
+		CompressionAlgorithms.list[id & 0xff] = this;
+	}
+
+	/**
+	 * @return the compressed data, which contains everything needed for decompression.
+	 */
+	public abstract byte[] compress(byte[] input);
+
+	/**
+	 * Decompresses into a thread local buffer, without allocating any memory in the common case.<br>
+	 * The returned view is only valid until the next decompression on the same thread, so it must be consumed right away.
+	 * @return the decompressed data or null if the input was invalid.
+	 */
+	public abstract ByteArrayView decompressToBuffer(byte[] input, int offset, int length);
+
+	/**
+	 * Decompresses the remaining bytes of the buffer into a thread local buffer.
+	 * By default the input is copied into another thread local buffer first.
+	 * @return the decompressed data or null if the input was invalid.
+	 * @see #decompressToBuffer(byte[], int, int)
+	 */
+	public ByteArrayView decompressToBuffer(ByteBuffer input) {
+		if(input.hasArray()) {
+			return decompressToBuffer(input.array(), input.arrayOffset() + input.position(), input.remaining());
+		}
+		byte[] buffer = threadLocalInputBuffer.get();
+		int length = input.remaining();
+		if(length > buffer.length) {
+			buffer = new byte[length];
+			threadLocalInputBuffer.set(buffer);
+		}
+		input.get(buffer, 0, length);
+		return decompressToBuffer(buffer, 0, length);
+	}
+
+	/**
+	 * @return a copy of the decompressed data or null if the input was invalid.
+	 */
+	public byte[] decompress(byte[] input, int offset, int length) {
+		ByteArrayView view = decompressToBuffer(input, offset, length);
+		return view == null ? null : view.toArray();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
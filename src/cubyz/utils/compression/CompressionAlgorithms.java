@@ -0,0 +1,32 @@
+package cubyz.utils.compression;
+
+import cubyz.utils.Logger;
+
+public final class CompressionAlgorithms {
+	private CompressionAlgorithms() {} // No instances allowed.
+
+	public static final CompressionAlgorithm[] list = new CompressionAlgorithm[256];
+
+	public static final DeflateCompression DEFLATE = new DeflateCompression();
+	public static final LZ4Compression LZ4 = new LZ4Compression();
+
+	/**
+	 * @return the algorithm with the given id or null if it's unknown.
+	 */
+	public static CompressionAlgorithm getById(int id) {
+		return list[id & 0xff];
+	}
+
+	/**
+	 * @return the algorithm with the given name or the fallback if it's unknown.
+	 */
+	public static CompressionAlgorithm getByName(String name, CompressionAlgorithm fallback) {
+		for(CompressionAlgorithm algorithm : list) {
+			if(algorithm != null && algorithm.name.equals(name)) {
+				return algorithm;
+			}
+		}
+		Logger.warning("Unknown compression algorithm \"" + name + "\". Using " + fallback + " instead.");
+		return fallback;
+	}
+}
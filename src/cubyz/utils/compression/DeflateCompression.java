@@ -0,0 +1,87 @@
+package cubyz.utils.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cubyz.utils.Logger;
+import cubyz.utils.datastructures.ByteArrayView;
+import cubyz.world.Chunk;
+
+/**
+ * Raw deflate without zlib header. Slow, but has a good compression ratio.<br>
+ * This was the only algorithm before the others were added, so it has id 0.<br>
+ * Deflater and Inflater are reused per thread, because creating them allocates native memory.
+ */
+public class DeflateCompression extends CompressionAlgorithm {
+	private static final ThreadLocal<byte[]> threadLocalOutputBuffer = ThreadLocal.withInitial(() -> new byte[4 << Chunk.chunkShift*3]);
+	private static final ThreadLocal<Deflater> threadLocalDeflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private static final ThreadLocal<Inflater> threadLocalInflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	DeflateCompression() {
+		super((byte)0, "deflate");
+	}
+
+	@Override
+	public byte[] compress(byte[] input) {
+		byte[] output = threadLocalOutputBuffer.get();
+
+		Deflater compressor = threadLocalDeflater.get();
+		int dataLength;
+		try {
+			compressor.setInput(input);
+			compressor.finish();
+			dataLength = compressor.deflate(output);
+
+			while(!compressor.finished()) { // The buffer was too small. Switching to a bigger buffer.
+				output = Arrays.copyOf(output, output.length*2);
+				threadLocalOutputBuffer.set(output);
+				dataLength += compressor.deflate(output, dataLength, output.length - dataLength);
+			}
+		} finally {
+			compressor.reset();
+		}
+
+		return Arrays.copyOf(output, dataLength);
+	}
+
+	@Override
+	public ByteArrayView decompressToBuffer(byte[] input, int offset, int length) {
+		Inflater decompresser = threadLocalInflater.get();
+		decompresser.setInput(input, offset, length);
+		return inflate(decompresser);
+	}
+
+	/**
+	 * Decompresses the remaining bytes of the buffer without copying them first.
+	 * Used to read directly from memory-mapped files.
+	 */
+	@Override
+	public ByteArrayView decompressToBuffer(ByteBuffer input) {
+		Inflater decompresser = threadLocalInflater.get();
+		decompresser.setInput(input);
+		return inflate(decompresser);
+	}
+
+	private static ByteArrayView inflate(Inflater decompresser) {
+		byte[] output = threadLocalOutputBuffer.get();
+		int outputLength;
+		try {
+			outputLength = decompresser.inflate(output);
+			while(!decompresser.finished()) {
+				if(decompresser.needsInput()) throw new DataFormatException("Unexpected end of compressed data.");
+				output = Arrays.copyOf(output, output.length*2);
+				threadLocalOutputBuffer.set(output);
+				outputLength += decompresser.inflate(output, outputLength, output.length - outputLength);
+			}
+		} catch (DataFormatException e) {
+			Logger.error(e);
+			return null;
+		} finally {
+			decompresser.reset();
+		}
+		return new ByteArrayView(output, 0, outputLength);
+	}
+}
@@ -0,0 +1,186 @@
+package cubyz.utils.compression;
+
+import java.util.Arrays;
+
+import cubyz.utils.Logger;
+import cubyz.utils.datastructures.ByteArrayView;
+import cubyz.utils.math.Bits;
+
+/**
+ * A pure java implementation of the LZ4 block format.<br>
+ * Compresses several times faster than deflate, at the cost of a worse compression ratio.<br>
+ * The output starts with the big-endian uncompressed length, followed by a single LZ4 block.
+ */
+public class LZ4Compression extends CompressionAlgorithm {
+	private static final int MIN_MATCH = 4;
+	/** The last match must start at least 12 bytes before the end of the input. */
+	private static final int MF_LIMIT = 12;
+	/** The last 5 bytes are always literals. */
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 12;
+	/** Increases the step size in incompressible regions. */
+	private static final int SKIP_TRIGGER = 6;
+
+	private static final ThreadLocal<int[]> threadLocalHashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+	private static final ThreadLocal<byte[]> threadLocalOutputBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	LZ4Compression() {
+		super((byte)1, "lz4");
+	}
+
+	private static int readInt(byte[] data, int index) {
+		return (data[index] & 0xff) | (data[index + 1] & 0xff) << 8 | (data[index + 2] & 0xff) << 16 | data[index + 3] << 24;
+	}
+
+	private static int hash(int sequence) {
+		return sequence*-1640531535 >>> 32 - HASH_LOG;
+	}
+
+	private static int writeLength(byte[] output, int outputIndex, int length) {
+		while(length >= 255) {
+			output[outputIndex++] = (byte)255;
+			length -= 255;
+		}
+		output[outputIndex++] = (byte)length;
+		return outputIndex;
+	}
+
+	private static int writeSequence(byte[] input, int anchor, int literalLength, byte[] output, int outputIndex) {
+		int token = outputIndex++;
+		output[token] = (byte)(Math.min(literalLength, 15) << 4);
+		if(literalLength >= 15) {
+			outputIndex = writeLength(output, outputIndex, literalLength - 15);
+		}
+		System.arraycopy(input, anchor, output, outputIndex, literalLength);
+		return outputIndex + literalLength;
+	}
+
+	@Override
+	public byte[] compress(byte[] input) {
+		int length = input.length;
+		byte[] output = new byte[4 + length + length/255 + 16];
+		Bits.putInt(output, 0, length);
+		int outputIndex = 4;
+
+		int[] hashTable = threadLocalHashTable.get();
+		Arrays.fill(hashTable, -1);
+		int anchor = 0;
+		int index = 0;
+		int matchLimit = length - LAST_LITERALS;
+		int attempts = 1 << SKIP_TRIGGER;
+		while(index < length - MF_LIMIT) {
+			int sequence = readInt(input, index);
+			int h = hash(sequence);
+			int reference = hashTable[h];
+			hashTable[h] = index;
+			if(reference == -1 || index - reference > MAX_DISTANCE || readInt(input, reference) != sequence) {
+				index += attempts++ >>> SKIP_TRIGGER;
+				continue;
+			}
+			attempts = 1 << SKIP_TRIGGER;
+			// Extend the match backwards into the pending literals:
+			while(index > anchor && reference > 0 && input[index - 1] == input[reference - 1]) {
+				index--;
+				reference--;
+			}
+			int matchLength = MIN_MATCH;
+			while(index + matchLength < matchLimit && input[index + matchLength] == input[reference + matchLength]) {
+				matchLength++;
+			}
+			int token = outputIndex;
+			outputIndex = writeSequence(input, anchor, index - anchor, output, outputIndex);
+			int offset = index - reference;
+			output[outputIndex++] = (byte)offset;
+			output[outputIndex++] = (byte)(offset >>> 8);
+			int remainingLength = matchLength - MIN_MATCH;
+			output[token] |= (byte)Math.min(remainingLength, 15);
+			if(remainingLength >= 15) {
+				outputIndex = writeLength(output, outputIndex, remainingLength - 15);
+			}
+			index += matchLength;
+			anchor = index;
+			if(index < length - MF_LIMIT) { // Make sure the positions inside of the match can be found as well.
+				hashTable[hash(readInt(input, index - 2))] = index - 2;
+			}
+		}
+		outputIndex = writeSequence(input, anchor, length - anchor, output, outputIndex);
+		return Arrays.copyOf(output, outputIndex);
+	}
+
+	@Override
+	public ByteArrayView decompressToBuffer(byte[] input, int offset, int length) {
+		int end = offset + length;
+		if(length < 5) {
+			Logger.error("LZ4 data is too short.");
+			return null;
+		}
+		int outputLength = Bits.getInt(input, offset);
+		if(outputLength < 0 || outputLength > 255L*length) { // Each input byte can produce at most 255 output bytes.
+			Logger.error("LZ4 data has an invalid length.");
+			return null;
+		}
+		byte[] output = threadLocalOutputBuffer.get();
+		if(output.length < outputLength) {
+			output = new byte[outputLength];
+			threadLocalOutputBuffer.set(output);
+		}
+		int index = offset + 4;
+		int outputIndex = 0;
+		try {
+			while(true) {
+				int token = input[index++] & 0xff;
+				int literalLength = token >>> 4;
+				if(literalLength == 15) {
+					int b;
+					do {
+						b = input[index++] & 0xff;
+						literalLength += b;
+					} while(b == 255);
+				}
+				if(index + literalLength > end || outputIndex + literalLength > outputLength) {
+					throw new IndexOutOfBoundsException("Literals exceed the buffer.");
+				}
+				System.arraycopy(input, index, output, outputIndex, literalLength);
+				index += literalLength;
+				outputIndex += literalLength;
+				if(index == end) break; // The last sequence only contains literals.
+
+				int distance = (input[index] & 0xff) | (input[index + 1] & 0xff) << 8;
+				index += 2;
+				int matchLength = token & 15;
+				if(matchLength == 15) {
+					int b;
+					do {
+						b = input[index++] & 0xff;
+						matchLength += b;
+					} while(b == 255);
+				}
+				matchLength += MIN_MATCH;
+				if(distance == 0 || distance > outputIndex || outputIndex + matchLength > outputLength) {
+					throw new IndexOutOfBoundsException("Match exceeds the buffer.");
+				}
+				int reference = outputIndex - distance;
+				if(distance >= matchLength) {
+					System.arraycopy(output, reference, output, outputIndex, matchLength);
+					outputIndex += matchLength;
+				} else { // Overlapping copy of a repeating pattern. The pattern gets doubled in each step.
+					while(matchLength > 0) {
+						int copyLength = Math.min(outputIndex - reference, matchLength);
+						System.arraycopy(output, reference, output, outputIndex, copyLength);
+						outputIndex += copyLength;
+						matchLength -= copyLength;
+					}
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			Logger.error("Invalid LZ4 data: " + e.getMessage());
+			return null;
+		}
+		if(outputIndex != outputLength) {
+			Logger.error("LZ4 data is too short. Expected "+outputLength+" bytes, but got "+outputIndex+".");
+			return null;
+		}
+		return new ByteArrayView(output, 0, outputLength);
+	}
+}
@@ -0,0 +1,27 @@
+package cubyz.utils.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * A range inside of a byte array. Used to pass data around without copying it.
+ */
+
+public final class ByteArrayView {
+	public final byte[] array;
+	public final int offset;
+	public final int length;
+
+	public ByteArrayView(byte[] array, int offset, int length) {
+		assert offset >= 0 && length >= 0 && offset + length <= array.length : "View [" + offset + ", " + (offset + length) + ") exceeds the array of length " + array.length;
+		this.array = array;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return a copy of the viewed range.
+	 */
+	public byte[] toArray() {
+		return Arrays.copyOfRange(array, offset, offset + length);
+	}
+}
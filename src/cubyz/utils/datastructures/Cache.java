@@ -1,73 +1,298 @@
 package cubyz.utils.datastructures;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
-/** 
-* Implements a simple set associative cache with LRU replacement strategy.
-*/
+/**
+ * A concurrent cache with a total budget for the weight of its entries. For most caches the weight is the memory usage in bytes.<br>
+ * The entries are distributed over lock-striped segments by their hash, so threads only block each other when they access the same segment.<br>
+ * Eviction is an approximation of LRU/LFU: Each segment is a queue. Entries that were used since they last reached its end get a second chance and go back to the front.<br>
+ * Evicted entries are passed to the eviction callback outside of any lock.<br>
+ * Entries are compared with {@code compare.equals(entry)}, so the lookup objects can be of a different class than the entries.
+ */
 
 public class Cache<T> {
-	public final T[][] cache;
+	private static final int SEGMENT_SHIFT = 6;
+	private static final int SEGMENT_COUNT = 1 << SEGMENT_SHIFT;
+	private static final int LOCK_COUNT = 1024;
+
+	private static final class Node<T> {
+		private final T value;
+		private final int hash;
+		private final long weight;
+		/** Set on every access and cleared when the node reaches the end of the queue. */
+		private volatile boolean used;
+		private Node<T> previous, next;
+		private Node<T> nextWithSameHash;
+		private Node(T value, int hash, long weight) {
+			this.value = value;
+			this.hash = hash;
+			this.weight = weight;
+		}
+	}
+
+	private static final class Segment<T> {
+		private final HashMap<Integer, Node<T>> nodes = new HashMap<>();
+		/** Newest entry. */
+		private Node<T> head;
+		/** Next candidate for eviction. */
+		private Node<T> tail;
+		private int size;
+
+		private void addToFront(Node<T> node) {
+			node.previous = null;
+			node.next = head;
+			if(head != null) head.previous = node;
+			head = node;
+			if(tail == null) tail = node;
+		}
+
+		private void unlink(Node<T> node) {
+			if(node.previous != null) node.previous.next = node.next;
+			else head = node.next;
+			if(node.next != null) node.next.previous = node.previous;
+			else tail = node.previous;
+			node.previous = node.next = null;
+		}
+
+		private void remove(Node<T> node) {
+			unlink(node);
+			Node<T> first = nodes.get(node.hash);
+			if(first == node) {
+				if(node.nextWithSameHash == null) {
+					nodes.remove(node.hash);
+				} else {
+					nodes.put(node.hash, node.nextWithSameHash);
+				}
+			} else {
+				while(first.nextWithSameHash != node) {
+					first = first.nextWithSameHash;
+				}
+				first.nextWithSameHash = node.nextWithSameHash;
+			}
+			size--;
+		}
+
+		private Node<T> find(Object compare, int hash) {
+			Node<T> node = nodes.get(hash);
+			while(node != null) {
+				if(compare.equals(node.value)) return node;
+				node = node.nextWithSameHash;
+			}
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private final Segment<T>[] segments = new Segment[SEGMENT_COUNT];
+	/** Used by the callers to generate entries, independent of the segment locks. */
+	private final Object[] locks = new Object[LOCK_COUNT];
+	private final ToLongFunction<? super T> weigher;
+	private final Consumer<? super T> evictionCallback;
+	private volatile long budget;
+	private final AtomicLong weight = new AtomicLong();
+	/** Segment that gets checked next for eviction. */
+	private final AtomicInteger evictionCursor = new AtomicInteger();
+
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
 	/**
-	 * The cache will be initialized using the given layout.
-	 * @param layout first dimension gives the hash size, second dimension gives the associativity.
+	 * @param budget the maximum total weight of all entries.
+	 * @param weigher returns the weight of an entry. It is only called once, when the entry is added.
+	 * @param evictionCallback gets called with every entry that got evicted. May be null.
 	 */
-	public Cache(T[][] layout) {
-		cache = layout;
+	public Cache(long budget, ToLongFunction<? super T> weigher, Consumer<? super T> evictionCallback) {
+		this.budget = budget;
+		this.weigher = weigher;
+		this.evictionCallback = evictionCallback;
+		for(int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment<>();
+		}
+		for(int i = 0; i < LOCK_COUNT; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private Segment<T> getSegment(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		return segments[hash >>> (32 - SEGMENT_SHIFT)];
 	}
-	
-	public int cacheRequests = 0;
-	public int cacheMisses = 0;
-	
+
 	/**
 	 * Tries to find the entry that fits to the supplied hashable.
 	 * @param compare
-	 * @param index the hash that is fit within cache.length
-	 * @return
+	 * @param hash the hash of the entry
+	 * @return null if there is no such entry.
 	 */
-	public T find(Object compare, int index) {
-		cacheRequests++;
-		synchronized(cache[index]) {
-			for(int i = 0; i < cache[index].length; i++) {
-				T ret = cache[index][i];
-				if (compare.equals(ret)) {
-					if (i != 0) { // No need to put it up front when it already is on the front.
-						System.arraycopy(cache[index], 0, cache[index], 1, i);
-						cache[index][0] = ret;
-					}
-					return ret;
-				}
+	public T find(Object compare, int hash) {
+		requests.increment();
+		Segment<T> segment = getSegment(hash);
+		synchronized(segment) {
+			Node<T> node = segment.find(compare, hash);
+			if(node != null) {
+				node.used = true;
+				return node.value;
 			}
 		}
-		cacheMisses++;
+		misses.increment();
 		return null;
 	}
-	
-	public void clear() {
-		for(T[] line : cache) {
-			Arrays.fill(line, null);
-		}
+
+	/**
+	 * A lock for creating the entry with the given hash. Allows threads to create different entries at the same time, without creating the same entry twice.
+	 */
+	public Object getLock(int hash) {
+		return locks[hash & LOCK_COUNT - 1];
 	}
+
 	/**
-	 * Adds a new object into the cache.
+	 * Adds a new object into the cache, unless there already is an equal one.
+	 * Evicts other entries if the cache is over budget.
 	 * @param t
-	 * @param index the hash that is fit within cache.length
-	 * @return the object that got kicked out of the cache if any.
+	 * @param hash the hash of the entry
+	 * @return the entry that is in the cache now.
 	 */
-	public T addToCache(T t, int index) {
-		T previous = cache[index][cache[index].length - 1];
-		System.arraycopy(cache[index], 0, cache[index], 1, cache[index].length - 1);
-		cache[index][0] = t;
-		return previous;
+	public T addToCache(T t, int hash) {
+		Segment<T> segment = getSegment(hash);
+		synchronized(segment) {
+			Node<T> node = segment.find(t, hash);
+			if(node != null) {
+				node.used = true;
+				return node.value;
+			}
+			node = new Node<>(t, hash, weigher.applyAsLong(t));
+			node.nextWithSameHash = segment.nodes.put(hash, node);
+			segment.addToFront(node);
+			segment.size++;
+			weight.addAndGet(node.weight);
+		}
+		evictIfNeeded();
+		return t;
 	}
 
+	/**
+	 * Removes the entry without calling the eviction callback.
+	 * @return the removed entry or null if there was none.
+	 */
+	public T remove(Object compare, int hash) {
+		Segment<T> segment = getSegment(hash);
+		synchronized(segment) {
+			Node<T> node = segment.find(compare, hash);
+			if(node == null) return null;
+			segment.remove(node);
+			weight.addAndGet(-node.weight);
+			return node.value;
+		}
+	}
+
+	private void evictIfNeeded() {
+		if(weight.get() <= budget) return;
+		ArrayList<T> evicted = new ArrayList<>();
+		int emptySegments = 0;
+		while(weight.get() > budget && emptySegments < SEGMENT_COUNT) {
+			Segment<T> segment = segments[evictionCursor.getAndIncrement() & SEGMENT_COUNT - 1];
+			synchronized(segment) {
+				// Entries that were used get a second chance:
+				for(int i = 0; i < segment.size; i++) {
+					Node<T> node = segment.tail;
+					if(!node.used) break;
+					node.used = false;
+					segment.unlink(node);
+					segment.addToFront(node);
+				}
+				Node<T> node = segment.tail;
+				if(node == null) {
+					emptySegments++;
+					continue;
+				}
+				emptySegments = 0;
+				segment.remove(node);
+				weight.addAndGet(-node.weight);
+				evicted.add(node.value);
+			}
+		}
+		evictions.add(evicted.size());
+		if(evictionCallback != null) {
+			for(T t : evicted) {
+				evictionCallback.accept(t);
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries without calling the eviction callback.
+	 */
+	public void clear() {
+		for(Segment<T> segment : segments) {
+			synchronized(segment) {
+				for(Node<T> node = segment.head; node != null; node = node.next) {
+					weight.addAndGet(-node.weight);
+				}
+				segment.nodes.clear();
+				segment.head = segment.tail = null;
+				segment.size = 0;
+			}
+		}
+	}
+
+	/**
+	 * Calls the consumer on a snapshot of the entries. The consumer is called outside of the locks, so it may access the cache.
+	 */
 	public void foreach(Consumer<T> consumer) {
-		for(T[] array : cache) {
-			for(T obj : array) {
-				if (obj != null)
-					consumer.accept(obj);
+		ArrayList<T> values = new ArrayList<>();
+		for(Segment<T> segment : segments) {
+			values.clear();
+			synchronized(segment) {
+				for(Node<T> node = segment.head; node != null; node = node.next) {
+					values.add(node.value);
+				}
+			}
+			for(T value : values) {
+				consumer.accept(value);
+			}
+		}
+	}
+
+	public void setBudget(long budget) {
+		this.budget = budget;
+		evictIfNeeded();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public long getWeight() {
+		return weight.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for(Segment<T> segment : segments) {
+			synchronized(segment) {
+				size += segment.size;
 			}
 		}
+		return size;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
 	}
 }
@@ -0,0 +1,222 @@
+package cubyz.utils.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size int array that stores bit-packed indices into a palette instead of the values themselves.<br>
+ * The index size(0, 1, 2, 4, 8 or 16 bits) is chosen depending on the number of different values and grows when new values are added.<br>
+ * Reads are lock-free and may see slightly outdated values when racing with a write, writes are synchronized.
+ */
+
+public class PaletteCompressedIntArray {
+	private static final int MAX_BIT_SIZE = 16;
+
+	public final int size;
+
+	/**
+	 * Palette and data are bundled, so lock-free readers always get a matching pair.<br>
+	 * The palette always contains at least 1 << bitSize entries, so any index stored in the data lies within it.
+	 */
+	private static final class Layout {
+		private final int bitSize;
+		private final int[] palette;
+		private final long[] data;
+		private Layout(int bitSize, int[] palette, long[] data) {
+			this.bitSize = bitSize;
+			this.palette = palette;
+			this.data = data;
+		}
+	}
+	private volatile Layout layout;
+	/**How often each palette entry is used. Unused entries can be reused.*/
+	private int[] paletteOccupancy;
+	private int paletteLength;
+
+	/**
+	 * @param size must be a power of 2 between 64 and 65536.
+	 * @param initialValue the value every entry starts with.
+	 */
+	public PaletteCompressedIntArray(int size, int initialValue) {
+		assert (size & size - 1) == 0 && size >= 64 && size <= 1 << MAX_BIT_SIZE : "The size("+size+") must be a power of 2 between 64 and 65536.";
+		this.size = size;
+		layout = new Layout(0, new int[] {initialValue}, new long[0]);
+		paletteOccupancy = new int[] {size};
+		paletteLength = 1;
+	}
+
+	private static int getPaletteIndex(long[] data, int bitSize, int index) {
+		int bitIndex = index*bitSize;
+		return (int)(data[bitIndex >>> 6] >>> (bitIndex & 63)) & ((1 << bitSize) - 1);
+	}
+
+	private static void setPaletteIndex(long[] data, int bitSize, int index, int paletteIndex) {
+		int bitIndex = index*bitSize;
+		long mask = ((1L << bitSize) - 1) << (bitIndex & 63);
+		data[bitIndex >>> 6] = data[bitIndex >>> 6] & ~mask | (long)paletteIndex << (bitIndex & 63);
+	}
+
+	public int get(int index) {
+		Layout layout = this.layout;
+		if(layout.bitSize == 0) return layout.palette[0];
+		return layout.palette[getPaletteIndex(layout.data, layout.bitSize, index)];
+	}
+
+	public synchronized void set(int index, int value) {
+		Layout layout = this.layout;
+		int oldPaletteIndex = layout.bitSize == 0 ? 0 : getPaletteIndex(layout.data, layout.bitSize, index);
+		if(layout.palette[oldPaletteIndex] == value) return;
+
+		int paletteIndex = -1;
+		int freeIndex = -1;
+		for(int i = 0; i < paletteLength; i++) {
+			if(layout.palette[i] == value) {
+				paletteIndex = i;
+				break;
+			}
+			if(freeIndex == -1 && paletteOccupancy[i] == 0) {
+				freeIndex = i;
+			}
+		}
+		if(paletteIndex == -1) {
+			if(paletteOccupancy[oldPaletteIndex] == 1) {
+				// The old value disappears anyways, so its entry can be replaced:
+				layout.palette[oldPaletteIndex] = value;
+				return;
+			}
+			if(freeIndex != -1) {
+				paletteIndex = freeIndex;
+			} else {
+				if(paletteLength == 1 << layout.bitSize) {
+					layout = resize(layout.bitSize == 0 ? 1 : layout.bitSize*2);
+				}
+				paletteIndex = paletteLength++;
+			}
+			layout.palette[paletteIndex] = value;
+		}
+		paletteOccupancy[oldPaletteIndex]--;
+		paletteOccupancy[paletteIndex]++;
+		setPaletteIndex(layout.data, layout.bitSize, index, paletteIndex);
+	}
+
+	/**
+	 * Repacks the data using the new bit size. The palette itself is not reordered.
+	 * @return the new layout
+	 */
+	private Layout resize(int newBitSize) {
+		assert newBitSize <= MAX_BIT_SIZE : "Palette is too big.";
+		Layout old = layout;
+		int[] newPalette = new int[1 << newBitSize];
+		System.arraycopy(old.palette, 0, newPalette, 0, paletteLength);
+		int[] newOccupancy = new int[1 << newBitSize];
+		System.arraycopy(paletteOccupancy, 0, newOccupancy, 0, paletteLength);
+		long[] newData = new long[size*newBitSize >>> 6];
+		if(old.bitSize != 0) {
+			for(int i = 0; i < size; i++) {
+				setPaletteIndex(newData, newBitSize, i, getPaletteIndex(old.data, old.bitSize, i));
+			}
+		}
+		paletteOccupancy = newOccupancy;
+		layout = new Layout(newBitSize, newPalette, newData);
+		return layout;
+	}
+
+	/**
+	 * Removes unused palette entries and uses the smallest possible bit size.
+	 * Should be called after bulk operations like generation or loading, where many intermediate values may have been used.
+	 */
+	public synchronized void optimizeLayout() {
+		Layout old = layout;
+		int[] remap = new int[paletteLength];
+		int newLength = 0;
+		for(int i = 0; i < paletteLength; i++) {
+			if(paletteOccupancy[i] != 0) {
+				remap[i] = newLength++;
+			}
+		}
+		int newBitSize = 0;
+		while(1 << newBitSize < newLength) {
+			newBitSize = newBitSize == 0 ? 1 : newBitSize*2;
+		}
+		if(newLength == paletteLength && newBitSize == old.bitSize) return;
+
+		int[] newPalette = new int[1 << newBitSize];
+		int[] newOccupancy = new int[1 << newBitSize];
+		for(int i = 0; i < paletteLength; i++) {
+			if(paletteOccupancy[i] != 0) {
+				newPalette[remap[i]] = old.palette[i];
+				newOccupancy[remap[i]] = paletteOccupancy[i];
+			}
+		}
+		long[] newData = new long[size*newBitSize >>> 6];
+		if(newBitSize != 0) {
+			for(int i = 0; i < size; i++) {
+				setPaletteIndex(newData, newBitSize, i, remap[getPaletteIndex(old.data, old.bitSize, i)]);
+			}
+		}
+		paletteOccupancy = newOccupancy;
+		paletteLength = newLength;
+		layout = new Layout(newBitSize, newPalette, newData);
+	}
+
+	/**
+	 * Stores the palette index of every entry in indices. Much faster than calling get for every entry.
+	 * @param indices must be at least as long as this array.
+	 * @return a copy of the palette. Indices never refer to unused entries, but those may still be part of the palette.
+	 */
+	public synchronized int[] getIndices(int[] indices) {
+		Layout layout = this.layout;
+		if(layout.bitSize == 0) {
+			Arrays.fill(indices, 0, size, 0);
+		} else {
+			for(int i = 0; i < size; i++) {
+				indices[i] = getPaletteIndex(layout.data, layout.bitSize, i);
+			}
+		}
+		int[] palette = new int[paletteLength];
+		System.arraycopy(layout.palette, 0, palette, 0, paletteLength);
+		return palette;
+	}
+
+	/**
+	 * Replaces all values at once. Much faster than calling set for every entry.
+	 * @param palette the new values. Must not contain duplicates.
+	 * @param paletteLength the number of used entries in the palette.
+	 * @param indices the palette index of every entry.
+	 */
+	public synchronized void setAll(int[] palette, int paletteLength, int[] indices) {
+		assert paletteLength > 0 && paletteLength <= size : "Invalid palette length " + paletteLength;
+		int newBitSize = 0;
+		while(1 << newBitSize < paletteLength) {
+			newBitSize = newBitSize == 0 ? 1 : newBitSize*2;
+		}
+		int[] newPalette = new int[1 << newBitSize];
+		System.arraycopy(palette, 0, newPalette, 0, paletteLength);
+		int[] newOccupancy = new int[1 << newBitSize];
+		long[] newData = new long[size*newBitSize >>> 6];
+		for(int i = 0; i < size; i++) {
+			assert indices[i] >= 0 && indices[i] < paletteLength : "Invalid palette index " + indices[i];
+			newOccupancy[indices[i]]++;
+			if(newBitSize != 0) {
+				setPaletteIndex(newData, newBitSize, i, indices[i]);
+			}
+		}
+		paletteOccupancy = newOccupancy;
+		this.paletteLength = paletteLength;
+		layout = new Layout(newBitSize, newPalette, newData);
+	}
+
+	/**
+	 * @return the number of different values, including unused palette entries.
+	 */
+	public int getPaletteLength() {
+		return paletteLength;
+	}
+
+	/**
+	 * @return the approximate number of bytes used by the arrays of this object.
+	 */
+	public int getMemoryUsage() {
+		Layout layout = this.layout;
+		return 8*layout.data.length + 4*layout.palette.length + 4*paletteOccupancy.length;
+	}
+}
@@ -0,0 +1,108 @@
+package cubyz.utils.datastructures;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import cubyz.utils.metrics.Histogram;
+
+/**
+ * Makes sure that each key is only generated by one thread at a time.<br>
+ * Threads that request a key that is already being generated wait for that generation and get its result, while different keys are generated in parallel.<br>
+ * Also keeps track of how often threads had to wait, to measure the contention.
+ */
+
+public class SingleFlight<K, V> {
+	private static final class Flight<V> {
+		private final CompletableFuture<V> future = new CompletableFuture<>();
+		private final Thread owner = Thread.currentThread();
+	}
+
+	private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final LongAdder generations = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder waitTime = new LongAdder();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	/** How long the generations took. */
+	public final Histogram generationTime = new Histogram();
+
+	/**
+	 * Runs the generator, unless another thread is already generating the same key. In that case the result of that thread is returned.
+	 * The generator should check the cache again, because the key might have been finished right before this call.
+	 */
+	public V run(K key, Supplier<V> generator) {
+		Flight<V> flight = new Flight<>();
+		Flight<V> existing = inFlight.putIfAbsent(key, flight);
+		if(existing != null) {
+			if(existing.owner == Thread.currentThread()) {
+				throw new IllegalStateException("Recursive generation of " + key);
+			}
+			waits.increment();
+			long start = System.nanoTime();
+			try {
+				return existing.future.join();
+			} catch(CompletionException e) {
+				if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				if(e.getCause() instanceof Error) throw (Error)e.getCause();
+				throw e;
+			} finally {
+				waitTime.add(System.nanoTime() - start);
+			}
+		}
+		maxInFlight.accumulateAndGet(inFlight.size(), Math::max);
+		generations.increment();
+		long start = System.nanoTime();
+		try {
+			V result = generator.get();
+			generationTime.recordSince(start);
+			flight.future.complete(result);
+			return result;
+		} catch(Throwable e) {
+			flight.future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, flight);
+		}
+	}
+
+	/**
+	 * @return the number of generations that were started.
+	 */
+	public long getGenerations() {
+		return generations.sum();
+	}
+
+	/**
+	 * @return how often a thread had to wait for the generation of another thread.
+	 */
+	public long getWaits() {
+		return waits.sum();
+	}
+
+	/**
+	 * @return the total time in nanoseconds that threads waited for other threads.
+	 */
+	public long getWaitTime() {
+		return waitTime.sum();
+	}
+
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the highest number of simultaneous generations so far.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	@Override
+	public String toString() {
+		return getGenerations() + " generations, " + getWaits() + " waits(" + getWaitTime()/1000000 + " ms), " + getInFlight() + " in flight(max " + getMaxInFlight() + ")";
+	}
+}
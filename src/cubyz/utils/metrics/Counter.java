@@ -0,0 +1,23 @@
+package cubyz.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe counter that only goes up.
+ */
+
+public class Counter {
+	private final LongAdder value = new LongAdder();
+
+	public void increment() {
+		value.increment();
+	}
+
+	public void add(long amount) {
+		value.add(amount);
+	}
+
+	public long get() {
+		return value.sum();
+	}
+}
@@ -0,0 +1,81 @@
+package cubyz.utils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe latency histogram with exponential buckets.<br>
+ * Bucket i contains the values from 2^(i-1) to 2^i microseconds, so the percentiles are accurate to a factor of 2.
+ */
+
+public class Histogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanoTime the measured time in nanoseconds.
+	 */
+	public void record(long nanoTime) {
+		long micros = Math.max(0, nanoTime/1000);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.increment();
+		sum.add(nanoTime);
+		max.accumulateAndGet(nanoTime, Math::max);
+	}
+
+	/**
+	 * Records the time since the start.
+	 * @param startTime the result of {@link System#nanoTime()} at the start.
+	 */
+	public void recordSince(long startTime) {
+		record(System.nanoTime() - startTime);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the average in milliseconds.
+	 */
+	public double getAverage() {
+		long count = getCount();
+		return count == 0 ? 0 : sum.sum()/1e6/count;
+	}
+
+	/**
+	 * @return the maximum in milliseconds.
+	 */
+	public double getMax() {
+		return max.get()/1e6;
+	}
+
+	/**
+	 * @param percentile between 0 and 1
+	 * @return the upper bound of the bucket that contains the percentile in milliseconds.
+	 */
+	public double getPercentile(double percentile) {
+		long[] values = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			values[i] = buckets.get(i);
+			total += values[i];
+		}
+		if(total == 0) return 0;
+		long target = (long)Math.ceil(percentile*total);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += values[i];
+			if(seen >= target) {
+				return Math.min((1L << i)/1000.0, getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,156 @@
+package cubyz.utils.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+import cubyz.multiplayer.CongestionControl;
+import cubyz.multiplayer.UDPConnection;
+import cubyz.utils.Logger;
+import cubyz.utils.datastructures.Cache;
+import cubyz.utils.datastructures.SingleFlight;
+
+/**
+ * Central registry for counters, gauges and latency histograms.<br>
+ * The metrics are sorted by name. Names use dots to form groups, for example "cache.reducedChunks.misses".<br>
+ * They can be viewed with the /stats command and are periodically appended to "logs/metrics.jsonl", one json object per line.
+ */
+
+public final class Metrics {
+	private Metrics() {} // No instances allowed.
+
+	/** Contains {@link Counter}s, {@link Histogram}s and gauges({@link LongSupplier}). */
+	private static final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+	private static Thread dumpThread;
+	private static volatile int dumpInterval;
+
+	public static Counter counter(String name) {
+		return (Counter)metrics.computeIfAbsent(name, key -> new Counter());
+	}
+
+	public static Histogram histogram(String name) {
+		return (Histogram)metrics.computeIfAbsent(name, key -> new Histogram());
+	}
+
+	/**
+	 * Registers a value that is read whenever the metrics are shown. Replaces the previous gauge with the same name.
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		metrics.put(name, value);
+	}
+
+	public static void registerCache(String name, Cache<?> cache) {
+		gauge("cache." + name + ".requests", cache::getRequests);
+		gauge("cache." + name + ".misses", cache::getMisses);
+		gauge("cache." + name + ".evictions", cache::getEvictions);
+		gauge("cache." + name + ".size", cache::size);
+		gauge("cache." + name + ".weight", cache::getWeight);
+		gauge("cache." + name + ".budget", cache::getBudget);
+	}
+
+	public static void registerGeneration(String name, SingleFlight<?, ?> generation) {
+		gauge("generation." + name + ".count", generation::getGenerations);
+		gauge("generation." + name + ".waits", generation::getWaits);
+		gauge("generation." + name + ".waitTimeMs", () -> generation.getWaitTime()/1000000);
+		gauge("generation." + name + ".inFlight", generation::getInFlight);
+		gauge("generation." + name + ".maxInFlight", generation::getMaxInFlight);
+		metrics.put("generation." + name + ".time", generation.generationTime);
+	}
+
+	public static void registerConnection(String name, UDPConnection connection) {
+		CongestionControl congestionControl = connection.getCongestionControl();
+		gauge("network.connection." + name + ".rttMs", () -> (long)congestionControl.getRoundTripTime());
+		gauge("network.connection." + name + ".congestionWindow", congestionControl::getWindow);
+		gauge("network.connection." + name + ".lossPermille", () -> (long)(congestionControl.getLossRate()*1000));
+		gauge("network.connection." + name + ".bandwidth", congestionControl::getBandwidth);
+		gauge("network.connection." + name + ".sendQueueSize", connection::getSendQueueSize);
+	}
+
+	/**
+	 * Removes all metrics that start with the prefix, for example the ones of a connection that was closed.
+	 */
+	public static void remove(String prefix) {
+		metrics.tailMap(prefix).keySet().removeIf(name -> name.startsWith(prefix));
+	}
+
+	/**
+	 * @return a human readable line for each metric that starts with the prefix.
+	 */
+	public static ArrayList<String> format(String prefix) {
+		ArrayList<String> lines = new ArrayList<>();
+		for(Map.Entry<String, Object> entry : metrics.tailMap(prefix).entrySet()) {
+			if(!entry.getKey().startsWith(prefix)) break;
+			Object metric = entry.getValue();
+			if(metric instanceof Counter) {
+				lines.add(entry.getKey() + ": " + ((Counter)metric).get());
+			} else if(metric instanceof LongSupplier) {
+				lines.add(entry.getKey() + ": " + ((LongSupplier)metric).getAsLong());
+			} else if(metric instanceof Histogram) {
+				Histogram histogram = (Histogram)metric;
+				lines.add(String.format("%s: %d samples, avg %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms", entry.getKey(), histogram.getCount(), histogram.getAverage(), histogram.getPercentile(0.5), histogram.getPercentile(0.99), histogram.getMax()));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return all metrics as a single line json object.
+	 */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"time\":").append(System.currentTimeMillis());
+		for(Map.Entry<String, Object> entry : metrics.entrySet()) {
+			json.append(",\"").append(entry.getKey()).append("\":");
+			Object metric = entry.getValue();
+			if(metric instanceof Counter) {
+				json.append(((Counter)metric).get());
+			} else if(metric instanceof LongSupplier) {
+				json.append(((LongSupplier)metric).getAsLong());
+			} else if(metric instanceof Histogram) {
+				Histogram histogram = (Histogram)metric;
+				json.append(String.format(Locale.ROOT, "{\"count\":%d,\"avgMs\":%.3f,\"p50Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f}", histogram.getCount(), histogram.getAverage(), histogram.getPercentile(0.5), histogram.getPercentile(0.99), histogram.getMax()));
+			}
+		}
+		json.append('}');
+		return json.toString();
+	}
+
+	/**
+	 * Appends the metrics to "logs/metrics.jsonl" every interval milliseconds. An interval of 0 stops the dump.
+	 */
+	public static void startDump(int interval) {
+		synchronized(Metrics.class) {
+			dumpInterval = interval;
+			if(interval <= 0 || dumpThread != null) return;
+			dumpThread = new Thread(Metrics::dump, "Metrics-Dump");
+			dumpThread.setDaemon(true);
+			dumpThread.start();
+		}
+	}
+
+	private static void dump() {
+		while(dumpInterval > 0) {
+			try {
+				Thread.sleep(dumpInterval);
+			} catch(InterruptedException e) {
+				break;
+			}
+			try (OutputStream out = new FileOutputStream(new File("logs/metrics.jsonl"), true)) {
+				out.write((toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch(IOException e) {
+				Logger.error(e);
+			}
+		}
+		synchronized(Metrics.class) {
+			dumpThread = null;
+		}
+	}
+}
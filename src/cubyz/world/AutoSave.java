@@ -0,0 +1,106 @@
+package cubyz.world;
+
+import java.util.HashMap;
+
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.utils.Logger;
+import cubyz.utils.metrics.Metrics;
+
+/**
+ * Periodically saves the world, so players leaving the server only need to save their own data.<br>
+ * The autosave runs on the server thread, because that one owns the entities and meta chunks.
+ * To avoid lag spikes it is spread over multiple updates, each one only spending {@link ServerSettings#autosaveBudget} milliseconds.
+ * The compression and disk writes of the chunks happen on the chunk save thread.
+ */
+public class AutoSave {
+	private static final String[] PHASE_NAMES = {"chunks", "entities", "players", "lower resolution chunks", "item entities", "world data"};
+	private static final int IDLE = -1;
+
+	private final ServerWorld world;
+	private long lastSave = System.currentTimeMillis();
+	private int phase = IDLE;
+	/** The time spent in each phase in nanoseconds. */
+	private final long[] phaseTimes = new long[PHASE_NAMES.length];
+	private long startTime;
+	private int updates;
+
+	private MetaChunk[] metaChunks;
+	private int nextMetaChunk;
+
+	public AutoSave(ServerWorld world) {
+		this.world = world;
+	}
+
+	public void update() {
+		if(phase == IDLE) {
+			if(ServerSettings.autosaveInterval <= 0 || System.currentTimeMillis() - lastSave < ServerSettings.autosaveInterval) return;
+			phase = 0;
+			startTime = System.currentTimeMillis();
+			updates = 0;
+			for(int i = 0; i < phaseTimes.length; i++) {
+				phaseTimes[i] = 0;
+			}
+			metaChunks = world.metaChunks.values().toArray(new MetaChunk[0]);
+			nextMetaChunk = 0;
+		}
+		updates++;
+		long deadline = System.nanoTime() + ServerSettings.autosaveBudget*1000000L;
+		// At least one step is done in every update, so the autosave always finishes:
+		do {
+			long start = System.nanoTime();
+			boolean phaseDone = step(deadline);
+			phaseTimes[phase] += System.nanoTime() - start;
+			if(phaseDone) {
+				phase++;
+				if(phase == PHASE_NAMES.length) {
+					finish();
+					return;
+				}
+			}
+		} while(System.nanoTime() < deadline);
+	}
+
+	/**
+	 * @return true if the current phase is done.
+	 */
+	private boolean step(long deadline) {
+		switch(phase) {
+			case 0:
+				// Meta chunks are unloaded by the server thread only, so the ones that were unloaded in between were already saved.
+				while(nextMetaChunk < metaChunks.length) {
+					metaChunks[nextMetaChunk++].save();
+					if(System.nanoTime() >= deadline) return false;
+				}
+				metaChunks = null;
+				return true;
+			case 1:
+				world.storeEntities(new HashMap<>(), true);
+				return true;
+			case 2:
+				world.savePlayers();
+				return true;
+			case 3:
+				world.chunkManager.saveReducedChunks();
+				return true;
+			case 4:
+				world.itemEntityIO.save(world.itemEntityManager);
+				return true;
+			case 5:
+				world.wio.saveWorldData();
+				return true;
+			default:
+				return true;
+		}
+	}
+
+	private void finish() {
+		phase = IDLE;
+		lastSave = System.currentTimeMillis();
+		Metrics.histogram("autosave.time").record((lastSave - startTime)*1000000);
+		StringBuilder message = new StringBuilder("Autosave took " + (lastSave - startTime) + " ms over " + updates + " updates:");
+		for(int i = 0; i < PHASE_NAMES.length; i++) {
+			message.append(i == 0 ? " " : ", ").append(PHASE_NAMES[i]).append(" ").append(String.format("%.1f", phaseTimes[i]/1e6)).append(" ms");
+		}
+		Logger.info(message.toString());
+	}
+}
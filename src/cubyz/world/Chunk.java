@@ -6,12 +6,19 @@ import org.joml.Vector3d;
 
 import cubyz.client.GameLauncher;
 import cubyz.utils.Logger;
+import cubyz.utils.datastructures.PaletteCompressedIntArray;
 import cubyz.utils.math.Bits;
+import cubyz.utils.math.CubyzMath;
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.world.save.ChunkIO;
 import cubyz.world.terrain.CaveMap;
 import cubyz.world.terrain.TerrainGenerationProfile;
 import cubyz.world.terrain.generators.Generator;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class Chunk extends SavableChunk {
 	
 	public static final int chunkShift = 5;
@@ -23,9 +30,13 @@ public abstract class Chunk extends SavableChunk {
 	public static final int chunkMask = chunkSize - 1;
 	
 	public final World world;
-	protected final int[] blocks = new int[chunkSize*chunkSize*chunkSize];
+	/**Stored palette-compressed, because most chunks only contain a few different blocks.*/
+	protected final PaletteCompressedIntArray blocks = new PaletteCompressedIntArray(chunkSize*chunkSize*chunkSize, 0);
 	
 	private boolean wasChanged = false;
+	private static final AtomicInteger versionCounter = new AtomicInteger();
+	/** Gets a new unique value whenever the blocks change. 0 means that the chunk contains the generated terrain. Used to avoid sending unchanged chunks to the clients again. */
+	private volatile int version = 0;
 	/** When a chunk is cleaned, it won't be saved by the ChunkManager anymore, so following changes need to be saved directly. */
 	private boolean wasCleaned = false;
 	protected boolean generated = false;
@@ -96,16 +107,26 @@ public abstract class Chunk extends SavableChunk {
 	 */
 	public void generate(long seed, TerrainGenerationProfile terrainGenerationProfile) {
 		assert !generated : "Seriously, why would you generate this chunk twice???";
-		if(!ChunkIO.loadChunkFromFile(world, this)) {
-			CaveMap caveMap = new CaveMap(this);
-			CaveBiomeMap biomeMap = new CaveBiomeMap(this);
-			
-			for (Generator g : terrainGenerationProfile.generators) {
-				g.generate(seed ^ g.getGeneratorSeed(), wx, wy, wz, this, caveMap, biomeMap);
-			}
+		if(ChunkIO.loadChunkFromFile(world, this)) {
+			version = versionCounter.incrementAndGet(); // The chunk might have been changed since it was last sent.
+		} else {
+			generateTerrain(seed, terrainGenerationProfile);
 		}
 		generated = true;
 	}
+
+	/**
+	 * Runs the terrain generators without looking at the save files.
+	 */
+	private void generateTerrain(long seed, TerrainGenerationProfile terrainGenerationProfile) {
+		CaveMap caveMap = new CaveMap(this);
+		CaveBiomeMap biomeMap = new CaveBiomeMap(this);
+		
+		for (Generator g : terrainGenerationProfile.generators) {
+			g.generate(seed ^ g.getGeneratorSeed(), wx, wy, wz, this, caveMap, biomeMap);
+		}
+		blocks.optimizeLayout(); // The generators might have left some unused block types.
+	}
 	
 	/**
 	 * Checks if the given <b>relative</b> coordinates lie within the bounds of this chunk.
@@ -126,8 +147,20 @@ public abstract class Chunk extends SavableChunk {
 	public int getWidth() {
 		return width;
 	}
+
+	/**
+	 * @return the approximate number of bytes used by this chunk. Used for the memory budget of the chunk caches.
+	 */
+	public int getMemoryUsage() {
+		return 256 + blocks.getMemoryUsage();
+	}
 	
+	public int getVersion() {
+		return version;
+	}
+
 	public void setChanged() {
+		version = versionCounter.incrementAndGet();
 		wasChanged = true;
 		synchronized(this) {
 			if(wasCleaned) {
@@ -164,11 +197,10 @@ public abstract class Chunk extends SavableChunk {
 		if(wasChanged) {
 			ChunkIO.storeChunkToFile(world, this);
 			wasChanged = false;
-			// Update the next lod chunk:
+			// Update the next lod chunk in the background:
 			if(voxelSize != 1 << Constants.HIGHEST_LOD) {
 				if(world instanceof ServerWorld) {
-					ReducedChunk chunk = ((ServerWorld)world).chunkManager.getOrGenerateReducedChunk(wx, wy, wz, voxelSize*2);
-					chunk.updateFromLowerResolution(this);
+					((ServerWorld)world).chunkManager.reducedChunkUpdater.markDirty(this);
 				} else {
 					Logger.error("Not implemented: ");
 					Logger.error(new Exception());
@@ -177,24 +209,357 @@ public abstract class Chunk extends SavableChunk {
 		}
 	}
 	
+	/**
+	 * Chunk data layout:<br>
+	 * byte version, byte mode, unsigned short paletteLength, int palette[paletteLength], encoded palette indices.<br>
+	 * The indices are either bit-packed with the smallest possible bit size or stored as runs of {varint length, varint index}, whichever is smaller.<br>
+	 * The old layout stored every block as an int and is recognized by its length of 4*blocks.size. It is also still used when it is smaller.
+	 */
+	private static final byte CHUNK_FORMAT_VERSION = 1;
+	private static final byte MODE_BIT_PACKED = 0;
+	private static final byte MODE_RUN_LENGTH = 1;
+	/** Only used in save files. Stores {varint index gap, varint palette index} for each block that differs from the freshly generated terrain. */
+	private static final byte MODE_DELTA = 2;
+	private static final int HEADER_SIZE = 4;
+	private static final ThreadLocal<int[]> threadLocalIndices = ThreadLocal.withInitial(() -> new int[chunkSize*chunkSize*chunkSize]);
+
+	private static int getBitSize(int paletteLength) {
+		int bitSize = 0;
+		while(1 << bitSize < paletteLength) {
+			bitSize = bitSize == 0 ? 1 : bitSize*2;
+		}
+		return bitSize;
+	}
+
+	private static int getVarIntSize(int value) {
+		int size = 1;
+		while((value >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private static int putVarInt(byte[] data, int offset, int value) {
+		while((value & ~0x7f) != 0) {
+			data[offset++] = (byte)(value | 0x80);
+			value >>>= 7;
+		}
+		data[offset++] = (byte)value;
+		return offset;
+	}
+
 	@Override
 	public byte[] saveToByteArray() {
-		byte[] data = new byte[4*blocks.length];
-		for(int i = 0; i < blocks.length; i++) {
-			Bits.putInt(data, i*4, blocks[i]);
+		int[] indices = threadLocalIndices.get();
+		int[] palette = blocks.getIndices(indices);
+		// Remove unused palette entries and find the size of the run-length encoding:
+		int[] remap = new int[palette.length];
+		Arrays.fill(remap, -1);
+		int[] usedPalette = new int[palette.length];
+		int paletteLength = 0;
+		int runLengthSize = 0;
+		int runStart = 0;
+		for(int i = 0; i < blocks.size; i++) {
+			int index = remap[indices[i]];
+			if(index == -1) {
+				index = remap[indices[i]] = paletteLength;
+				usedPalette[paletteLength++] = palette[indices[i]];
+			}
+			indices[i] = index;
+			if(i != 0 && index != indices[i - 1]) {
+				runLengthSize += getVarIntSize(i - runStart) + getVarIntSize(indices[i - 1]);
+				runStart = i;
+			}
+		}
+		runLengthSize += getVarIntSize(blocks.size - runStart) + getVarIntSize(indices[blocks.size - 1]);
+		int bitSize = getBitSize(paletteLength);
+		int bitPackedSize = blocks.size*bitSize/8;
+
+		int dataStart = HEADER_SIZE + 4*paletteLength;
+		if(dataStart + Math.min(bitPackedSize, runLengthSize) >= 4*blocks.size) {
+			// Too many different blocks. Using the old layout:
+			byte[] data = new byte[4*blocks.size];
+			for(int i = 0; i < blocks.size; i++) {
+				Bits.putInt(data, i*4, usedPalette[indices[i]]);
+			}
+			return data;
+		}
+		byte mode = runLengthSize < bitPackedSize ? MODE_RUN_LENGTH : MODE_BIT_PACKED;
+		byte[] data = new byte[dataStart + Math.min(bitPackedSize, runLengthSize)];
+		data[0] = CHUNK_FORMAT_VERSION;
+		data[1] = mode;
+		Bits.putChar(data, 2, (char)paletteLength);
+		for(int i = 0; i < paletteLength; i++) {
+			Bits.putInt(data, HEADER_SIZE + 4*i, usedPalette[i]);
+		}
+		if(mode == MODE_RUN_LENGTH) {
+			int offset = dataStart;
+			runStart = 0;
+			for(int i = 1; i <= blocks.size; i++) {
+				if(i == blocks.size || indices[i] != indices[i - 1]) {
+					offset = putVarInt(data, offset, i - runStart);
+					offset = putVarInt(data, offset, indices[i - 1]);
+					runStart = i;
+				}
+			}
+		} else if(bitSize == 16) {
+			for(int i = 0; i < blocks.size; i++) {
+				Bits.putChar(data, dataStart + 2*i, (char)indices[i]);
+			}
+		} else if(bitSize != 0) {
+			for(int i = 0; i < blocks.size; i++) {
+				int bitIndex = i*bitSize;
+				data[dataStart + (bitIndex >>> 3)] |= indices[i] << (bitIndex & 7);
+			}
 		}
 		return data;
 	}
-	
+
+	private void loadLegacyFromByteArray(byte[] data, int offset) {
+		for(int i = 0; i < blocks.size; i++) {
+			blocks.set(i, Bits.getInt(data, offset + i*4));
+		}
+	}
+
+	@Override
+	public boolean loadFromByteArray(byte[] data, int offset, int outputLength) {
+		if(outputLength == 4*blocks.size) {
+			loadLegacyFromByteArray(data, offset);
+			blocks.optimizeLayout();
+			generated = true;
+			return true;
+		}
+		if(outputLength < HEADER_SIZE || data[offset] != CHUNK_FORMAT_VERSION) {
+			Logger.error("Chunk is corrupted(invalid data length "+outputLength+" or unknown version) : " + this);
+			return false;
+		}
+		byte mode = data[offset + 1];
+		int paletteLength = Bits.getChar(data, offset + 2);
+		int dataStart = HEADER_SIZE + 4*paletteLength;
+		if(paletteLength == 0 || paletteLength > blocks.size || dataStart > outputLength) {
+			Logger.error("Chunk is corrupted(invalid palette length "+paletteLength+") : " + this);
+			return false;
+		}
+		int[] palette = new int[paletteLength];
+		for(int i = 0; i < paletteLength; i++) {
+			palette[i] = Bits.getInt(data, offset + HEADER_SIZE + 4*i);
+		}
+		int[] indices = threadLocalIndices.get();
+		if(mode == MODE_RUN_LENGTH) {
+			int position = offset + dataStart;
+			int end = offset + outputLength;
+			int i = 0;
+			while(i < blocks.size) {
+				int runLength = 0;
+				int index = 0;
+				for(int value = 0; value < 2; value++) {
+					int result = 0;
+					int shift = 0;
+					byte b;
+					do {
+						if(position >= end || shift > 28) {
+							Logger.error("Chunk is corrupted(invalid run-length data) : " + this);
+							return false;
+						}
+						b = data[position++];
+						result |= (b & 0x7f) << shift;
+						shift += 7;
+					} while((b & 0x80) != 0);
+					if(value == 0) runLength = result;
+					else index = result;
+				}
+				if(runLength <= 0 || runLength > blocks.size - i || index < 0 || index >= paletteLength) {
+					Logger.error("Chunk is corrupted(invalid run of length "+runLength+" with index "+index+") : " + this);
+					return false;
+				}
+				Arrays.fill(indices, i, i + runLength, index);
+				i += runLength;
+			}
+			if(position != end) {
+				Logger.error("Chunk is corrupted(unexpected data after the runs) : " + this);
+				return false;
+			}
+		} else if(mode == MODE_BIT_PACKED) {
+			int bitSize = getBitSize(paletteLength);
+			if(outputLength - dataStart != blocks.size*bitSize/8) {
+				Logger.error("Chunk is corrupted(invalid data length "+outputLength+") : " + this);
+				return false;
+			}
+			for(int i = 0; i < blocks.size; i++) {
+				int index;
+				if(bitSize == 16) {
+					index = Bits.getChar(data, offset + dataStart + 2*i);
+				} else if(bitSize == 0) {
+					index = 0;
+				} else {
+					int bitIndex = i*bitSize;
+					index = data[offset + dataStart + (bitIndex >>> 3)] >>> (bitIndex & 7) & (1 << bitSize) - 1;
+				}
+				if(index >= paletteLength) {
+					Logger.error("Chunk is corrupted(invalid palette index "+index+") : " + this);
+					return false;
+				}
+				indices[i] = index;
+			}
+		} else {
+			Logger.error("Chunk is corrupted(unknown mode "+mode+") : " + this);
+			return false;
+		}
+		blocks.setAll(palette, paletteLength, indices);
+		generated = true;
+		return true;
+	}
+
+	/**
+	 * @return true if this chunk can be stored as difference to the generated terrain.
+	 */
+	private boolean supportsDeltaSaves() {
+		return world instanceof ServerWorld && (getClass() == NormalChunk.class || getClass() == ReducedChunk.class);
+	}
+
+	/**
+	 * @return a freshly generated chunk at the same position, which is used as base for delta saves.
+	 */
+	private Chunk generateDeltaBase() {
+		Chunk base = voxelSize == 1 ? new NormalChunk(world, wx, wy, wz) : new ReducedChunk(world, wx, wy, wz, CubyzMath.binaryLog(voxelSize));
+		base.generateTerrain(world.getSeed(), ((ServerWorld)world).chunkManager.terrainGenerationProfile);
+		return base;
+	}
+
+	/**
+	 * If enabled in the {@link ServerSettings}, only the blocks that differ from the generated terrain are stored.<br>
+	 * Falls back to the full data when that is smaller.
+	 */
 	@Override
-	public boolean loadFromByteArray(byte[] data, int outputLength) {
-		if(outputLength != 4*blocks.length) {
-			Logger.error("Chunk is corrupted(invalid data length "+outputLength+") : " + this);
+	public byte[] saveForStorage() {
+		byte[] fullData = saveToByteArray();
+		if(!ServerSettings.deltaChunkSaves || !supportsDeltaSaves()) return fullData;
+		Chunk base = generateDeltaBase();
+
+		int[] changedIndices = threadLocalIndices.get();
+		int changes = 0;
+		int dataSize = HEADER_SIZE;
+		HashMap<Integer, Integer> paletteMap = new HashMap<>();
+		int[] usedPalette = new int[16];
+		int lastIndex = -1;
+		for(int i = 0; i < blocks.size; i++) {
+			int block = blocks.get(i);
+			if(block == base.blocks.get(i)) continue;
+			Integer paletteIndex = paletteMap.get(block);
+			if(paletteIndex == null) {
+				paletteIndex = paletteMap.size();
+				paletteMap.put(block, paletteIndex);
+				if(paletteIndex == usedPalette.length) {
+					usedPalette = Arrays.copyOf(usedPalette, usedPalette.length*2);
+				}
+				usedPalette[paletteIndex] = block;
+				dataSize += 4;
+			}
+			dataSize += getVarIntSize(i - lastIndex) + getVarIntSize(paletteIndex);
+			if(dataSize >= fullData.length) return fullData; // The delta got too big.
+			lastIndex = i;
+			changedIndices[changes++] = i;
+		}
+		dataSize += getVarIntSize(changes);
+		if(dataSize >= fullData.length) return fullData;
+
+		byte[] data = new byte[dataSize];
+		data[0] = CHUNK_FORMAT_VERSION;
+		data[1] = MODE_DELTA;
+		Bits.putChar(data, 2, (char)paletteMap.size());
+		int offset = HEADER_SIZE;
+		for(int i = 0; i < paletteMap.size(); i++) {
+			Bits.putInt(data, offset, usedPalette[i]);
+			offset += 4;
+		}
+		offset = putVarInt(data, offset, changes);
+		lastIndex = -1;
+		for(int i = 0; i < changes; i++) {
+			int index = changedIndices[i];
+			offset = putVarInt(data, offset, index - lastIndex);
+			offset = putVarInt(data, offset, paletteMap.get(blocks.get(index)));
+			lastIndex = index;
+		}
+		assert offset == dataSize : "Delta size mismatch " + offset + " " + dataSize;
+		return data;
+	}
+
+	/**
+	 * Also accepts delta saves, in which case the terrain gets generated before applying the changes.
+	 */
+	@Override
+	public boolean loadFromStorage(byte[] data, int offset, int length) {
+		if(length < HEADER_SIZE || length == 4*blocks.size || data[offset + 1] != MODE_DELTA) {
+			return loadFromByteArray(data, offset, length);
+		}
+		if(data[offset] != CHUNK_FORMAT_VERSION || !supportsDeltaSaves()) {
+			Logger.error("Chunk is corrupted(unexpected delta save) : " + this);
+			return false;
+		}
+		int paletteLength = Bits.getChar(data, offset + 2);
+		int end = offset + length;
+		int position = offset + HEADER_SIZE + 4*paletteLength;
+		if(position > end) {
+			Logger.error("Chunk is corrupted(invalid palette length "+paletteLength+") : " + this);
+			return false;
+		}
+		int[] palette = new int[paletteLength];
+		for(int i = 0; i < paletteLength; i++) {
+			palette[i] = Bits.getInt(data, offset + HEADER_SIZE + 4*i);
+		}
+		// Read the full patch first, so nothing gets generated for corrupted data:
+		int[] values = new int[3];
+		int valueCount = 0;
+		int changes = -1;
+		int[] changedIndices = threadLocalIndices.get();
+		int[] changedValues = new int[0];
+		int lastIndex = -1;
+		int change = 0;
+		while(changes == -1 || change < changes) {
+			int result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if(position >= end || shift > 28) {
+					Logger.error("Chunk is corrupted(invalid delta data) : " + this);
+					return false;
+				}
+				b = data[position++];
+				result |= (b & 0x7f) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			if(changes == -1) {
+				if(result < 0 || result > blocks.size) {
+					Logger.error("Chunk is corrupted(invalid number of changes "+result+") : " + this);
+					return false;
+				}
+				changes = result;
+				changedValues = new int[changes];
+				continue;
+			}
+			values[valueCount++] = result;
+			if(valueCount == 2) {
+				valueCount = 0;
+				int index = lastIndex + values[0];
+				if(values[0] <= 0 || index >= blocks.size || values[1] < 0 || values[1] >= paletteLength) {
+					Logger.error("Chunk is corrupted(invalid change at "+index+" to palette index "+values[1]+") : " + this);
+					return false;
+				}
+				changedIndices[change] = index;
+				changedValues[change] = palette[values[1]];
+				lastIndex = index;
+				change++;
+			}
+		}
+		if(position != end) {
+			Logger.error("Chunk is corrupted(unexpected data after the changes) : " + this);
 			return false;
 		}
-		for(int i = 0; i < blocks.length; i++) {
-			blocks[i] = Bits.getInt(data, i*4);
+		generateTerrain(world.getSeed(), ((ServerWorld)world).chunkManager.terrainGenerationProfile);
+		for(int i = 0; i < changes; i++) {
+			blocks.set(changedIndices[i], changedValues[i]);
 		}
+		blocks.optimizeLayout();
 		generated = true;
 		return true;
 	}
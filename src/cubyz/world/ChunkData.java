@@ -36,6 +36,15 @@ public class ChunkData {
 		return -(float) source.getPosition().distanceSquared(wx + halfWidth, wy + halfWidth, wz + halfWidth)/voxelSize/voxelSize + 2*CubyzMath.binaryLog(voxelSize)*Chunk.chunkSize*Chunk.chunkSize;
 	}
 
+	/**
+	 * Chunks in the same cell of 2×2×2 chunks of the same resolution share their priority in a {@link cubyz.utils.ThreadPool}.
+	 * @return the cell that contains this chunk.
+	 */
+	public ChunkData getPriorityCell() {
+		int mask = ~(2*voxelSize*Chunk.chunkSize - 1);
+		return new ChunkData(wx & mask, wy & mask, wz & mask, voxelSize);
+	}
+
 	public double getMinDistanceSquared(double px, double py, double pz) {
 		int halfWidth = voxelSize * Chunk.chunkSize / 2;
 		double dx = Math.abs(wx + halfWidth - px);
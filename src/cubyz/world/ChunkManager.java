@@ -1,16 +1,20 @@
 package cubyz.world;
 
-import java.util.Arrays;
-
 import cubyz.multiplayer.Protocols;
+import cubyz.multiplayer.server.ChunkSendQueue;
 import cubyz.multiplayer.server.Server;
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.Logger;
 import cubyz.utils.ThreadPool;
 import cubyz.utils.datastructures.Cache;
+import cubyz.utils.datastructures.SingleFlight;
 import cubyz.utils.math.CubyzMath;
+import cubyz.utils.metrics.Counter;
+import cubyz.utils.metrics.Metrics;
 import cubyz.world.save.ChunkIO;
 import cubyz.world.terrain.*;
+import org.joml.Vector3d;
 import pixelguys.json.JsonObject;
 
 /**
@@ -23,29 +27,28 @@ public class ChunkManager {
 
 	public final TerrainGenerationProfile terrainGenerationProfile;
 
-	// There will be at most 1 GiB of reduced and 500 MB of normal chunks in here.
-	private static final int REDUCED_CHUNK_CACHE_MASK = 2047;
-	private static final int NORMAL_CHUNK_CACHE_MASK = 1023;
-	private final Cache<ReducedChunk> reducedChunkCache = new Cache<>(new ReducedChunk[REDUCED_CHUNK_CACHE_MASK+1][4]);
-	private final Cache<NormalChunk> normalChunkCache = new Cache<>(new NormalChunk[NORMAL_CHUNK_CACHE_MASK+1][4]);
-	// There will be at most 1 GiB of map data in here.
-	private static final int[] MAP_CACHE_MASK = {
-		7, // 256 MiB // 4(1 in best-case) maps are needed at most for each player. So 32 will be enough for 8(32 in best case) player groups.
-		31, // 256 MiB
-		63, // 128 MiB
-		255, // 128 MiB
-		511, // 64 MiB
-		2047, // 64 MiB
-	};
-	@SuppressWarnings("unchecked")
-	private final Cache<MapFragment>[] mapCache = new Cache[] {
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[0] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[1] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[2] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[3] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[4] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[5] + 1][4]),
-	};
+	public final ReducedChunkUpdater reducedChunkUpdater;
+
+	// The cache sizes are configured in MiB in the server settings.
+	private final Cache<ReducedChunk> reducedChunkCache = new Cache<>(ServerSettings.reducedChunkCacheSize*1024L*1024, ReducedChunk::getMemoryUsage, ReducedChunk::clean);
+	private final Cache<NormalChunk> normalChunkCache = new Cache<>(ServerSettings.normalChunkCacheSize*1024L*1024, NormalChunk::getMemoryUsage, null);
+	/** Holds the map fragments of all resolutions. The high resolution ones are a lot bigger, so the weights make sure they don't push out too many of the others. */
+	private final Cache<MapFragment> mapCache = new Cache<>(ServerSettings.mapFragmentCacheSize*1024L*1024, MapFragment::getMemoryUsage, null);
+
+	// Only one thread generates each key. Other threads that need it wait for that thread, instead of blocking everything with the same hash.
+	public final SingleFlight<ChunkData, ReducedChunk> reducedChunkGeneration = new SingleFlight<>();
+	public final SingleFlight<ChunkData, NormalChunk> normalChunkGeneration = new SingleFlight<>();
+	public final SingleFlight<MapFragmentCompare, MapFragment> mapFragmentGeneration = new SingleFlight<>();
+
+	/** Requests that were cancelled before their generation started. */
+	private static final Counter cancelledRequests = Metrics.counter("chunkRequests.cancelled");
+	/** Requests that were cancelled during their generation or while waiting in the send queue. */
+	private static final Counter wastedRequests = Metrics.counter("chunkRequests.wasted");
+	/** Requests for chunks that the user already had in the same version. */
+	private static final Counter unchangedChunks = Metrics.counter("chunkRequests.unchanged");
+
+	/** Hash of the chunks that contain the players. */
+	private long lastPlayerChunks;
 
 	private class ChunkLoadTask extends ThreadPool.Task {
 		private final ChunkData ch;
@@ -65,6 +68,11 @@ public class ChunkManager {
 			return priority;
 		}
 
+		@Override
+		public Object getBucketKey() {
+			return ch.getPriorityCell();
+		}
+
 		@Override
 		public boolean isStillNeeded() {
 			if(source != null) {
@@ -76,21 +84,19 @@ public class ChunkManager {
 					}
 				}
 				if(!isConnected) {
+					source.pendingChunkRequests.remove(ch, this);
 					return false;
 				}
 			}
 			if(System.currentTimeMillis() - creationTime > 10000) { // Only remove stuff after 10 seconds to account for trouble when for example teleporting.
 				for(User user : Server.users) {
-					double minDistSquare = ch.getMinDistanceSquared(user.player.getPosition().x, user.player.getPosition().y, user.player.getPosition().z);
-					//                                                                   ↓ Margin for error. (diagonal of 1 chunk)
-					double targetRenderDistance = (user.renderDistance*Chunk.chunkSize + Chunk.chunkSize*Math.sqrt(3));//*Math.pow(user.LODFactor, Math.log(ch.voxelSize)/Math.log(2));
-					if(ch.voxelSize != 1) {
-						targetRenderDistance *= ch.voxelSize*user.LODFactor;
-					}
-					if(minDistSquare <= targetRenderDistance*targetRenderDistance) {
+					if(user.isInRenderDistance(ch)) {
 						return true;
 					}
 				}
+				if(source != null) {
+					source.pendingChunkRequests.remove(ch, this);
+				}
 				return false;
 			}
 			return true;
@@ -98,7 +104,10 @@ public class ChunkManager {
 
 		@Override
 		public void run() {
-			synchronousGenerate(ch, source);
+			synchronousGenerate(ch, source, this);
+			if(source != null) {
+				source.pendingChunkRequests.remove(ch, this);
+			}
 		}
 	}
 
@@ -110,13 +119,110 @@ public class ChunkManager {
 		CaveBiomeMap.init(terrainGenerationProfile);
 		CaveMap.init(terrainGenerationProfile);
 		ClimateMap.init(terrainGenerationProfile);
+
+		reducedChunkUpdater = new ReducedChunkUpdater(this, world);
+
+		Metrics.registerCache("reducedChunks", reducedChunkCache);
+		Metrics.registerCache("normalChunks", normalChunkCache);
+		Metrics.registerCache("mapFragments", mapCache);
+		Metrics.registerGeneration("reducedChunks", reducedChunkGeneration);
+		Metrics.registerGeneration("normalChunks", normalChunkGeneration);
+		Metrics.registerGeneration("mapFragments", mapFragmentGeneration);
+	}
+
+	/**
+	 * The chunk priorities only change notably when a player enters another chunk, joins or leaves.
+	 * Only then the thread pool needs to update its priorities.
+	 */
+	public void updatePriorities() {
+		long playerChunks = 0;
+		for(User user : Server.users) {
+			Vector3d position = user.player.getPosition();
+			playerChunks = ((playerChunks*31 + ((long)Math.floor(position.x) >> Chunk.chunkShift))*31 + ((long)Math.floor(position.y) >> Chunk.chunkShift))*31 + ((long)Math.floor(position.z) >> Chunk.chunkShift);
+		}
+		if(playerChunks != lastPlayerChunks) {
+			lastPlayerChunks = playerChunks;
+			ThreadPool.GENERATION.requestPriorityUpdate();
+		}
 	}
 
 	public void queueChunk(ChunkData ch, User source) {
-		ThreadPool.addTask(new ChunkLoadTask(ch, source));
+		if(source != null && ch.voxelSize == 1) {
+			// Answer right away if the user already has this version of the chunk:
+			Integer delivered = source.deliveredChunkVersions.get(ch);
+			if(delivered != null) {
+				NormalChunk chunk = normalChunkCache.find(ch, ch.hashCode());
+				if(chunk != null && chunk.isGenerated() && chunk.getVersion() == delivered) {
+					Protocols.CHUNK_TRANSMISSION.sendUnchanged(source, ch);
+					unchangedChunks.increment();
+					return;
+				}
+			}
+		}
+		ChunkLoadTask task = new ChunkLoadTask(ch, source);
+		if(source != null && source.pendingChunkRequests.putIfAbsent(ch, task) != null) return; // Already requested.
+		ThreadPool.GENERATION.addTask(task);
 	}
-	
-	public void synchronousGenerate(ChunkData ch, User source) {
+
+	/**
+	 * Cancels a chunk request of the user. Queued requests are removed right away. Requests that are being generated don't get sent.
+	 */
+	public void cancelChunk(ChunkData ch, User source) {
+		source.deliveredChunkVersions.remove(ch);
+		if(source.chunkSendQueue.remove(ch)) {
+			wastedRequests.increment(); // Generated, but not sent yet.
+		}
+		ThreadPool.Task task = source.pendingChunkRequests.remove(ch);
+		if(task == null) return; // Already generated.
+		if(task.cancel()) {
+			cancelledRequests.increment();
+		}
+	}
+
+	/**
+	 * Makes sure the chunk gets sent in full the next time, because the user doesn't have it anymore. Unlike {@link #cancelChunk} this keeps the pending requests.
+	 */
+	public void forgetChunk(ChunkData ch, User source) {
+		source.deliveredChunkVersions.remove(ch);
+	}
+
+	/**
+	 * Queues the chunk for sending, or sends only a short "unchanged" message if the user already has this version.
+	 */
+	private void sendNormalChunk(User user, NormalChunk chunk) {
+		int version = chunk.getVersion(); // Needs to be read before the data, so changes in between cause a resend later.
+		Integer delivered = user.deliveredChunkVersions.get(chunk);
+		if(delivered != null && delivered == version) {
+			Protocols.CHUNK_TRANSMISSION.sendUnchanged(user, chunk);
+			unchangedChunks.increment();
+			return;
+		}
+		byte[] data = Protocols.CHUNK_TRANSMISSION.prepareChunk(chunk);
+		if(data != null) {
+			user.chunkSendQueue.add(chunk, data, version);
+		}
+	}
+
+	private void queueReducedChunk(User user, ChunkData ch) {
+		byte[] data = Protocols.CHUNK_TRANSMISSION.prepareChunk(ch);
+		if(data != null) {
+			user.chunkSendQueue.add(ch, data, ChunkSendQueue.NO_VERSION);
+		}
+	}
+
+	/**
+	 * @return false if the request was cancelled while its chunk was generated. The generated chunk stays in the cache, so the work is only partially wasted.
+	 */
+	private boolean shouldSend(ThreadPool.Task task) {
+		if(task == null || !task.isCancelled()) return true;
+		wastedRequests.increment();
+		return false;
+	}
+
+	/**
+	 * @param task the task that generates the chunk, to check if it got cancelled. May be null.
+	 */
+	public void synchronousGenerate(ChunkData ch, User source, ThreadPool.Task task) {
 		int chunkSize = ch.voxelSize*Chunk.chunkSize;
 		int chunkMask = chunkSize - 1;
 		if (ch.voxelSize == 1) {
@@ -129,24 +235,30 @@ public class ChunkManager {
 			} else {
 				chunk = getOrGenerateNormalChunk(ch);
 			}
+			if(!shouldSend(task)) return;
 			if(source != null) {
-				Protocols.CHUNK_TRANSMISSION.sendChunk(source, chunk);
+				sendNormalChunk(source, chunk);
 			} else {
+				int version = chunk.getVersion();
+				byte[] data = Protocols.CHUNK_TRANSMISSION.prepareChunk(chunk);
+				if(data == null) return;
 				for(User user : Server.users) {
-					Protocols.CHUNK_TRANSMISSION.sendChunk(user, chunk);
+					user.chunkSendQueue.add(chunk, data, version);
 				}
 			}
 		} else if((ch.wx & (ch.voxelSize*Chunk.chunkSize - 1)) == 0) { // requests an aligned chunk (→ not the visibility data)
 			ReducedChunk chunk = getOrGenerateReducedChunk(ch.wx, ch.wy, ch.wz, ch.voxelSize);
+			if(!shouldSend(task)) return;
 			if(source != null) {
-				Protocols.CHUNK_TRANSMISSION.sendChunk(source, chunk);
+				queueReducedChunk(source, chunk);
 			} else {
 				Logger.error("No source for aligned chunk.");
 			}
 		} else {
 			ReducedChunkVisibilityData visibilityData = new ReducedChunkVisibilityData(world, ch.wx, ch.wy, ch.wz, ch.voxelSize);
+			if(!shouldSend(task)) return;
 			if(source != null) {
-				Protocols.CHUNK_TRANSMISSION.sendChunk(source, visibilityData);
+				queueReducedChunk(source, visibilityData);
 			}/*TODO: This feature was temporarily removed to keep compatibility with the zig version. else {
 				for(User user : Server.users) {
 					Protocols.CHUNK_TRANSMISSION.sendChunk(user, visibilityData);
@@ -160,22 +272,21 @@ public class ChunkManager {
 		wz &= ~MapFragment.MAP_MASK;
 
 		MapFragmentCompare data = new MapFragmentCompare(wx, wz, voxelSize);
-		int index = CubyzMath.binaryLog(voxelSize);
-		int hash = data.hashCode() & MAP_CACHE_MASK[index];
+		int hash = data.hashCode();
 
-		MapFragment res = mapCache[index].find(data, hash);
+		MapFragment res = mapCache.find(data, hash);
 		if (res != null) return res;
 
-		synchronized(mapCache[index].cache[hash]) {
-			res = mapCache[index].find(data, hash);
-			if (res != null) return res;
+		int x = wx, z = wz;
+		return mapFragmentGeneration.run(data, () -> {
+			MapFragment fragment = mapCache.find(data, hash);
+			if (fragment != null) return fragment;
 
 			// Generate a new map fragment:
-			res = new MapFragment(wx, wz, voxelSize);
-			terrainGenerationProfile.mapFragmentGenerator.generateMapFragment(res, world.getSeed());
-			mapCache[index].addToCache(res, hash);
-		}
-		return res;
+			fragment = new MapFragment(x, z, voxelSize);
+			terrainGenerationProfile.mapFragmentGenerator.generateMapFragment(fragment, world.getSeed());
+			return mapCache.addToCache(fragment, hash);
+		});
 	}
 
 	/**
@@ -192,20 +303,17 @@ public class ChunkManager {
 		wy &= chunkMask;
 		wz &= chunkMask;
 		ChunkData data = new ChunkData(wx, wy, wz, voxelSize);
-		int hash = data.hashCode() & REDUCED_CHUNK_CACHE_MASK;
+		int hash = data.hashCode();
 		ReducedChunk res = reducedChunkCache.find(data, hash);
 		if (res != null) return res;
-		synchronized(reducedChunkCache.cache[hash]) {
-			res = reducedChunkCache.find(data, hash);
-			if (res != null) return res;
+		return reducedChunkGeneration.run(data, () -> {
+			ReducedChunk chunk = reducedChunkCache.find(data, hash);
+			if (chunk != null) return chunk;
 			// Generate a new chunk:
-			res = new ReducedChunk(world, wx, wy, wz, CubyzMath.binaryLog(voxelSize));
-			res.generate(world.getSeed(), terrainGenerationProfile);
-			ReducedChunk old = reducedChunkCache.addToCache(res, hash);
-			if(old != null)
-				old.clean();
-		}
-		return res;
+			chunk = new ReducedChunk(world, data.wx, data.wy, data.wz, CubyzMath.binaryLog(voxelSize));
+			chunk.generate(world.getSeed(), terrainGenerationProfile);
+			return reducedChunkCache.addToCache(chunk, hash);
+		});
 	}
 
 	/**
@@ -214,48 +322,45 @@ public class ChunkManager {
 	 * @return
 	 */
 	public NormalChunk getOrGenerateNormalChunk(ChunkData data) {
-		int hash = data.hashCode() & NORMAL_CHUNK_CACHE_MASK;
+		int hash = data.hashCode();
 		NormalChunk res = normalChunkCache.find(data, hash);
 		if (res != null) return res;
-		synchronized(normalChunkCache.cache[hash]) {
-			res = normalChunkCache.find(data, hash);
-			if (res != null) return res;
+		return normalChunkGeneration.run(data, () -> {
+			NormalChunk chunk = normalChunkCache.find(data, hash);
+			if (chunk != null) return chunk;
 			// Check if the world has it:
-			res = world.getChunk(data.wx, data.wy, data.wz);
-			if(res == null) {
+			chunk = world.getChunk(data.wx, data.wy, data.wz);
+			if(chunk == null) {
 				// Generate a new chunk:
-				res = new NormalChunk(world, data.wx, data.wy, data.wz);
+				chunk = new NormalChunk(world, data.wx, data.wy, data.wz);
 			}
-			if(!res.isGenerated()) {
-				res.generate(world.getSeed(), terrainGenerationProfile);
+			if(!chunk.isGenerated()) {
+				chunk.generate(world.getSeed(), terrainGenerationProfile);
 			}
-			normalChunkCache.addToCache(res, hash);
-		}
-		return res;
+			return normalChunkCache.addToCache(chunk, hash);
+		});
 	}
 	public NormalChunk getNormalChunkFromCache(ChunkData data) {
-		int hash = data.hashCode() & NORMAL_CHUNK_CACHE_MASK;
-		return normalChunkCache.find(data, hash);
+		return normalChunkCache.find(data, data.hashCode());
+	}
+
+	/**
+	 * @return the number of generations and how much the threads had to wait for each other.
+	 */
+	public String getGenerationStatistics() {
+		return "Map fragments: " + mapFragmentGeneration + "\nReduced chunks: " + reducedChunkGeneration + "\nNormal chunks: " + normalChunkGeneration;
 	}
 
 	public void cleanup() {
-		for(Cache<MapFragment> cache : mapCache) {
-			cache.clear();
-		}
+		Logger.info("Chunk generation statistics:\n" + getGenerationStatistics());
+		mapCache.clear();
 		for(int i = 0; i < 5; i++) { // Saving one chunk may create and update a new lower resolution chunk.
-		
-			for(ReducedChunk[] array : reducedChunkCache.cache) {
-				array = Arrays.copyOf(array, array.length); // Make a copy to prevent issues if the cache gets resorted during cleanup.
-				for(ReducedChunk chunk : array) {
-					if (chunk != null)
-						chunk.clean();
-				}
-			}
-		}
-		for(Cache<MapFragment> cache : mapCache) {
-			cache.clear();
+			reducedChunkUpdater.flush();
+			reducedChunkCache.foreach(ReducedChunk::clean);
 		}
-		ThreadPool.clear();
+		reducedChunkUpdater.cleanup();
+		mapCache.clear();
+		ThreadPool.GENERATION.clear();
 		CaveBiomeMap.cleanup();
 		CaveMap.cleanup();
 		ClimateMap.cleanup();
@@ -263,9 +368,18 @@ public class ChunkManager {
 		ChunkIO.clean();
 	}
 
+	/**
+	 * Queues the changed lower resolution chunks for saving, without waiting for the chunks that get changed by that.
+	 */
+	public void saveReducedChunks() {
+		reducedChunkCache.foreach(Chunk::save);
+	}
+
 	public void forceSave() {
 		for(int i = 0; i < 5; i++) { // Saving one chunk may create and update a new lower resolution chunk.
+			reducedChunkUpdater.flush();
 			reducedChunkCache.foreach(Chunk::save);
 		}
+		reducedChunkUpdater.flush();
 	}
 }
@@ -0,0 +1,327 @@
+package cubyz.world;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cubyz.Constants;
+import cubyz.api.Side;
+import cubyz.command.CommandSource;
+import cubyz.modding.ModLoader;
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.utils.Logger;
+import cubyz.world.save.ChunkIO;
+import cubyz.world.save.ChunkSaveQueue;
+import cubyz.world.save.RegionFile;
+import pixelguys.json.JsonObject;
+import pixelguys.json.JsonParser;
+
+/**
+ * Generates and stores all chunks inside of a box, so players don't have to wait for them later.<br>
+ * The work is split into region files, which are distributed over all cores. That way each region file is only opened once and written in one go.<br>
+ * Saving the normal chunks also updates all lower resolution chunks above them.<br>
+ * The progress is stored in the world folder, so an interrupted pregeneration can be resumed.
+ */
+
+public class ChunkPregenerator {
+	private static final int REGION_WIDTH = RegionFile.REGION_SIZE*Chunk.chunkSize;
+	private static final long PROGRESS_INTERVAL = 5000;
+
+	private static ChunkPregenerator running;
+	private static final Object cleanupLock = new Object();
+	private static boolean worldCleanedUp = false;
+
+	private final ServerWorld world;
+	private final CommandSource source;
+	private final File progressFile;
+	private final int minX, minY, minZ, maxX, maxY, maxZ;
+	/**Number of regions in each dimension.*/
+	private final int regionsX, regionsY, regionsZ;
+	private final int totalRegions;
+
+	private final AtomicInteger nextRegion = new AtomicInteger();
+	private final AtomicInteger generatedChunks = new AtomicInteger();
+	/**All regions below this index are done. Used for resuming.*/
+	private int completedRegions;
+	private final boolean[] regionDone;
+	private volatile boolean stopRequested = false;
+
+	/**
+	 * The coordinates get extended to the surrounding region borders.
+	 */
+	private ChunkPregenerator(ServerWorld world, CommandSource source, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		this.world = world;
+		this.source = source;
+		progressFile = new File("saves/" + world.getName() + "/pregeneration.json");
+		this.minX = Math.floorDiv(Math.min(minX, maxX), REGION_WIDTH)*REGION_WIDTH;
+		this.minY = Math.floorDiv(Math.min(minY, maxY), REGION_WIDTH)*REGION_WIDTH;
+		this.minZ = Math.floorDiv(Math.min(minZ, maxZ), REGION_WIDTH)*REGION_WIDTH;
+		this.maxX = Math.floorDiv(Math.max(minX, maxX), REGION_WIDTH)*REGION_WIDTH + REGION_WIDTH;
+		this.maxY = Math.floorDiv(Math.max(minY, maxY), REGION_WIDTH)*REGION_WIDTH + REGION_WIDTH;
+		this.maxZ = Math.floorDiv(Math.max(minZ, maxZ), REGION_WIDTH)*REGION_WIDTH + REGION_WIDTH;
+		regionsX = (this.maxX - this.minX)/REGION_WIDTH;
+		regionsY = (this.maxY - this.minY)/REGION_WIDTH;
+		regionsZ = (this.maxZ - this.minZ)/REGION_WIDTH;
+		totalRegions = regionsX*regionsY*regionsZ;
+		regionDone = new boolean[totalRegions];
+	}
+
+	/**
+	 * Starts the pregeneration of the given box on background threads.
+	 * @return false if there is already a pregeneration running.
+	 */
+	public static boolean start(ServerWorld world, CommandSource source, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		ChunkPregenerator pregenerator = new ChunkPregenerator(world, source, minX, minY, minZ, maxX, maxY, maxZ);
+		return pregenerator.start();
+	}
+
+	/**
+	 * Continues a pregeneration that was stopped or interrupted.
+	 * @return false if there is nothing to resume or there is already a pregeneration running.
+	 */
+	public static boolean resume(ServerWorld world, CommandSource source) {
+		File file = new File("saves/" + world.getName() + "/pregeneration.json");
+		if(!file.exists()) return false;
+		JsonObject json = JsonParser.parseObjectFromFile(file.getPath());
+		ChunkPregenerator pregenerator = new ChunkPregenerator(world, source,
+			json.getInt("minX", 0), json.getInt("minY", 0), json.getInt("minZ", 0),
+			json.getInt("maxX", 0) - 1, json.getInt("maxY", 0) - 1, json.getInt("maxZ", 0) - 1
+		);
+		int completed = Math.max(0, Math.min(json.getInt("completedRegions", 0), pregenerator.totalRegions));
+		pregenerator.completedRegions = completed;
+		pregenerator.nextRegion.set(completed);
+		for(int i = 0; i < completed; i++) {
+			pregenerator.regionDone[i] = true;
+		}
+		return pregenerator.start();
+	}
+
+	/**
+	 * Stops the running pregeneration after the regions that are currently in progress.
+	 * @return false if nothing is running.
+	 */
+	public static boolean stop() {
+		synchronized(ChunkPregenerator.class) {
+			if(running == null) return false;
+			running.stopRequested = true;
+			return true;
+		}
+	}
+
+	public static String getStatus() {
+		synchronized(ChunkPregenerator.class) {
+			if(running == null) return "No pregeneration is running.";
+			return running.getProgress();
+		}
+	}
+
+	private boolean start() {
+		synchronized(ChunkPregenerator.class) {
+			if(running != null) return false;
+			running = this;
+		}
+		Thread thread = new Thread(this::run, "Chunk-Pregenerator");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	private String getProgress() {
+		int done;
+		synchronized(this) {
+			done = completedRegions;
+			for(int i = completedRegions; i < totalRegions; i++) {
+				if(regionDone[i]) done++;
+			}
+		}
+		return "Pregenerated " + done + "/" + totalRegions + " regions(" + (100*done/Math.max(1, totalRegions)) + "%).";
+	}
+
+	private void feedback(String message) {
+		Logger.info(message);
+		if(source != null) {
+			source.feedback(message);
+		}
+	}
+
+	/**
+	 * @param completedRegions the regions that are written to the disk.
+	 */
+	private synchronized void saveProgress(int completedRegions) {
+		JsonObject json = new JsonObject();
+		json.put("minX", minX);
+		json.put("minY", minY);
+		json.put("minZ", minZ);
+		json.put("maxX", maxX);
+		json.put("maxY", maxY);
+		json.put("maxZ", maxZ);
+		json.put("completedRegions", completedRegions);
+		JsonParser.storeToFile(json, progressFile.getPath());
+	}
+
+	private synchronized void markDone(int region) {
+		regionDone[region] = true;
+		while(completedRegions < totalRegions && regionDone[completedRegions]) {
+			completedRegions++;
+		}
+	}
+
+	/**
+	 * Generates and saves all normal chunks of the region.
+	 */
+	private void generateRegion(int region) {
+		int rz = region % regionsZ;
+		int ry = region / regionsZ % regionsY;
+		int rx = region / regionsZ / regionsY;
+		int startX = minX + rx*REGION_WIDTH;
+		int startY = minY + ry*REGION_WIDTH;
+		int startZ = minZ + rz*REGION_WIDTH;
+		for(int x = startX; x < startX + REGION_WIDTH; x += Chunk.chunkSize) {
+			for(int y = startY; y < startY + REGION_WIDTH; y += Chunk.chunkSize) {
+				for(int z = startZ; z < startZ + REGION_WIDTH; z += Chunk.chunkSize) {
+					NormalChunk chunk = world.chunkManager.getOrGenerateNormalChunk(new ChunkData(x, y, z, 1));
+					chunk.setChanged();
+					chunk.save();
+					generatedChunks.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private void work() {
+		while(!stopRequested) {
+			int region = nextRegion.getAndIncrement();
+			if(region >= totalRegions) return;
+			try {
+				generateRegion(region);
+			} catch (Throwable e) {
+				Logger.error("Could not pregenerate region " + region + "!");
+				Logger.error(e);
+				stopRequested = true;
+				return;
+			}
+			markDone(region);
+		}
+	}
+
+	private void run() {
+		long startTime = System.currentTimeMillis();
+		feedback("Pregenerating " + (totalRegions - completedRegions) + " regions from (" + minX + ", " + minY + ", " + minZ + ") to (" + maxX + ", " + maxY + ", " + maxZ + ").");
+		saveProgress(completedRegions);
+		Thread[] workers = new Thread[Runtime.getRuntime().availableProcessors()];
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(this::work, "Chunk-Pregenerator-" + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		try {
+			for(Thread worker : workers) {
+				while(worker.isAlive()) {
+					worker.join(PROGRESS_INTERVAL);
+					float seconds = (System.currentTimeMillis() - startTime)/1000.0f;
+					// The chunks of the done regions might still be queued, so they need to be written before counting them:
+					int completed;
+					synchronized(this) {
+						completed = completedRegions;
+					}
+					world.chunkManager.forceSave();
+					ChunkIO.save();
+					saveProgress(completed);
+					Logger.info(getProgress() + " " + Math.round(generatedChunks.get()/seconds) + " chunks/s, " + ChunkSaveQueue.size() + " chunks waiting to be saved.");
+				}
+			}
+		} catch (InterruptedException e) {
+			stopRequested = true;
+			Logger.error(e);
+		}
+		// Write the lower resolution chunks that were updated on the way:
+		world.chunkManager.forceSave();
+		ChunkIO.save();
+		float seconds = (System.currentTimeMillis() - startTime)/1000.0f;
+		String speed = generatedChunks.get() + " chunks in " + Math.round(seconds) + " s(" + Math.round(generatedChunks.get()/Math.max(seconds, 0.001f)) + " chunks/s).";
+		if(completedRegions == totalRegions) {
+			progressFile.delete();
+			feedback("Finished pregeneration: " + speed);
+		} else {
+			saveProgress(completedRegions);
+			feedback("Stopped pregeneration: " + speed + " " + getProgress() + " Use resume to continue.");
+		}
+		synchronized(ChunkPregenerator.class) {
+			running = null;
+		}
+	}
+
+	/**
+	 * Waits until the running pregeneration is done.
+	 */
+	private static void waitUntilDone() throws InterruptedException {
+		while(true) {
+			synchronized(ChunkPregenerator.class) {
+				if(running == null) return;
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Cleans up the world of the headless pregeneration once. Blocks until it is done, also when another thread is doing it.
+	 */
+	private static void cleanupWorld(ServerWorld world) {
+		synchronized(cleanupLock) {
+			if(worldCleanedUp) return;
+			worldCleanedUp = true;
+			world.cleanup();
+		}
+	}
+
+	/**
+	 * Headless entry point that pregenerates an existing or new world without starting a server.<br>
+	 * Usage: &lt;world name&gt; &lt;radius around spawn&gt; | &lt;world name&gt; &lt;x1&gt; &lt;y1&gt; &lt;z1&gt; &lt;x2&gt; &lt;y2&gt; &lt;z2&gt; | &lt;world name&gt; resume
+	 */
+	public static void main(String[] args) {
+		if(args.length != 2 && args.length != 7) {
+			Logger.error("Usage: <world name> (<radius around spawn> | <x1> <y1> <z1> <x2> <y2> <z2> | resume)");
+			System.exit(1);
+		}
+		Constants.setGameSide(Side.SERVER);
+		ModLoader.load();
+		ServerSettings.load();
+		ServerWorld world = new ServerWorld(args[0], null);
+		boolean started;
+		try {
+			if(args[1].equals("resume")) {
+				started = resume(world, null);
+			} else if(args.length == 2) {
+				int radius = Integer.parseInt(args[1]);
+				started = start(world, null, world.spawn.x - radius, world.spawn.y - radius, world.spawn.z - radius, world.spawn.x + radius, world.spawn.y + radius, world.spawn.z + radius);
+			} else {
+				started = start(world, null, Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+			}
+		} catch (NumberFormatException e) {
+			Logger.error(e);
+			started = false;
+		}
+		if(started) {
+			// Allow stopping with Ctrl+C and resuming later:
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				if(stop()) {
+					try {
+						waitUntilDone();
+					} catch (InterruptedException e) {
+						Logger.error(e);
+					}
+				}
+				// The JVM halts once the hooks are done, so the main thread can't be relied on to save the world:
+				cleanupWorld(world);
+			}));
+			try {
+				waitUntilDone();
+			} catch (InterruptedException e) {
+				Logger.error(e);
+			}
+		} else {
+			Logger.error("Nothing to pregenerate.");
+		}
+		cleanupWorld(world);
+		System.exit(started ? 0 : 1);
+	}
+}
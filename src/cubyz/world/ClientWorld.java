@@ -7,12 +7,14 @@ import cubyz.client.entity.ClientPlayer;
 import cubyz.client.entity.InterpolatedItemEntityManager;
 import cubyz.multiplayer.client.ServerConnection;
 import cubyz.modding.ModLoader;
+import cubyz.multiplayer.EntitySnapshot;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnectionManager;
 import cubyz.rendering.RenderOctTree;
 import cubyz.rendering.VisibleChunk;
 import cubyz.multiplayer.server.Server;
 import cubyz.utils.ThreadPool;
+import cubyz.utils.datastructures.Cache;
 import cubyz.world.blocks.BlockInstance;
 import cubyz.world.blocks.Blocks;
 import cubyz.world.items.ItemStack;
@@ -24,6 +26,7 @@ import org.joml.Vector4f;
 import pixelguys.json.JsonObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class ClientWorld extends World {
 	public final ServerConnection serverConnection;
@@ -32,6 +35,17 @@ public class ClientWorld extends World {
 	float ambientLight = 0f;
 	Vector4f clearColor = new Vector4f(0, 0, 0, 1.0f);
 
+	/** Chunks that left the render distance. The server knows which of them the client has and answers their requests with a short "unchanged" message. */
+	private final Cache<VisibleChunk> receivedChunkCache = new Cache<>(ClientSettings.receivedChunkCacheSize*1024L*1024, VisibleChunk::getMemoryUsage, this::forgetChunk);
+	/** Evicted chunks. The server gets told about them with the next cancel message. */
+	private final ArrayList<ChunkData> forgottenChunks = new ArrayList<>();
+
+	/** Hash of the chunk that contains the player. */
+	private long lastPlayerChunk;
+
+	/** The recent entity snapshots. The server sends the differences to them. */
+	public final EntitySnapshot.History entitySnapshots = new EntitySnapshot.History();
+
 	public Biome playerBiome;
 	public final ArrayList<String> chatHistory = new ArrayList<>();
 
@@ -83,6 +97,13 @@ public class ClientWorld extends World {
 			milliTime += 100;
 			if (doGameTimeCycle) gameTime++; // gameTime is measured in 100ms.
 		}
+		// The chunk priorities only change notably when the player enters another chunk:
+		Vector3d position = player.getPosition();
+		long playerChunk = ((((long)Math.floor(position.x) >> Chunk.chunkShift)*31 + ((long)Math.floor(position.y) >> Chunk.chunkShift))*31 + ((long)Math.floor(position.z) >> Chunk.chunkShift));
+		if(playerChunk != lastPlayerChunk) {
+			lastPlayerChunk = playerChunk;
+			ThreadPool.MESHING.requestPriorityUpdate();
+		}
 		int dayCycle = World.DAY_CYCLE;
 		// Ambient light
 		{
@@ -161,6 +182,49 @@ public class ClientWorld extends World {
 		Protocols.CHUNK_REQUEST.sendRequest(serverConnection, chunks);
 	}
 
+	/**
+	 * Tells the server that the chunks are no longer needed. Also tells it about the chunks that were evicted from the cache.
+	 */
+	public void cancelChunks(ChunkData[] chunks) {
+		forgetChunks(new ChunkData[0]);
+		Protocols.CHUNK_REQUEST.sendCancel(serverConnection, chunks);
+	}
+
+	/**
+	 * Tells the server that the client doesn't have these chunks anymore, so it sends them in full the next time. Also includes the chunks that were evicted from the cache.<br>
+	 * Unlike a cancel this doesn't drop the pending requests, the evicted chunks might have been requested again.
+	 */
+	public void forgetChunks(ChunkData[] chunks) {
+		synchronized(forgottenChunks) {
+			if(!forgottenChunks.isEmpty()) {
+				forgottenChunks.addAll(Arrays.asList(chunks));
+				chunks = forgottenChunks.toArray(new ChunkData[0]);
+				forgottenChunks.clear();
+			}
+		}
+		Protocols.CHUNK_REQUEST.sendForget(serverConnection, chunks);
+	}
+
+	/**
+	 * Keeps a chunk that left the render distance, in case it gets requested again.
+	 */
+	public void cacheChunk(VisibleChunk chunk) {
+		receivedChunkCache.addToCache(chunk, chunk.hashCode());
+	}
+
+	/**
+	 * @return the cached chunk at this position or null. The chunk gets removed from the cache.
+	 */
+	public VisibleChunk takeCachedChunk(ChunkData data) {
+		return receivedChunkCache.remove(data, data.hashCode());
+	}
+
+	private void forgetChunk(VisibleChunk chunk) {
+		synchronized(forgottenChunks) {
+			forgottenChunks.add(new ChunkData(chunk.wx, chunk.wy, chunk.wz, chunk.voxelSize));
+		}
+	}
+
 	@Override
 	public NormalChunk getChunk(int wx, int wy, int wz) {
 		RenderOctTree.OctTreeNode node = Cubyz.chunkTree.findNode(new ChunkData(wx, wy, wz, 1));
@@ -175,7 +239,8 @@ public class ClientWorld extends World {
 	@Override
 	public void cleanup() {
 		connectionManager.cleanup();
-		ThreadPool.clear();
+		ThreadPool.MESHING.clear();
+		receivedChunkCache.clear();
 	}
 
 	@Override
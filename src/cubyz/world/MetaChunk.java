@@ -2,13 +2,13 @@ package cubyz.world;
 
 import java.util.ArrayList;
 
-import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.Logger;
 import cubyz.world.blocks.BlockEntity;
 import cubyz.world.blocks.Blocks;
 import cubyz.world.blocks.Updateable;
+import cubyz.world.save.EntityChunk;
 
 /**
  * A chunk of chunks.
@@ -21,12 +21,15 @@ public class MetaChunk {
 	public final int wx, wy, wz;
 	public final NormalChunk[] chunks;
 	public final ServerWorld world;
+	/**The entities are stored per meta chunk, so they can be loaded together with it.*/
+	public final EntityChunk entityChunk;
 	public MetaChunk(int wx, int wy, int wz, ServerWorld world) {
 		this.wx = wx;
 		this.wy = wy;
 		this.wz = wz;
 		chunks = new NormalChunk[metaChunkSize*metaChunkSize*metaChunkSize];
 		this.world = world;
+		entityChunk = new EntityChunk(world, wx, wy, wz);
 	}
 	
 	public void save() {
@@ -90,9 +93,7 @@ public class MetaChunk {
 							int dz = Neighbors.REL_Z[i];
 							if (dy == -1 || (neighbors[Neighbors.DIR_DOWN] != 0 && Blocks.blockClass(neighbors[Neighbors.DIR_DOWN]) != Blocks.BlockClass.FLUID)) {
 								ch.addBlockPossiblyOutside(block, wx+bx+dx, wy+by+dy, wz+bz+dz, true);
-								for(User user : Server.users) { // Send the liquid update to all players:
-									Protocols.BLOCK_UPDATE.send(user, wx+bx+dx, wy+by+dy, wz+bz+dz, block);
-								}
+								world.blockUpdates.add(wx+bx+dx, wy+by+dy, wz+bz+dz, block);
 							}
 						}
 					}
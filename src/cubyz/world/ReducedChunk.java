@@ -1,5 +1,8 @@
 package cubyz.world;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import cubyz.world.blocks.Blocks;
 
 /**
@@ -35,8 +38,9 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		if (blocks[index] == 0 || Blocks.degradable(blocks[index])) {
-			blocks[index] = newBlock;
+		int block = blocks.get(index);
+		if (block == 0 || Blocks.degradable(block)) {
+			blocks.set(index, newBlock);
 		}
 	}
 	
@@ -46,7 +50,7 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		blocks[index] = newBlock;
+		blocks.set(index, newBlock);
 	}
 	
 	@Override
@@ -55,27 +59,41 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		blocks[index] = newBlock;
+		blocks.set(index, newBlock);
 	}
 
-	public void updateFromLowerResolution(Chunk chunk) {
+	private static final ThreadLocal<int[]> threadLocalBlocks = ThreadLocal.withInitial(() -> new int[chunkSize*chunkSize*chunkSize]);
+
+	/**
+	 * Downsamples the given chunk into the corresponding octant of this chunk.<br>
+	 * Doesn't mark this chunk as changed and doesn't send any updates, so multiple octants can be combined.
+	 */
+	public void downsampleFrom(Chunk chunk) {
 		int xOffset = chunk.wx != wx ? chunkSize/2 : 0; // Offsets of the lower resolution chunk in this chunk.
 		int yOffset = chunk.wy != wy ? chunkSize/2 : 0;
 		int zOffset = chunk.wz != wz ? chunkSize/2 : 0;
+
+		// Unpacking the blocks once is a lot faster than going through the palette for every neighbor:
+		int[] sourceBlocks = threadLocalBlocks.get();
+		int[] palette = chunk.blocks.getIndices(sourceBlocks);
+		for(int i = 0; i < chunk.blocks.size; i++) {
+			sourceBlocks[i] = palette[sourceBlocks[i]];
+		}
+		int[] neighborCount = new int[8];
+		int[] blocks = new int[8];
 		
 		for(int x = 0; x < chunkSize/2; x++) {
 			for(int y = 0; y < chunkSize/2; y++) {
 				for(int z = 0; z < chunkSize/2; z++) {
 					// Count the neighbors for each subblock. An transparent block counts 5. A chunk border(unknown block) only counts 1.
-					int[] neighborCount = new int[8];
-					int[] blocks = new int[8];
 					int maxCount = 0;
 					for(int dx = 0; dx <= 1; dx++) {
 						for(int dy = 0; dy <= 1; dy++) {
 							for(int dz = 0; dz <= 1; dz++) {
 								int index = getIndex(x*2 + dx, y*2 + dy, z*2 + dz);
 								int i = dx*4 + dz*2 + dy;
-								blocks[i] = chunk.blocks[index];
+								blocks[i] = sourceBlocks[index];
+								neighborCount[i] = 0;
 								if(blocks[i] == 0) continue; // I don't care about air blocks.
 								
 								int count = 0;
@@ -85,7 +103,7 @@ public class ReducedChunk extends Chunk {
 									int nz = z*2 + dz + Neighbors.REL_Z[n];
 									if((nx & chunkMask) == nx && (ny & chunkMask) == ny && (nz & chunkMask) == nz) { // If it's inside the chunk.
 										int neighborIndex = getIndex(nx, ny, nz);
-										if(Blocks.transparent(chunk.blocks[neighborIndex])) {
+										if(Blocks.transparent(sourceBlocks[neighborIndex])) {
 											count += 5;
 										}
 									} else {
@@ -108,12 +126,19 @@ public class ReducedChunk extends Chunk {
 					}
 					// Update the block:
 					int thisIndex = getIndex(x + xOffset, y + yOffset, z + zOffset);
-					this.blocks[thisIndex] = block;
+					this.blocks.set(thisIndex, block);
 				}
 			}
 		}
-		
-		// Create updated meshes and send to client:
+	}
+
+	/**
+	 * Adds the visibility data that needs to be resent after the octant of the given lower resolution chunk changed.
+	 */
+	public void addAffectedVisibilityData(Chunk chunk, Set<ChunkData> result) {
+		int xOffset = chunk.wx != wx ? chunkSize/2 : 0;
+		int yOffset = chunk.wy != wy ? chunkSize/2 : 0;
+		int zOffset = chunk.wz != wz ? chunkSize/2 : 0;
 		for(int x = 0; x <= 2*xOffset; x += chunkSize) {
 			for(int y = 0; y <= 2*yOffset; y += chunkSize) {
 				for(int z = 0; z <= 2*zOffset; z += chunkSize) {
@@ -125,10 +150,19 @@ public class ReducedChunk extends Chunk {
 						wy -= chunkSize*voxelSize/2;
 						wz -= chunkSize*voxelSize/2;
 					}
-					world.queueChunks(new ChunkData[] {new ChunkData(wx, wy, wz, voxelSize)});
+					result.add(new ChunkData(wx, wy, wz, voxelSize));
 				}
 			}
 		}
+	}
+
+	public void updateFromLowerResolution(Chunk chunk) {
+		downsampleFrom(chunk);
+		
+		// Create updated meshes and send to client:
+		HashSet<ChunkData> visibilityData = new HashSet<>();
+		addAffectedVisibilityData(chunk, visibilityData);
+		world.queueChunks(visibilityData.toArray(new ChunkData[0]));
 		
 		setChanged();
 	}
@@ -139,7 +173,7 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		return blocks[index];
+		return blocks.get(index);
 	}
 }
 
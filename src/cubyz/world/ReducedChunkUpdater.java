@@ -0,0 +1,143 @@
+package cubyz.world;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import cubyz.Constants;
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.utils.Logger;
+
+/**
+ * Updates the lower resolution chunks after their higher resolution chunks were changed.<br>
+ * Changed chunks are collected for up to {@link ServerSettings#lodUpdateInterval} milliseconds and then processed in one batch on a background thread.
+ * That way many changes to the same chunk only cause one downsample, and each parent only sends its visibility data once per batch.
+ */
+public class ReducedChunkUpdater {
+	private final ChunkManager chunkManager;
+	private final World world;
+
+	private final Object lock = new Object();
+	/**The changed chunks, whose parents need to be updated. Newer versions of a chunk replace the old ones.*/
+	private HashMap<ChunkData, Chunk> dirtyChunks = new HashMap<>();
+	private boolean flushRequested = false;
+	private boolean updating = false;
+	private boolean running = true;
+	private final Thread thread;
+
+	private static final Comparator<ChunkData> LOD_ORDER = Comparator
+		.comparingInt((ChunkData chunk) -> chunk.voxelSize)
+		.thenComparingInt(chunk -> chunk.wx)
+		.thenComparingInt(chunk -> chunk.wy)
+		.thenComparingInt(chunk -> chunk.wz);
+
+	public ReducedChunkUpdater(ChunkManager chunkManager, World world) {
+		this.chunkManager = chunkManager;
+		this.world = world;
+		thread = new Thread(this::run, "LOD-Updater");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues an update of the next lower resolution chunk.
+	 */
+	public void markDirty(Chunk chunk) {
+		if(chunk.voxelSize == 1 << Constants.HIGHEST_LOD) return;
+		synchronized(lock) {
+			if(dirtyChunks.isEmpty()) {
+				lock.notifyAll();
+			}
+			dirtyChunks.put(new ChunkData(chunk.wx, chunk.wy, chunk.wz, chunk.voxelSize), chunk);
+		}
+	}
+
+	/**
+	 * Processes all queued updates and waits until they are done.
+	 */
+	public void flush() {
+		if(Thread.currentThread() == thread) return;
+		synchronized(lock) {
+			while(running && (!dirtyChunks.isEmpty() || updating)) {
+				flushRequested = true;
+				lock.notifyAll();
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Logger.error(e);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Processes the remaining updates and stops the background thread.
+	 */
+	public void cleanup() {
+		flush();
+		synchronized(lock) {
+			running = false;
+			lock.notifyAll();
+		}
+	}
+
+	private void processBatch(ArrayList<Chunk> batch) {
+		// Group the chunks by parent, so each parent is only changed and sent once:
+		HashMap<ChunkData, ArrayList<Chunk>> children = new HashMap<>();
+		for(Chunk chunk : batch) {
+			int parentMask = ~(2*chunk.voxelSize*Chunk.chunkSize - 1);
+			ChunkData parent = new ChunkData(chunk.wx & parentMask, chunk.wy & parentMask, chunk.wz & parentMask, 2*chunk.voxelSize);
+			children.computeIfAbsent(parent, key -> new ArrayList<>()).add(chunk);
+		}
+		ArrayList<ChunkData> parents = new ArrayList<>(children.keySet());
+		parents.sort(LOD_ORDER);
+		HashSet<ChunkData> visibilityData = new HashSet<>();
+		for(ChunkData data : parents) {
+			ReducedChunk parent = chunkManager.getOrGenerateReducedChunk(data.wx, data.wy, data.wz, data.voxelSize);
+			for(Chunk chunk : children.get(data)) {
+				parent.downsampleFrom(chunk);
+				parent.addAffectedVisibilityData(chunk, visibilityData);
+			}
+			parent.setChanged();
+		}
+		world.queueChunks(visibilityData.toArray(new ChunkData[0]));
+	}
+
+	private void run() {
+		ArrayList<Chunk> batch = new ArrayList<>();
+		while(true) {
+			synchronized(lock) {
+				try {
+					while(dirtyChunks.isEmpty() && !flushRequested && running) {
+						lock.wait();
+					}
+					// Give following changes some time to get combined with the queued ones:
+					long deadline = System.currentTimeMillis() + ServerSettings.lodUpdateInterval;
+					while(!flushRequested && running && System.currentTimeMillis() < deadline) {
+						lock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if(!running && dirtyChunks.isEmpty()) return;
+				flushRequested = false;
+				updating = true;
+				batch.addAll(dirtyChunks.values());
+				dirtyChunks = new HashMap<>();
+			}
+			try {
+				processBatch(batch);
+			} catch (Throwable e) {
+				Logger.error("Could not update lower resolution chunks!");
+				Logger.error(e);
+			}
+			batch.clear();
+			synchronized(lock) {
+				updating = false;
+				lock.notifyAll();
+			}
+		}
+	}
+}
@@ -2,6 +2,8 @@ package cubyz.world;
 
 import java.util.Arrays;
 
+import cubyz.utils.math.Bits;
+
 public class ReducedChunkVisibilityData extends ChunkData {
 	/*
 		(Equivalent C++ code)
@@ -55,7 +57,7 @@ public class ReducedChunkVisibilityData extends ChunkData {
 		x &= Chunk.chunkMask;
 		y &= Chunk.chunkMask;
 		z &= Chunk.chunkMask;
-		return chunk.blocks[Chunk.getIndex(x, y, z)];
+		return chunk.blocks.get(Chunk.getIndex(x, y, z));
 	}
 
 	public ReducedChunkVisibilityData(int wx, int wy, int wz, int voxelSize, byte[] x, byte[] y, byte[] z, byte[] neighbors, int[] visibleBlocks) {
@@ -70,6 +72,42 @@ public class ReducedChunkVisibilityData extends ChunkData {
 		capacity = size = x.length;
 	}
 	
+	/**
+	 * Loads the data that was stored with {@link #saveToByteArray()}.
+	 */
+	public ReducedChunkVisibilityData(int wx, int wy, int wz, int voxelSize, byte[] data, int offset, int length) {
+		super(wx, wy, wz, voxelSize);
+		voxelSizeShift = 31 - Integer.numberOfLeadingZeros(voxelSize); // log2
+		capacity = size = length/8;
+		x = Arrays.copyOfRange(data, offset, offset + size);
+		y = Arrays.copyOfRange(data, offset + size, offset + 2*size);
+		z = Arrays.copyOfRange(data, offset + 2*size, offset + 3*size);
+		neighbors = Arrays.copyOfRange(data, offset + 3*size, offset + 4*size);
+		visibleBlocks = new int[size];
+		offset += 4*size;
+		for(int i = 0; i < size; i++) {
+			visibleBlocks[i] = Bits.getInt(data, offset);
+			offset += 4;
+		}
+	}
+
+	/**
+	 * Data layout: byte x[size], byte y[size], byte z[size], byte neighbors[size], int visibleBlocks[size]
+	 */
+	public byte[] saveToByteArray() {
+		byte[] data = new byte[size*8];
+		System.arraycopy(x, 0, data, 0, size);
+		System.arraycopy(y, 0, data, size, size);
+		System.arraycopy(z, 0, data, 2*size, size);
+		System.arraycopy(neighbors, 0, data, 3*size, size);
+		int offset = 4*size;
+		for(int i = 0; i < size; i++) {
+			Bits.putInt(data, offset, visibleBlocks[i]);
+			offset += 4;
+		}
+		return data;
+	}
+	
 	public ReducedChunkVisibilityData(ServerWorld world, int wx, int wy, int wz, int voxelSize) {
 		super(wx, wy, wz, voxelSize);
 		voxelSizeShift = 31 - Integer.numberOfLeadingZeros(voxelSize); // log2
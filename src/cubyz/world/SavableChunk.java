@@ -10,7 +10,18 @@ public abstract class SavableChunk extends ChunkData {
 
 	public abstract byte[] saveToByteArray();
 
-	public abstract boolean loadFromByteArray(byte[] array, int len);
+	public abstract boolean loadFromByteArray(byte[] array, int offset, int length);
+
+	/**
+	 * Used for the save files. May use a more compact format that can only be read with {@link #loadFromStorage(byte[], int, int)}.
+	 */
+	public byte[] saveForStorage() {
+		return saveToByteArray();
+	}
+
+	public boolean loadFromStorage(byte[] array, int offset, int length) {
+		return loadFromByteArray(array, offset, length);
+	}
 
 	public abstract int getWidth();
 
@@ -4,7 +4,9 @@ import cubyz.Settings;
 import cubyz.api.CurrentWorldRegistries;
 import cubyz.modding.ModLoader;
 import cubyz.multiplayer.Protocols;
+import cubyz.multiplayer.server.BlockUpdateQueue;
 import cubyz.multiplayer.server.Server;
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.FastRandom;
 import cubyz.utils.Logger;
@@ -17,6 +19,8 @@ import cubyz.world.items.BlockDrop;
 import cubyz.world.items.ItemStack;
 import cubyz.world.save.BlockPalette;
 import cubyz.world.save.ChunkIO;
+import cubyz.world.save.EntityChunk;
+import cubyz.world.save.ItemEntityIO;
 import cubyz.world.save.WorldIO;
 import cubyz.world.terrain.CaveBiomeMapFragment;
 import cubyz.world.terrain.InterpolatableCaveBiomeMap;
@@ -33,15 +37,21 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 public class ServerWorld extends World {
 	public ChunkManager chunkManager;
+	/** The block changes of the current update, which get sent to the players at the end of the server update. */
+	public final BlockUpdateQueue blockUpdates = new BlockUpdateQueue();
 	private long lastUnimportantDataSent = System.currentTimeMillis();
 	protected HashMap<HashMapKey3D, MetaChunk> metaChunks = new HashMap<HashMapKey3D, MetaChunk>();
 	protected NormalChunk[] chunks = new NormalChunk[0];
 
 	public WorldIO wio;
+	ItemEntityIO itemEntityIO;
+	private final AutoSave autoSave = new AutoSave(this);
 
 	protected ArrayList<Entity> entities = new ArrayList<>();
 
@@ -65,6 +75,7 @@ public class ServerWorld extends World {
 			registries = new CurrentWorldRegistries(this, "saves/" + name + "/assets/", blockPalette);
 		} else {
 			seed = new FastRandom(System.nanoTime()).nextInt();
+			storageCompression = ServerSettings.defaultStorageCompression;
 			registries = new CurrentWorldRegistries(this, "saves/" + name + "/assets/", blockPalette);
 			wio.saveWorldData();
 		}
@@ -75,11 +86,15 @@ public class ServerWorld extends World {
 
 		chunkManager = new ChunkManager(this, generatorSettings);
 		generate();
-		itemEntityManager.loadFrom(JsonParser.parseObjectFromFile("saves/" + name + "/items.json"));
+		itemEntityIO = new ItemEntityIO(this, wio.dir);
+		itemEntityIO.load(itemEntityManager);
 	}
 
 	private void generate() {
-		wio.loadWorldData(); // load data here in order for entities to also be loaded.
+		wio.loadWorldData();
+		// Old worlds stored their entities in the world data, so they get moved into the entity files:
+		storeEntities(new HashMap<>(), false);
+		ChunkIO.save();
 
 		if (generated) {
 			wio.saveWorldData();
@@ -116,17 +131,21 @@ public class ServerWorld extends World {
 		return player;
 	}
 
-	private void savePlayers() {
+	public void savePlayer(User user) {
+		try {
+			File file = new File("saves/" + name + "/players/" + Utils.escapeFolderName(user.name) + ".json");
+			file.getParentFile().mkdirs();
+			PrintWriter writer = new PrintWriter(new FileOutputStream(file), false, StandardCharsets.UTF_8);
+			user.player.save().writeObjectToStream(writer);
+			writer.close();
+		} catch(FileNotFoundException e) {
+			Logger.error(e);
+		}
+	}
+
+	void savePlayers() {
 		for(User user : Server.users) {
-			try {
-				File file = new File("saves/" + name + "/players/" + Utils.escapeFolderName(user.name) + ".json");
-				file.getParentFile().mkdirs();
-				PrintWriter writer = new PrintWriter(new FileOutputStream("saves/" + name + "/players/" + Utils.escapeFolderName(user.name) + ".json"), false, StandardCharsets.UTF_8);
-				user.player.save().writeObjectToStream(writer);
-				writer.close();
-			} catch(FileNotFoundException e) {
-				Logger.error(e);
-			}
+			savePlayer(user);
 		}
 	}
 
@@ -134,11 +153,56 @@ public class ServerWorld extends World {
 		for(MetaChunk chunk : metaChunks.values().toArray(new MetaChunk[0])) {
 			if (chunk != null) chunk.save();
 		}
+		storeEntities(new HashMap<>(), true);
 		wio.saveWorldData();
 		savePlayers();
 		chunkManager.forceSave();
 		ChunkIO.save();
-		JsonParser.storeToFile(itemEntityManager.store(), "saves/" + name + "/items.json");
+		itemEntityIO.save(itemEntityManager);
+	}
+
+	private static HashMapKey3D getMetaChunkKey(Vector3d position) {
+		int shift = MetaChunk.metaChunkShift + Chunk.chunkShift;
+		return new HashMapKey3D((int)Math.floor(position.x) >> shift, (int)Math.floor(position.y) >> shift, (int)Math.floor(position.z) >> shift);
+	}
+
+	/**
+	 * Moves the entities that are outside of the loaded meta chunks into their entity files and removes them from the world.
+	 * @param unloaded meta chunks that were just unloaded. Their entity files get updated even if no entity is left inside.
+	 * @param storeLoaded whether the entities of the loaded meta chunks should be stored as well.
+	 */
+	void storeEntities(HashMap<HashMapKey3D, MetaChunk> unloaded, boolean storeLoaded) {
+		HashMap<HashMapKey3D, ArrayList<Entity>> inside = new HashMap<>();
+		HashMap<HashMapKey3D, ArrayList<Entity>> outside = new HashMap<>();
+		for(Entity ent : entities) {
+			if(ent.getType().getClass() == PlayerEntity.class) continue; // Players are stored separately.
+			HashMapKey3D key = getMetaChunkKey(ent.getPosition());
+			if(metaChunks.containsKey(key)) {
+				if(storeLoaded) {
+					inside.computeIfAbsent(key, k -> new ArrayList<>()).add(ent);
+				}
+			} else {
+				outside.computeIfAbsent(key, k -> new ArrayList<>()).add(ent);
+			}
+		}
+		if(storeLoaded) {
+			metaChunks.forEach((key, metaChunk) -> metaChunk.entityChunk.store(inside.getOrDefault(key, new ArrayList<>())));
+		}
+		unloaded.forEach((key, metaChunk) -> metaChunk.entityChunk.store(outside.getOrDefault(key, new ArrayList<>())));
+		if(outside.isEmpty()) return;
+		HashSet<Entity> removed = new HashSet<>();
+		int shift = MetaChunk.metaChunkShift + Chunk.chunkShift;
+		outside.forEach((key, list) -> {
+			if(!unloaded.containsKey(key)) {
+				// The entities left the loaded area, so they are added to the ones that are already stored there:
+				EntityChunk entityChunk = new EntityChunk(this, key.x << shift, key.y << shift, key.z << shift);
+				ArrayList<Entity> stored = new ArrayList<>(Arrays.asList(entityChunk.load()));
+				stored.addAll(list);
+				entityChunk.store(stored);
+			}
+			removed.addAll(list);
+		});
+		entities.removeIf(removed::contains);
 	}
 
 	public void addEntity(Entity ent) {
@@ -174,10 +238,7 @@ public class ServerWorld extends World {
 			int old = ch.getBlock(x & Chunk.chunkMask, y & Chunk.chunkMask, z & Chunk.chunkMask);
 			if(old == newBlock) return;
 			ch.updateBlock(x & Chunk.chunkMask, y & Chunk.chunkMask, z & Chunk.chunkMask, newBlock);
-			// Send the block update to all players:
-			for(User user : Server.users) {
-				Protocols.BLOCK_UPDATE.send(user, x, y, z, newBlock);
-			}
+			blockUpdates.add(x, y, z, newBlock);
 			if((old & Blocks.TYPE_MASK) == (newBlock & Blocks.TYPE_MASK)) return;
 			for(BlockDrop drop : Blocks.blockDrops(old)) {
 				int amount = (int)(drop.amount);
@@ -245,6 +306,9 @@ public class ServerWorld extends World {
 		}
 
 		seek();
+		chunkManager.updatePriorities();
+
+		autoSave.update();
 	}
 
 	@Override
@@ -262,8 +326,8 @@ public class ServerWorld extends World {
 		// Care about the metaChunks:
 		HashMap<HashMapKey3D, MetaChunk> oldMetaChunks = new HashMap<>(metaChunks);
 		HashMap<HashMapKey3D, MetaChunk> newMetaChunks = new HashMap<>();
+		ArrayList<NormalChunk> chunkList = new ArrayList<>();
 		for(User user : Server.users) {
-			ArrayList<NormalChunk> chunkList = new ArrayList<>();
 			int metaRenderDistance = (int)Math.ceil(Settings.entityDistance/(float)(MetaChunk.metaChunkSize*Chunk.chunkSize));
 			int x0 = (int)user.player.getPosition().x >> (MetaChunk.metaChunkShift + Chunk.chunkShift);
 			int y0 = (int)user.player.getPosition().y >> (MetaChunk.metaChunkShift + Chunk.chunkShift);
@@ -278,18 +342,23 @@ public class ServerWorld extends World {
 						oldMetaChunks.remove(key);
 						if (metaChunk == null) {
 							metaChunk = new MetaChunk(metaX *(MetaChunk.metaChunkSize*Chunk.chunkSize), metaY*(MetaChunk.metaChunkSize*Chunk.chunkSize), metaZ *(MetaChunk.metaChunkSize*Chunk.chunkSize), this);
+							for(Entity ent : metaChunk.entityChunk.load()) {
+								addEntity(ent);
+							}
 						}
 						newMetaChunks.put(key, metaChunk);
 						metaChunk.update(Settings.entityDistance, chunkList);
 					}
 				}
 			}
-			oldMetaChunks.forEach((key, chunk) -> {
-				chunk.clean();
-			});
-			chunks = chunkList.toArray(new NormalChunk[0]);
-			metaChunks = newMetaChunks;
 		}
+		// Only unload the meta chunks that aren't needed by any player:
+		oldMetaChunks.forEach((key, chunk) -> {
+			chunk.clean();
+		});
+		chunks = chunkList.toArray(new NormalChunk[0]);
+		metaChunks = newMetaChunks;
+		storeEntities(oldMetaChunks, false);
 	}
 
 	public MetaChunk getMetaChunk(int wx, int wy, int wz) {
@@ -341,6 +410,7 @@ public class ServerWorld extends World {
 			for(MetaChunk chunk : metaChunks.values()) {
 				if (chunk != null) chunk.clean();
 			}
+			storeEntities(new HashMap<>(), true);
 			chunkManager.forceSave();
 			ChunkIO.save();
 
@@ -350,7 +420,7 @@ public class ServerWorld extends World {
 			
 			wio.saveWorldData();
 			savePlayers();
-			JsonParser.storeToFile(itemEntityManager.store(), "saves/" + name + "/items.json");
+			itemEntityIO.save(itemEntityManager);
 			metaChunks = null;
 		} catch (Exception e) {
 			Logger.error(e);
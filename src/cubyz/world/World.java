@@ -1,5 +1,7 @@
 package cubyz.world;
 
+import cubyz.utils.compression.CompressionAlgorithm;
+import cubyz.utils.compression.CompressionAlgorithms;
 import cubyz.world.entity.ItemEntityManager;
 import cubyz.world.save.BlockPalette;
 import org.joml.Vector3d;
@@ -30,6 +32,9 @@ public abstract class World {
 	public CurrentWorldRegistries registries;
 
 	public final Vector3i spawn = new Vector3i(0, Integer.MIN_VALUE, 0);
+
+	/**Used for newly created region files.*/
+	public CompressionAlgorithm storageCompression = CompressionAlgorithms.DEFLATE;
 	
 	public World(String name) {
 		this.name = name;
@@ -1,5 +1,9 @@
 package cubyz.world.entity;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import cubyz.utils.math.CubyzMath;
 import org.joml.Vector3d;
 import org.joml.Vector3f;
@@ -437,6 +441,36 @@ public class Entity {
 		hunger = json.getFloat("hunger", maxHunger);
 		name = json.getString("name", "");
 	}
+
+	/**
+	 * Compact binary version of {@link #save()} that is used for the entity region files.
+	 * The type id is written by the caller.
+	 */
+	public void saveTo(DataOutput out) throws IOException {
+		out.writeDouble(position.x);
+		out.writeDouble(position.y);
+		out.writeDouble(position.z);
+		out.writeFloat(rotation.x);
+		out.writeFloat(rotation.y);
+		out.writeFloat(rotation.z);
+		out.writeDouble(vx);
+		out.writeDouble(vy);
+		out.writeDouble(vz);
+		out.writeFloat(health);
+		out.writeFloat(hunger);
+		out.writeUTF(name);
+	}
+
+	public void loadFrom(DataInput in) throws IOException {
+		position = new Vector3d(in.readDouble(), in.readDouble(), in.readDouble());
+		rotation = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+		vx = in.readDouble();
+		vy = in.readDouble();
+		vz = in.readDouble();
+		health = in.readFloat();
+		hunger = in.readFloat();
+		name = in.readUTF();
+	}
 	
 	public EntityType getType() {
 		return type;
@@ -1,9 +1,10 @@
 package cubyz.world.entity;
 
+import java.util.BitSet;
+
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
-import cubyz.utils.math.Bits;
 import cubyz.world.ServerWorld;
 import cubyz.world.items.tools.Tool;
 import org.joml.Vector3d;
@@ -32,7 +33,7 @@ public class ItemEntityManager {
 
 	private static final float MAX_AIR_SPEED_GRAVITY = 10;
 
-	protected static final int MAX_CAPACITY = 65536;
+	public static final int MAX_CAPACITY = 65536;
 
 	public final double[] posxyz = new double[3*MAX_CAPACITY];
 	public final double[] velxyz = new double[3*MAX_CAPACITY];
@@ -54,6 +55,11 @@ public class ItemEntityManager {
 
 	public final JsonArray lastUpdates = new JsonArray();
 
+	/** Slots that were added or removed since the last save. */
+	public final BitSet unsavedSlots = new BitSet(MAX_CAPACITY);
+	/** Number of updates since the world was created. Used to store the despawn time relative to the save. */
+	public int tick;
+
 	public ItemEntityManager(World world) {
 		this.world = world;
 		gravity = World.GRAVITY;
@@ -112,29 +118,6 @@ public class ItemEntityManager {
 
 	}
 
-	public byte[] getPositionAndVelocityData() {
-		byte[] data = new byte[size*(6*8 + 2)];
-		int offset = 0;
-		for(int ii = 0; ii < size; ii++) {
-			int i = indices[ii] & 0xffff;
-			Bits.putShort(data, offset, (short)i);
-			offset += 2;
-			Bits.putDouble(data, offset, posxyz[3*i]);
-			offset += 8;
-			Bits.putDouble(data, offset, posxyz[3*i+1]);
-			offset += 8;
-			Bits.putDouble(data, offset, posxyz[3*i+2]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i+1]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i+2]);
-			offset += 8;
-		}
-		return data;
-	}
-
 	private JsonObject storeSingle(int i) {
 		int i3 = i*3;
 		JsonObject obj = new JsonObject();
@@ -169,6 +152,7 @@ public class ItemEntityManager {
 	}
 
 	public void update(float deltaTime) {
+		tick++;
 		for(int ii = 0; ii < size; ii++) {
 			int i = indices[ii] & 0xffff;
 			int i3 = i*3;
@@ -207,6 +191,7 @@ public class ItemEntityManager {
 						int newAmount = ent.getInventory().addItem(itemStacks[i].getItem(), itemStacks[i].getAmount());
 						if(newAmount != 0) {
 							itemStacks[i].setAmount(newAmount);
+							unsavedSlots.set(i); // The incremental save only writes changed slots.
 						} else {
 							remove(i);
 							ii--;
@@ -275,6 +260,7 @@ public class ItemEntityManager {
 			this.pickupCooldown[i] = pickupCooldown;
 			if(world instanceof ServerWorld) {
 				lastUpdates.add(storeSingle(i));
+				unsavedSlots.set(i);
 			}
 			indices[size] = (short)i;
 			reverseIndices[i] = (short)size;
@@ -292,6 +278,7 @@ public class ItemEntityManager {
 			itemStacks[i] = null; // Allow it to be garbage collected.
 			if(world instanceof ServerWorld) {
 				lastUpdates.add(new JsonInt(i));
+				unsavedSlots.set(i);
 			}
 		}
 	}
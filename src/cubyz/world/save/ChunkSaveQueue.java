@@ -0,0 +1,165 @@
+package cubyz.world.save;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import cubyz.multiplayer.server.ServerSettings;
+import cubyz.utils.Logger;
+import cubyz.utils.metrics.Histogram;
+import cubyz.utils.metrics.Metrics;
+import cubyz.world.SavableChunk;
+import cubyz.world.World;
+
+/**
+ * Compresses and writes changed chunks on a background thread.<br>
+ * Chunks stay in the queue for up to {@link ServerSettings#chunkSaveInterval} milliseconds, so multiple saves of the same chunk only cause one write.
+ */
+public final class ChunkSaveQueue {
+	private ChunkSaveQueue() {} // No instances allowed.
+
+	private static final class Entry {
+		private final RegionFileCompare key;
+		private final World world;
+		private final SavableChunk chunk;
+		private Entry(RegionFileCompare key, World world, SavableChunk chunk) {
+			this.key = key;
+			this.world = world;
+			this.chunk = chunk;
+		}
+	}
+
+	private static final Object lock = new Object();
+	/** Entries are only removed after they were written, so loads can find chunks that are currently being written. */
+	private static final HashMap<RegionFileCompare, Entry> queue = new HashMap<>();
+	private static boolean flushRequested = false;
+	private static boolean writing = false;
+	private static Thread thread;
+	private static final Histogram writeTime = Metrics.histogram("storage.chunkWriteTime");
+	static {
+		Metrics.gauge("storage.saveQueueSize", ChunkSaveQueue::size);
+	}
+
+	private static final Comparator<Entry> REGION_ORDER = Comparator
+		.comparingInt((Entry entry) -> entry.key.voxelSize)
+		.thenComparingInt(entry -> RegionFile.findCoordinate(entry.key.wx, entry.key.voxelSize))
+		.thenComparingInt(entry -> RegionFile.findCoordinate(entry.key.wy, entry.key.voxelSize))
+		.thenComparingInt(entry -> RegionFile.findCoordinate(entry.key.wz, entry.key.voxelSize));
+
+	private static RegionFileCompare getKey(SavableChunk ch) {
+		return new RegionFileCompare(ch.wx, ch.wy, ch.wz, ch.voxelSize, ch.fileEnding());
+	}
+
+	/**
+	 * Queues the chunk for saving. If the queue is full, this waits until the saver caught up.
+	 */
+	static void add(World world, SavableChunk ch) {
+		if(Thread.currentThread() == thread) { // The saver cannot wait for itself.
+			ChunkIO.writeChunkToFile(world, ch);
+			return;
+		}
+		RegionFileCompare key = getKey(ch);
+		synchronized(lock) {
+			if(thread == null) {
+				thread = new Thread(ChunkSaveQueue::run);
+				thread.setName("Chunk-Saver");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			while(queue.size() >= ServerSettings.maxQueuedChunkSaves && !queue.containsKey(key)) {
+				flushRequested = true;
+				lock.notifyAll();
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Logger.error(e);
+					break;
+				}
+			}
+			if(queue.isEmpty()) {
+				lock.notifyAll(); // Wake up the saver.
+			}
+			// A new entry is always created, so a chunk that changed while it was written gets written again.
+			queue.put(key, new Entry(key, world, ch));
+		}
+	}
+
+	/**
+	 * @return the chunk at the same position that is waiting to be saved, or null if there is none.
+	 */
+	static SavableChunk getPending(SavableChunk ch) {
+		RegionFileCompare key = getKey(ch);
+		synchronized(lock) {
+			Entry entry = queue.get(key);
+			return entry == null ? null : entry.chunk;
+		}
+	}
+
+	/**
+	 * Writes all queued chunks and waits until they are done.
+	 */
+	public static void waitUntilEmpty() {
+		synchronized(lock) {
+			while(!queue.isEmpty() || writing) {
+				flushRequested = true;
+				lock.notifyAll();
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Logger.error(e);
+					return;
+				}
+			}
+		}
+	}
+
+	public static int size() {
+		synchronized(lock) {
+			return queue.size();
+		}
+	}
+
+	private static void run() {
+		ArrayList<Entry> batch = new ArrayList<>();
+		while(true) {
+			synchronized(lock) {
+				try {
+					while(queue.isEmpty() && !flushRequested) {
+						lock.wait();
+					}
+					// Give following changes some time to get combined with the queued ones:
+					long deadline = System.currentTimeMillis() + ServerSettings.chunkSaveInterval;
+					while(!flushRequested && System.currentTimeMillis() < deadline) {
+						lock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				flushRequested = false;
+				writing = true;
+				batch.addAll(queue.values());
+			}
+			// Write the chunks region by region to reduce the number of region files that need to be opened:
+			batch.sort(REGION_ORDER);
+			for(Entry entry : batch) {
+				long start = System.nanoTime();
+				try {
+					ChunkIO.writeChunkToFile(entry.world, entry.chunk);
+					writeTime.recordSince(start);
+				} catch (Throwable e) {
+					Logger.error("Could not save chunk " + entry.chunk + "!");
+					Logger.error(e);
+				}
+				synchronized(lock) {
+					queue.remove(entry.key, entry);
+					lock.notifyAll();
+				}
+			}
+			batch.clear();
+			synchronized(lock) {
+				writing = false;
+				lock.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package cubyz.world.save;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cubyz.utils.Logger;
+import cubyz.world.Chunk;
+import cubyz.world.MetaChunk;
+import cubyz.world.SavableChunk;
+import cubyz.world.World;
+import cubyz.world.entity.Entity;
+import cubyz.world.entity.EntityType;
+
+/**
+ * Stores the entities inside of one {@link MetaChunk}.<br>
+ * They are stored in their own region files next to the chunks, so only the entities around the players need to be loaded.<br>
+ * Format: byte version, int entityCount, {String typeId, int dataLength, data} for each entity.<br>
+ * The data length allows skipping entities whose type was removed.
+ */
+public class EntityChunk extends SavableChunk {
+	private static final byte VERSION = 0;
+	/** Uses the voxel size to get region files that cover 8×8×8 meta chunks. */
+	public static final int VOXEL_SIZE = MetaChunk.metaChunkSize;
+
+	private final World world;
+	private Entity[] entities = new Entity[0];
+	/** The last data that was stored, used to skip writes when nothing changed. */
+	private byte[] lastStored = null;
+
+	public EntityChunk(World world, int wx, int wy, int wz) {
+		super(wx, wy, wz, VOXEL_SIZE);
+		this.world = world;
+	}
+
+	/**
+	 * Loads the stored entities. Returns an empty array if there are none.
+	 */
+	public Entity[] load() {
+		if(ChunkIO.loadChunkFromFile(world, this)) {
+			lastStored = saveToByteArray();
+		} else {
+			entities = new Entity[0];
+		}
+		return entities;
+	}
+
+	/**
+	 * Queues the entities for saving, if they changed since the last time.
+	 */
+	public void store(List<Entity> entities) {
+		if(entities.isEmpty() && lastStored == null) return; // Nothing was ever stored here.
+		this.entities = entities.toArray(new Entity[0]);
+		byte[] data = saveToByteArray();
+		if(Arrays.equals(data, lastStored)) return;
+		lastStored = data;
+		ChunkIO.storeChunkToFile(world, this);
+	}
+
+	@Override
+	public byte[] saveToByteArray() {
+		Entity[] entities = this.entities;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream entityBytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			DataOutputStream entityOut = new DataOutputStream(entityBytes);
+			out.writeByte(VERSION);
+			out.writeInt(entities.length);
+			for(Entity ent : entities) {
+				entityBytes.reset();
+				ent.saveTo(entityOut);
+				entityOut.flush();
+				out.writeUTF(ent.getType().getRegistryID().toString());
+				out.writeInt(entityBytes.size());
+				entityBytes.writeTo(out);
+			}
+			out.flush();
+		} catch(IOException e) {
+			Logger.error(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public boolean loadFromByteArray(byte[] array, int offset, int length) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(array, offset, length));
+			byte version = in.readByte();
+			if(version != VERSION) {
+				Logger.error("Unknown entity file version " + version + " in " + this + ".");
+				return false;
+			}
+			int count = in.readInt();
+			ArrayList<Entity> loaded = new ArrayList<>();
+			for(int i = 0; i < count; i++) {
+				String id = in.readUTF();
+				int dataLength = in.readInt();
+				EntityType type = world.getCurrentRegistries().entityRegistry.getByID(id);
+				if(type == null) {
+					Logger.warning("Could not load entity with id " + id);
+					in.readNBytes(dataLength); // skipNBytes needs Java 12.
+					continue;
+				}
+				Entity ent = type.newEntity(world);
+				ent.loadFrom(in);
+				loaded.add(ent);
+			}
+			entities = loaded.toArray(new Entity[0]);
+			return true;
+		} catch(IOException e) {
+			Logger.error("Could not load the entities of " + this + ".");
+			Logger.error(e);
+			return false;
+		}
+	}
+
+	@Override
+	public int getWidth() {
+		return MetaChunk.metaChunkSize*Chunk.chunkSize;
+	}
+
+	@Override
+	public String fileEnding() {
+		return "entities";
+	}
+}
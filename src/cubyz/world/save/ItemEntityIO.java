@@ -0,0 +1,296 @@
+package cubyz.world.save;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import cubyz.utils.Logger;
+import cubyz.world.World;
+import cubyz.world.entity.ItemEntityManager;
+import cubyz.world.items.Item;
+import cubyz.world.items.ItemStack;
+import cubyz.world.items.tools.Tool;
+import pixelguys.json.JsonParser;
+
+/**
+ * Stores the item entities of a world in a binary file.<br>
+ * The file starts with a full snapshot. Each save after it only appends the items that changed, until the appended data gets larger than the snapshot. Then the file is rewritten with a new snapshot.<br>
+ * File layout: int version, then a list of batches, each one prefixed with its int length. A batch that was only partially written is ignored.<br>
+ * Batch layout: boolean fullSnapshot, int tick, int itemIdCount, {String itemId}, int removedCount, short[removedCount] removedSlots, int count, short[count] slots,
+ * double[3*count] positions, double[3*count] velocities, float[3*count] rotations, int[count] itemIdIndex(-1 for tools), int[count] amount, int[count] despawnTick, {int length, byte[length] toolJson} for each tool.<br>
+ * The despawn time is stored as the tick in which the item despawns, so items that didn't move don't need to be saved again.
+ */
+public class ItemEntityIO {
+	private static final int VERSION = 0;
+	/** Items that moved less than this since the last save don't need to be saved again. */
+	private static final double MOVEMENT_THRESHOLD = 1/16.0;
+
+	private final World world;
+	private final File file;
+	private final File legacyFile;
+	/** The positions at the last save, used to find the items that moved. */
+	private final double[] savedPositions = new double[3*ItemEntityManager.MAX_CAPACITY];
+	/** Length of the valid data in the file. */
+	private long fileSize = 0;
+	private long snapshotSize = 0;
+
+	public ItemEntityIO(World world, File directory) {
+		this.world = world;
+		file = new File(directory, "items.dat");
+		legacyFile = new File(directory, "items.json");
+	}
+
+	public void load(ItemEntityManager manager) {
+		if(!file.exists()) {
+			if(legacyFile.exists()) {
+				manager.loadFrom(JsonParser.parseObjectFromFile(legacyFile.getPath()));
+				save(manager);
+				if(fileSize != 0) {
+					legacyFile.delete();
+				}
+			}
+			return;
+		}
+		synchronized(manager) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				long length = file.length();
+				int version = in.readInt();
+				if(version != VERSION) {
+					throw new IOException("Unknown item entity file version " + version + ".");
+				}
+				fileSize = 4;
+				int lastTick = 0;
+				while(fileSize + 4 <= length) {
+					int batchLength = in.readInt();
+					if(batchLength < 0 || fileSize + 4 + batchLength > length) {
+						Logger.warning("Ignoring the incomplete end of \"" + file.getPath() + "\".");
+						break;
+					}
+					byte[] batch = in.readNBytes(batchLength);
+					lastTick = readBatch(manager, new DataInputStream(new ByteArrayInputStream(batch)));
+					fileSize += 4 + batchLength;
+					if(batch[0] != 0) { // full snapshot
+						snapshotSize = fileSize;
+					}
+				}
+				// Convert the despawn ticks back into remaining times:
+				for(int ii = 0; ii < manager.size; ii++) {
+					int i = manager.indices[ii] & 0xffff;
+					manager.despawnTime[i] -= lastTick;
+				}
+				manager.tick = lastTick;
+			} catch(IOException e) {
+				Logger.error("Could not load the item entities from \"" + file.getPath() + "\".");
+				Logger.error(e);
+				fileSize = 0; // Rewrite the file on the next save.
+			}
+			manager.unsavedSlots.clear();
+			manager.lastUpdates.array.clear();
+		}
+	}
+
+	/**
+	 * @return the tick of the batch.
+	 */
+	private int readBatch(ItemEntityManager manager, DataInputStream in) throws IOException {
+		boolean fullSnapshot = in.readBoolean();
+		if(fullSnapshot) {
+			while(manager.size != 0) {
+				manager.remove(manager.indices[0] & 0xffff);
+			}
+		}
+		int tick = in.readInt();
+		Item[] items = new Item[in.readInt()];
+		for(int i = 0; i < items.length; i++) {
+			String id = in.readUTF();
+			items[i] = world.registries.itemRegistry.getByID(id);
+			if(items[i] == null) {
+				Logger.warning("Couldn't find item " + id + ". Dropped items of this type are removed.");
+			}
+		}
+		int removed = in.readInt();
+		for(int i = 0; i < removed; i++) {
+			int slot = in.readShort() & 0xffff;
+			if(manager.itemStacks[slot] != null) {
+				manager.remove(slot);
+			}
+		}
+		int count = in.readInt();
+		int[] slots = new int[count];
+		double[] positions = new double[3*count];
+		double[] velocities = new double[3*count];
+		float[] rotations = new float[3*count];
+		int[] itemIndices = new int[count];
+		int[] amounts = new int[count];
+		int[] despawnTicks = new int[count];
+		for(int i = 0; i < count; i++) slots[i] = in.readShort() & 0xffff;
+		for(int i = 0; i < 3*count; i++) positions[i] = in.readDouble();
+		for(int i = 0; i < 3*count; i++) velocities[i] = in.readDouble();
+		for(int i = 0; i < 3*count; i++) rotations[i] = in.readFloat();
+		for(int i = 0; i < count; i++) itemIndices[i] = in.readInt();
+		for(int i = 0; i < count; i++) amounts[i] = in.readInt();
+		for(int i = 0; i < count; i++) despawnTicks[i] = in.readInt();
+		for(int i = 0; i < count; i++) {
+			Item item;
+			if(itemIndices[i] == -1) {
+				byte[] json = in.readNBytes(in.readInt());
+				item = new Tool(JsonParser.parseObjectFromString(new String(json, StandardCharsets.UTF_8)), world.registries);
+			} else {
+				item = itemIndices[i] >= 0 && itemIndices[i] < items.length ? items[itemIndices[i]] : null;
+			}
+			int slot = slots[i];
+			if(manager.itemStacks[slot] != null) {
+				manager.remove(slot);
+			}
+			if(item == null) continue;
+			int i3 = 3*i;
+			manager.add(slot,
+				positions[i3], positions[i3 + 1], positions[i3 + 2],
+				velocities[i3], velocities[i3 + 1], velocities[i3 + 2],
+				rotations[i3], rotations[i3 + 1], rotations[i3 + 2],
+				new ItemStack(item, amounts[i]), despawnTicks[i], 0
+			);
+			System.arraycopy(positions, i3, savedPositions, 3*slot, 3);
+		}
+		return tick;
+	}
+
+	private boolean hasMoved(ItemEntityManager manager, int slot) {
+		int i3 = 3*slot;
+		return Math.abs(manager.posxyz[i3] - savedPositions[i3]) > MOVEMENT_THRESHOLD
+			|| Math.abs(manager.posxyz[i3 + 1] - savedPositions[i3 + 1]) > MOVEMENT_THRESHOLD
+			|| Math.abs(manager.posxyz[i3 + 2] - savedPositions[i3 + 2]) > MOVEMENT_THRESHOLD;
+	}
+
+	private byte[] writeBatch(ItemEntityManager manager, boolean fullSnapshot) throws IOException {
+		ArrayList<Integer> removed = new ArrayList<>();
+		ArrayList<Integer> changed = new ArrayList<>();
+		if(fullSnapshot) {
+			for(int ii = 0; ii < manager.size; ii++) {
+				changed.add(manager.indices[ii] & 0xffff);
+			}
+		} else {
+			BitSet unsaved = manager.unsavedSlots;
+			for(int i = unsaved.nextSetBit(0); i >= 0; i = unsaved.nextSetBit(i + 1)) {
+				if(manager.itemStacks[i] == null) {
+					removed.add(i);
+				}
+			}
+			for(int ii = 0; ii < manager.size; ii++) {
+				int i = manager.indices[ii] & 0xffff;
+				if(unsaved.get(i) || hasMoved(manager, i)) {
+					changed.add(i);
+				}
+			}
+		}
+		if(!fullSnapshot && removed.isEmpty() && changed.isEmpty()) return null;
+		int count = changed.size();
+		HashMap<Item, Integer> itemIndices = new HashMap<>();
+		ArrayList<Item> items = new ArrayList<>();
+		ArrayList<Tool> tools = new ArrayList<>();
+		int[] itemIndex = new int[count];
+		for(int i = 0; i < count; i++) {
+			Item item = manager.itemStacks[changed.get(i)].getItem();
+			if(item instanceof Tool) {
+				itemIndex[i] = -1;
+				tools.add((Tool)item);
+			} else {
+				itemIndex[i] = itemIndices.computeIfAbsent(item, key -> {
+					items.add(key);
+					return items.size() - 1;
+				});
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count*94);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBoolean(fullSnapshot);
+		out.writeInt(manager.tick);
+		out.writeInt(items.size());
+		for(Item item : items) {
+			out.writeUTF(item.getRegistryID().toString());
+		}
+		out.writeInt(removed.size());
+		for(int slot : removed) {
+			out.writeShort(slot);
+		}
+		out.writeInt(count);
+		for(int slot : changed) out.writeShort(slot);
+		for(int slot : changed) {
+			for(int j = 0; j < 3; j++) out.writeDouble(manager.posxyz[3*slot + j]);
+		}
+		for(int slot : changed) {
+			for(int j = 0; j < 3; j++) out.writeDouble(manager.velxyz[3*slot + j]);
+		}
+		for(int slot : changed) {
+			for(int j = 0; j < 3; j++) out.writeFloat(manager.rotxyz[3*slot + j]);
+		}
+		for(int i = 0; i < count; i++) out.writeInt(itemIndex[i]);
+		for(int slot : changed) out.writeInt(manager.itemStacks[slot].getAmount());
+		for(int slot : changed) out.writeInt(manager.despawnTime[slot] + manager.tick);
+		for(Tool tool : tools) {
+			byte[] json = tool.save().toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(json.length);
+			out.write(json);
+		}
+		out.flush();
+		for(int slot : changed) {
+			System.arraycopy(manager.posxyz, 3*slot, savedPositions, 3*slot, 3);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Appends the changes since the last save, or writes a new snapshot if the appended changes got too big.
+	 */
+	public void save(ItemEntityManager manager) {
+		boolean fullSnapshot = fileSize == 0 || fileSize - snapshotSize > snapshotSize;
+		byte[] batch;
+		synchronized(manager) {
+			try {
+				batch = writeBatch(manager, fullSnapshot);
+			} catch(IOException e) {
+				Logger.error(e);
+				return;
+			}
+			manager.unsavedSlots.clear();
+		}
+		if(batch == null) return;
+		try {
+			if(fullSnapshot) {
+				File tempFile = new File(file.getPath() + ".tmp");
+				try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+					out.writeInt(VERSION);
+					out.writeInt(batch.length);
+					out.write(batch);
+				}
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				fileSize = snapshotSize = 8 + batch.length;
+			} else {
+				try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+					out.setLength(fileSize); // Cut off incomplete batches.
+					out.seek(fileSize);
+					out.writeInt(batch.length);
+					out.write(batch);
+				}
+				fileSize += 4 + batch.length;
+			}
+		} catch(IOException e) {
+			Logger.error("Could not save the item entities to \"" + file.getPath() + "\".");
+			Logger.error(e);
+			fileSize = 0; // Write a full snapshot next time.
+		}
+	}
+}
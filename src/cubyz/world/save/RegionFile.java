@@ -1,176 +1,388 @@
 package cubyz.world.save;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.BitSet;
 
-import cubyz.client.GameLauncher;
-import cubyz.multiplayer.server.Server;
 import cubyz.utils.Logger;
+import cubyz.utils.compression.CompressionAlgorithm;
+import cubyz.utils.compression.CompressionAlgorithms;
+import cubyz.utils.datastructures.ByteArrayView;
 import cubyz.utils.math.Bits;
 import cubyz.world.Chunk;
 import cubyz.world.SavableChunk;
 import cubyz.world.World;
 
 /**
- * Multiple chunks are bundled up in regions to reduce disk reads/writes.
+ * Multiple chunks are bundled up in regions to reduce disk reads/writes.<br>
+ * The file is split into sectors. Each chunk occupies a contiguous range of sectors, which is overwritten in place when possible.<br>
+ * File layout:<br>
+ * int version, int compressor, {int sectorOffset, int dataLength} for each chunk, padding to the next sector, chunk data.<br>
+ * A sectorOffset of 0 means the chunk is not stored in this file.<br>
+ * The compressor is the id of the {@link CompressionAlgorithm} used for all chunks in the file. New files use the compression of the world.
  */
 public class RegionFile extends RegionFileCompare {
 	public static final int REGION_SHIFT = 3;
 	public static final int REGION_SIZE = 1 << REGION_SHIFT;
-	private byte[] data = new byte[0];
-	private final boolean[] occupancy = new boolean[REGION_SIZE*REGION_SIZE*REGION_SIZE];
-	private final int[] startingIndices = new int[REGION_SIZE*REGION_SIZE*REGION_SIZE + 1];
-	private boolean wasChanged = false;
-	private boolean storeOnChange = false;
+	private static final int CHUNKS_PER_REGION = REGION_SIZE*REGION_SIZE*REGION_SIZE;
+
+	/** The old format stored the compressor id(always 0) in this position and rewrote the entire file on every change. */
+	private static final int LEGACY_VERSION = 0;
+	public static final int REGION_FILE_VERSION = 1;
+
+	public static final int SECTOR_SHIFT = 9;
+	public static final int SECTOR_SIZE = 1 << SECTOR_SHIFT;
+	private static final int HEADER_SIZE = 8 + 8*CHUNKS_PER_REGION;
+	private static final int HEADER_SECTORS = getSectorCount(HEADER_SIZE);
+
+	private final World world;
+	private final File file;
+	/** Opened lazily, so region files that are only used for lookups don't get created. */
+	private FileChannel channel;
+	private final int[] sectorOffsets = new int[CHUNKS_PER_REGION];
+	private final int[] dataLengths = new int[CHUNKS_PER_REGION];
+	/** Incremented on every write, so readers can detect when the data changed under them. */
+	private final int[] chunkVersions = new int[CHUNKS_PER_REGION];
+	/** Chunks are read lazily from the mapped file, instead of loading the entire file into the heap. */
+	private MappedByteBuffer mappedFile;
+	/** Sectors that are occupied by the header or by chunk data. */
+	private final BitSet usedSectors = new BitSet();
+	/** Existing files keep their compression, even if the world uses a different one now. */
+	private CompressionAlgorithm compression;
+	/** When a region file is cleaned, another instance might already be responsible for the same file, so following requests are redirected through the ChunkIO. */
+	private boolean wasCleaned = false;
 
 	public RegionFile(World world, int wx, int wy, int wz, int voxelSize, String fileEnding) {
 		super(wx, wy, wz, voxelSize, fileEnding);
-		// Load data from file:
-		File file = new File("saves/"+world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
+		this.world = world;
+		compression = world.storageCompression;
+		usedSectors.set(0, HEADER_SECTORS);
+		file = new File("saves/"+world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
 		if(!file.exists()) {
 			return;
 		}
+		try {
+			if(file.length() >= 4 && readVersion() == LEGACY_VERSION) {
+				convertLegacyFile(file);
+			}
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			readHeader();
+		} catch (IOException e) {
+			Logger.error("Unable to load chunk resources.");
+			Logger.error(e);
+			// Move the broken file out of the way, so it doesn't get overwritten by new chunks:
+			try {
+				if(channel != null) channel.close();
+				channel = null;
+				compression = world.storageCompression;
+				Arrays.fill(sectorOffsets, 0);
+				Arrays.fill(dataLengths, 0);
+				usedSectors.clear();
+				usedSectors.set(0, HEADER_SECTORS);
+				Files.move(file.toPath(), new File(file.getPath()+".corrupted").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e2) {
+				Logger.error(e2);
+			}
+		}
+	}
+
+	private static int getSectorCount(int dataLength) {
+		return (dataLength + SECTOR_SIZE - 1) >> SECTOR_SHIFT;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) throw new IOException("Unexpected end of file.");
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private int readVersion() throws IOException {
 		try (InputStream in = new FileInputStream(file)) {
-			byte[] data = in.readAllBytes();
-			if(data.length < 4) return;
-			
-			int offset = 0;
-			int compressor = Bits.getInt(data, offset);
-			offset += 4;
-			if(compressor != 0) {
-				Logger.error("Unknown compression algorithm "+compressor+" for save file \""+file.getAbsolutePath()+"\".");
-				return;
+			byte[] version = in.readNBytes(4);
+			return Bits.getInt(version, 0);
+		}
+	}
+
+	private void readHeader() throws IOException {
+		long fileSectors = (channel.size() + SECTOR_SIZE - 1) >> SECTOR_SHIFT;
+		if(channel.size() < HEADER_SIZE) {
+			throw new IOException("Region file \""+file.getAbsolutePath()+"\" is too small("+channel.size()+" bytes).");
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		int version = header.getInt();
+		if(version != REGION_FILE_VERSION) {
+			throw new IOException("Unknown region file version "+version+" for save file \""+file.getAbsolutePath()+"\".");
+		}
+		int compressor = header.getInt();
+		compression = CompressionAlgorithms.getById(compressor);
+		if(compressor >>> 8 != 0 || compression == null) {
+			throw new IOException("Unknown compression algorithm "+compressor+" for save file \""+file.getAbsolutePath()+"\".");
+		}
+		for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+			int offset = header.getInt();
+			int length = header.getInt();
+			if(offset == 0) continue;
+			int sectorCount = getSectorCount(length);
+			if(offset < HEADER_SECTORS || length <= 0 || offset + sectorCount > fileSectors || !usedSectors.get(offset, offset + sectorCount).isEmpty()) {
+				Logger.error("Region file \""+file.getAbsolutePath()+"\" has an invalid entry for chunk "+i+". The chunk will be regenerated.");
+				continue;
+			}
+			sectorOffsets[i] = offset;
+			dataLengths[i] = length;
+			usedSectors.set(offset, offset + sectorCount);
+		}
+	}
+
+	/**
+	 * Converts a file from the old format, which stored the chunks back to back, to the sector based format.
+	 */
+	private static void convertLegacyFile(File file) throws IOException {
+		byte[] data;
+		try (InputStream in = new FileInputStream(file)) {
+			data = in.readAllBytes();
+		}
+		int offset = 4;
+		byte[] occupancyBytes = new byte[CHUNKS_PER_REGION/8];
+		System.arraycopy(data, offset, occupancyBytes, 0, occupancyBytes.length);
+		offset += occupancyBytes.length;
+		int[] starts = new int[CHUNKS_PER_REGION];
+		int numberOfChunks = 0;
+		for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+			if((occupancyBytes[i >> 3] & 1 << (i & 7)) != 0) {
+				starts[i] = Bits.getInt(data, offset);
+				offset += 4;
+				numberOfChunks++;
+			} else {
+				starts[i] = -1;
 			}
-			byte[] occupancyBytes = new byte[occupancy.length/8];
-			System.arraycopy(data, 4, occupancyBytes, 0, occupancyBytes.length);
-			offset += occupancyBytes.length;
-			int index = -1;
-			for(int i = 0; i < occupancy.length; i++) {
-				occupancy[i] = (occupancyBytes[i >> 3] & 1L << (i & 7)) != 0;
-				if(occupancy[i]) {
-					startingIndices[i] = Bits.getInt(data, offset);
-					for(index++; index < i; index++) {
-						startingIndices[index] = startingIndices[i];
+		}
+		int dataStart = offset;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS << SECTOR_SHIFT);
+		header.putInt(REGION_FILE_VERSION);
+		header.putInt(CompressionAlgorithms.DEFLATE.id); // Legacy files always used deflate.
+		File tempFile = new File(file.getPath()+".tmp");
+		try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			int sector = HEADER_SECTORS;
+			for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+				if(starts[i] == -1) {
+					header.putInt(0).putInt(0);
+					continue;
+				}
+				int end = data.length - dataStart;
+				for(int j = i + 1; j < CHUNKS_PER_REGION; j++) {
+					if(starts[j] != -1) {
+						end = starts[j];
+						break;
 					}
-					offset += 4;
-				} else if(i == 0) {
-					startingIndices[i] = 0;
-				} else {
-					startingIndices[i] = startingIndices[i - 1];
 				}
+				int length = end - starts[i];
+				header.putInt(sector).putInt(length);
+				writeFully(out, ByteBuffer.wrap(data, dataStart + starts[i], length), (long)sector << SECTOR_SHIFT);
+				sector += getSectorCount(length);
 			}
-			
-			this.data = Arrays.copyOfRange(data, offset, data.length);
-			for(index++; index < startingIndices.length; index++) {
-				startingIndices[index] = this.data.length;
+			header.position(0);
+			writeFully(out, header, 0);
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Logger.info("Converted region file \""+file.getPath()+"\" with "+numberOfChunks+" chunks to the sector based format.");
+	}
+
+	private FileChannel getOrCreateChannel() throws IOException {
+		if(channel == null) {
+			file.getParentFile().mkdirs();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if(channel.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS << SECTOR_SHIFT);
+				header.putInt(REGION_FILE_VERSION);
+				header.putInt(compression.id);
+				header.position(0);
+				writeFully(channel, header, 0);
 			}
-		} catch (IOException e) {
-			Logger.error("Unable to load chunk resources.");
-			Logger.error(e);
 		}
+		return channel;
 	}
-	
+
+	/**
+	 * Finds the first gap of free sectors that is big enough, or appends at the end of the file.
+	 */
+	private int allocateSectors(int count) {
+		int start = usedSectors.nextClearBit(HEADER_SECTORS);
+		while(true) {
+			int end = usedSectors.nextSetBit(start);
+			if(end == -1 || end - start >= count) break;
+			start = usedSectors.nextClearBit(end);
+		}
+		usedSectors.set(start, start + count);
+		return start;
+	}
+
 	private int getChunkIndex(SavableChunk ch) {
 		int chunkIndex = (ch.wx - wx)/ch.getWidth();
 		chunkIndex = chunkIndex << REGION_SHIFT | (ch.wy - wy)/ch.getWidth();
 		chunkIndex = chunkIndex << REGION_SHIFT | (ch.wz - wz)/ch.getWidth();
 		return chunkIndex;
 	}
-	
+
+	/**
+	 * Maps the file into memory if needed. The mapping is recreated when the file grew.
+	 */
+	private MappedByteBuffer getMappedFile(long requiredSize) throws IOException {
+		if(mappedFile == null || mappedFile.capacity() < requiredSize) {
+			mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return mappedFile;
+	}
+
 	public boolean loadChunk(SavableChunk ch) {
 		assert ch.fileEnding().equals(fileEnding) : "Wrong RegionFile: Uses file ending ."+fileEnding+"  instead of ."+ch.fileEnding();
 		int chunkIndex = getChunkIndex(ch);
-		
-		int inputLength = startingIndices[chunkIndex + 1] - startingIndices[chunkIndex];
-		if(inputLength == 0) return false;
-		
-		byte[] out = ChunkIO.decompressChunk(data, startingIndices[chunkIndex], inputLength);
+		while(true) {
+			ByteBuffer input;
+			int version;
+			synchronized(this) {
+				if(!wasCleaned) {
+					int inputLength = dataLengths[chunkIndex];
+					if(inputLength == 0) return false;
+					long start = (long)sectorOffsets[chunkIndex] << SECTOR_SHIFT;
+					try {
+						input = getMappedFile(start + inputLength).duplicate();
+					} catch (IOException e) {
+						Logger.error("Unable to load chunk resources.");
+						Logger.error(e);
+						return false;
+					}
+					input.position((int)start);
+					input.limit((int)start + inputLength);
+					version = chunkVersions[chunkIndex];
+				} else {
+					input = null;
+					version = 0;
+				}
+			}
+			if(input == null) { // This region file was replaced. This needs to happen outside of the synchronized block to prevent deadlocks with the region cache.
+				return ChunkIO.loadChunkFromFile(world, ch);
+			}
+
+			// Decompress directly from the mapped file, without holding the lock:
+			ByteArrayView out = compression.decompressToBuffer(input);
 
-		if(out == null) return false;
-		
-		return ch.loadFromByteArray(out, out.length);
+			synchronized(this) {
+				if(chunkVersions[chunkIndex] != version) continue; // The chunk was overwritten while reading it.
+			}
+
+			if(out == null) return false;
+
+			return ch.loadFromStorage(out.array, out.offset, out.length);
+		}
 	}
-	
+
+	/**
+	 * Writes the chunk into its sectors. Only the chunk data and its header entry are written, so this takes O(chunk size).
+	 */
 	public void saveChunk(SavableChunk ch) {
 		assert ch.fileEnding().equals(fileEnding) : "Wrong RegionFile: Uses file ending ."+fileEnding+"  instead of ."+ch.fileEnding();
+		// Serializing can be expensive, so it's done without holding the lock:
+		byte[] output = compression.compress(ch.saveForStorage());
 		synchronized(this) {
-			wasChanged = true;
-			int chunkIndex = getChunkIndex(ch);
-			
-			int dataInsertionIndex = startingIndices[chunkIndex];
-			int oldDataLength = startingIndices[chunkIndex + 1] - dataInsertionIndex;
-
-			byte[] output = ChunkIO.compressChunk(ch);
-
-			byte[] newData = new byte[data.length + output.length - oldDataLength];
-			System.arraycopy(data, 0, newData, 0, dataInsertionIndex);
-			System.arraycopy(output, 0, newData, dataInsertionIndex, output.length);
-			System.arraycopy(data, startingIndices[chunkIndex + 1], newData, dataInsertionIndex + output.length, data.length - startingIndices[chunkIndex + 1]);
-			data = newData;
-			
-			for(int i = chunkIndex + 1; i < startingIndices.length; i++) {
-				startingIndices[i] += output.length - oldDataLength;
-			}
-			if(oldDataLength == 0) {
-				// This chunks wasn't in the list before:
-				occupancy[chunkIndex] = true;
-			}
-			if(storeOnChange)
-				unsynchronized_store();
-		}
-	}
-	
-	private void unsynchronized_store() {
-		if(!wasChanged) return; // No need to save it.
-		File file = new File("saves/"+ Server.world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
-		file.getParentFile().mkdirs();
-		try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
-			byte[] occupancyBytes = new byte[occupancy.length/8];
-			int numberOfChunks = 0;
-			for(int i = 0; i < occupancy.length; i++) {
-				if(occupancy[i]) {
-					occupancyBytes[i >> 3] |= 1L << (i & 7);
-					numberOfChunks++;
-				}
+			if(!wasCleaned) {
+				unsynchronized_saveChunk(ch, output);
+				return;
 			}
-			
-			byte[] metaData = new byte[4 + occupancyBytes.length + 4*numberOfChunks];
-			int offset = 0;
-			Bits.putInt(metaData, offset, 0); // compressor version
-			offset += 4;
-			System.arraycopy(occupancyBytes, 0, metaData, 4, occupancyBytes.length);
-			offset += occupancyBytes.length;
-			for(int i = 0; i < occupancy.length; i++) {
-				if(occupancy[i]) {
-					Bits.putInt(metaData, offset, startingIndices[i]);
-					offset += 4;
+		}
+		// This region file was replaced. This needs to happen outside of the synchronized block to prevent deadlocks with the region cache.
+		ChunkIO.writeChunkToFile(world, ch);
+	}
+
+	private void unsynchronized_saveChunk(SavableChunk ch, byte[] output) {
+		int chunkIndex = getChunkIndex(ch);
+
+		try {
+			FileChannel channel = getOrCreateChannel();
+			int sectorCount = getSectorCount(output.length);
+			int oldOffset = sectorOffsets[chunkIndex];
+			int oldSectorCount = getSectorCount(dataLengths[chunkIndex]);
+			int offset;
+			if(oldOffset != 0 && sectorCount <= oldSectorCount) {
+				// Overwrite in place:
+				offset = oldOffset;
+				usedSectors.clear(offset + sectorCount, offset + oldSectorCount);
+			} else {
+				// The old sectors are only freed after allocating, so a crash can't leave the chunk pointing to overwritten data.
+				offset = allocateSectors(sectorCount);
+				if(oldOffset != 0) {
+					usedSectors.clear(oldOffset, oldOffset + oldSectorCount);
 				}
 			}
-			
-			out.write(metaData);
-			out.write(data);
+			writeFully(channel, ByteBuffer.wrap(output), (long)offset << SECTOR_SHIFT);
+			ByteBuffer entry = ByteBuffer.allocate(8);
+			entry.putInt(offset).putInt(output.length);
+			entry.position(0);
+			writeFully(channel, entry, 8 + 8L*chunkIndex);
+			sectorOffsets[chunkIndex] = offset;
+			dataLengths[chunkIndex] = output.length;
+			chunkVersions[chunkIndex]++;
 		} catch (IOException e) {
 			Logger.error("Unable to store chunk resources.");
 			Logger.error(e);
 		}
-		wasChanged = false;
 	}
-	
+
+	/**
+	 * Removes free sectors at the end of the file and closes it.
+	 * Following requests will be redirected to a new region file.
+	 */
 	public void clean() {
 		synchronized(this) {
-			storeOnChange = true;
-			unsynchronized_store();
+			if(wasCleaned) return;
+			wasCleaned = true;
+			if(channel == null) return;
+			try {
+				long usedSize = (long)usedSectors.length() << SECTOR_SHIFT;
+				if(mappedFile == null && channel.size() > usedSize) { // Mapped files cannot be truncated on all platforms.
+					channel.truncate(usedSize);
+				}
+				channel.close();
+			} catch (IOException e) {
+				Logger.error("Unable to store chunk resources.");
+				Logger.error(e);
+			}
+			channel = null;
+			mappedFile = null;
 		}
 	}
-	
+
+	/**
+	 * Makes sure that all changes are written to the disk.
+	 */
 	public void store() {
 		synchronized(this) {
-			unsynchronized_store();
+			if(channel == null) return;
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				Logger.error("Unable to store chunk resources.");
+				Logger.error(e);
+			}
 		}
 	}
 
@@ -183,13 +395,4 @@ public class RegionFile extends RegionFileCompare {
 	public static int findCoordinate(int worldCoordinate, int voxelSize) {
 		return worldCoordinate & ~(REGION_SIZE*voxelSize*Chunk.chunkSize - 1);
 	}
-	
-	@Override
-	public void finalize() {
-		if(wasChanged) {
-			Logger.crash(wx+" "+wy+" "+wz+" "+voxelSize);
-			clean();
-			GameLauncher.instance.exit();
-		}
-	}
 }
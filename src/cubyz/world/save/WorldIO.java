@@ -7,9 +7,9 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 import cubyz.utils.Logger;
+import cubyz.utils.compression.CompressionAlgorithms;
 import cubyz.world.ServerWorld;
 import cubyz.world.entity.Entity;
-import cubyz.world.entity.PlayerEntity;
 import pixelguys.json.JsonArray;
 import pixelguys.json.JsonObject;
 import pixelguys.json.JsonParser;
@@ -54,16 +54,18 @@ public class WorldIO {
 				throw new IOException("Cannot read version " + worldData.getInt("version", -1));
 			}
 
+			// Entities are stored in the entity region files now. Old worlds still have them in here, so they get added to the world and moved over by the world:
 			JsonArray entityJson = worldData.getArrayNoNull("entities");
-			
-			Entity[] entities = new Entity[entityJson.array.size()];
-			for(int i = 0; i < entities.length; i++) {
-				// TODO: Only load entities that are in loaded chunks.
-				entities[i] = EntityIO.loadEntity((JsonObject)entityJson.array.get(i), world);
+			for(int i = 0; i < entityJson.array.size(); i++) {
+				Entity ent = EntityIO.loadEntity((JsonObject)entityJson.array.get(i), world);
+				if(ent != null) {
+					world.addEntity(ent);
+				}
 			}
-			world.setEntities(entities);
 			world.setGameTimeCycle(worldData.getBool("doGameTimeCycle", true));
 			world.gameTime = worldData.getLong("gameTime", 0);
+			// Worlds from before the compression was configurable only used deflate.
+			world.storageCompression = CompressionAlgorithms.getByName(worldData.getString("storageCompression", CompressionAlgorithms.DEFLATE.name), CompressionAlgorithms.DEFLATE);
 			JsonObject spawnData = worldData.getObjectOrNew("spawn");
 			world.spawn.x = spawnData.getInt("x", 0);
 			world.spawn.y = spawnData.getInt("y", Integer.MIN_VALUE);
@@ -81,20 +83,12 @@ public class WorldIO {
 			worldData.put("seed", world.getSeed());
 			worldData.put("doGameTimeCycle", world.shouldDoGameTimeCycle());
 			worldData.put("gameTime", world.gameTime);
-			worldData.put("entityCount", world.getEntities().length);
+			worldData.put("storageCompression", world.storageCompression.name);
 			JsonObject spawnData = new JsonObject();
 			spawnData.put("x", world.spawn.x);
 			spawnData.put("y", world.spawn.y);
 			spawnData.put("z", world.spawn.z);
 			worldData.put("spawn", spawnData);
-			JsonArray entityData = new JsonArray();
-			worldData.put("entities", entityData);
-			// TODO: Store entities per chunk.
-			for (Entity ent : world.getEntities()) {
-				if (ent != null && ent.getType().getClass() != PlayerEntity.class) {
-					entityData.add(ent.save());
-				}
-			}
 			out.write(worldData.toString().getBytes(StandardCharsets.UTF_8));
 			out.close();
 		} catch (IOException e) {
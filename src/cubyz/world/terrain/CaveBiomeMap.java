@@ -1,17 +1,19 @@
 package cubyz.world.terrain;
 
 import cubyz.multiplayer.server.Server;
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.utils.datastructures.Cache;
+import cubyz.utils.metrics.Metrics;
 import cubyz.world.Chunk;
 import cubyz.world.ChunkData;
 import cubyz.world.terrain.biomes.Biome;
 import cubyz.world.terrain.noise.Cached3DFractalNoise;
 
 public class CaveBiomeMap extends InterpolatableCaveBiomeMap {
-	private static final int CACHE_SIZE = 1 << 8; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 8;
-	private static final Cache<CaveBiomeMapFragment> cache = new Cache<>(new CaveBiomeMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	private static final Cache<CaveBiomeMapFragment> cache = new Cache<>(ServerSettings.caveBiomeMapCacheSize*1024L*1024, fragment -> 4L*fragment.biomeMap.length, null);
+	static {
+		Metrics.registerCache("caveBiomeMaps", cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -81,16 +83,15 @@ public class CaveBiomeMap extends InterpolatableCaveBiomeMap {
 		wy &= ~CaveBiomeMapFragment.CAVE_BIOME_MAP_MASK;
 		wz &= ~CaveBiomeMapFragment.CAVE_BIOME_MAP_MASK;
 		ChunkData compare = new ChunkData(wx, wy, wz, CaveBiomeMapFragment.CAVE_BIOME_SIZE);
-		int hash = compare.hashCode() & CACHE_MASK;
+		int hash = compare.hashCode();
 		CaveBiomeMapFragment ret = cache.find(compare, hash);
 		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
+		synchronized(cache.getLock(hash)) {
 			// Try again in case it was already generated in another thread:
-			ret = cache.find(new ChunkData(wx, wy, wz, 1), hash);
+			ret = cache.find(compare, hash);
 			if (ret != null) return ret;
 			ret = new CaveBiomeMapFragment(wx, wy, wz, profile);
-			cache.addToCache(ret, hash & CACHE_MASK);
-			return ret;
+			return cache.addToCache(ret, hash);
 		}
 	}
 
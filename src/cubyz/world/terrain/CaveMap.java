@@ -1,6 +1,8 @@
 package cubyz.world.terrain;
 
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.utils.datastructures.Cache;
+import cubyz.utils.metrics.Metrics;
 import cubyz.world.Chunk;
 import cubyz.world.ChunkData;
 
@@ -10,10 +12,10 @@ import cubyz.world.ChunkData;
  */
 
 public class CaveMap {
-	private static final int CACHE_SIZE = 1 << 9; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 8; // 512 MiB Cache size
-	private static final Cache<CaveMapFragment> cache = new Cache<>(new CaveMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	private static final Cache<CaveMapFragment> cache = new Cache<>(ServerSettings.caveMapCacheSize*1024L*1024, fragment -> CaveMapFragment.WIDTH*CaveMapFragment.WIDTH*8, null);
+	static {
+		Metrics.registerCache("caveMaps", cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -167,16 +169,15 @@ public class CaveMap {
 		wy &= ~(CaveMapFragment.HEIGHT_MASK*voxelSize | voxelSize-1);
 		wz &= ~(CaveMapFragment.WIDTH_MASK*voxelSize | voxelSize-1);
 		ChunkData compare = new ChunkData(wx, wy, wz, voxelSize);
-		int hash = compare.hashCode() & CACHE_MASK;
+		int hash = compare.hashCode();
 		CaveMapFragment ret = cache.find(compare, hash);
 		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
+		synchronized(cache.getLock(hash)) {
 			// Try again in case it was already generated in another thread:
-			ret = cache.find(new ChunkData(wx, wy, wz, voxelSize), hash);
+			ret = cache.find(compare, hash);
 			if (ret != null) return ret;
 			ret = new CaveMapFragment(wx, wy, wz, voxelSize, profile);
-			cache.addToCache(ret, hash & CACHE_MASK);
-			return ret;
+			return cache.addToCache(ret, hash);
 		}
 	}
 
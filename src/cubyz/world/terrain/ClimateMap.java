@@ -1,14 +1,18 @@
 package cubyz.world.terrain;
 
+import cubyz.multiplayer.server.ServerSettings;
 import cubyz.utils.datastructures.Cache;
+import cubyz.utils.metrics.Metrics;
 
 public final class ClimateMap {
 	private ClimateMap() {} // No instances allowed.
 
-	private static final int CACHE_SIZE = 1 << 8; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 4;
-	private static final Cache<ClimateMapFragment> cache = new Cache<>(new ClimateMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	/** Each entry stores a reference and a {@link BiomePoint} for every point of the map. */
+	private static final long FRAGMENT_MEMORY_USAGE = 48L*(ClimateMapFragment.MAP_SIZE/MapFragment.BIOME_SIZE)*(ClimateMapFragment.MAP_SIZE/MapFragment.BIOME_SIZE);
+	private static final Cache<ClimateMapFragment> cache = new Cache<>(ServerSettings.climateMapCacheSize*1024L*1024, fragment -> FRAGMENT_MEMORY_USAGE, null);
+	static {
+		Metrics.registerCache("climateMaps", cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -55,17 +59,16 @@ public final class ClimateMap {
 	}
 	
 	public static ClimateMapFragment getOrGenerateFragment(int wx, int wz) {
-		int hash = ClimateMapFragment.hashCode(wx, wz) & CACHE_MASK;
+		int hash = ClimateMapFragment.hashCode(wx, wz);
 		ClimateMapFragment ret = cache.find(new ClimateMapFragmentComparator(wx, wz), hash);
 		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
+		synchronized(cache.getLock(hash)) {
 			// Try again in case it was already generated in another thread:
 			ret = cache.find(new ClimateMapFragmentComparator(wx, wz), hash);
 			if (ret != null) return ret;
 			ret = new ClimateMapFragment(wx, wz);
 			profile.climateGenerator.generateMapFragment(ret, profile.seed);
-			cache.addToCache(ret, ret.hashCode() & CACHE_MASK);
-			return ret;
+			return cache.addToCache(ret, hash);
 		}
 	}
 
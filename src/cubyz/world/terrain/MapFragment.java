@@ -25,6 +25,14 @@ public class MapFragment extends MapFragmentCompare {
 		biomeMap = new Biome[MAP_SIZE / voxelSize][MAP_SIZE / voxelSize];
 	}
 	
+	/**
+	 * @return the approximate number of bytes used by this map fragment.
+	 */
+	public long getMemoryUsage() {
+		long size = MAP_SIZE/(1 << voxelSizeShift);
+		return size*size*(4 + 4) + 2*size*16;
+	}
+
 	public Biome getBiome(int wx, int wz) {
 		wx = (wx & MAP_MASK)>>voxelSizeShift;
 		wz = (wz & MAP_MASK)>>voxelSizeShift;